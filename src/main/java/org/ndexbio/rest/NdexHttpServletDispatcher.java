@@ -36,7 +36,7 @@ import java.util.List;
 import java.util.Timer;
 import java.util.logging.Logger;
 
-import org.jboss.resteasy.plugins.server.servlet.HttpServletDispatcher;
+import org.jboss.resteasy.plugins.server.servlet.HttpServlet30Dispatcher;
 import org.ndexbio.common.NdexClasses;
 import org.ndexbio.common.NdexServerProperties;
 import org.ndexbio.common.access.NdexDatabase;
@@ -44,8 +44,19 @@ import org.ndexbio.common.models.dao.orientdb.TaskDocDAO;
 import org.ndexbio.common.models.dao.orientdb.UserDocDAO;
 import org.ndexbio.model.exceptions.NdexException;
 import org.ndexbio.model.object.Task;
-import org.ndexbio.model.object.TaskType;
-import org.ndexbio.task.ClientTaskProcessor;
+import org.ndexbio.rest.cache.CredentialCache;
+import org.ndexbio.rest.cache.ExportCache;
+import org.ndexbio.rest.cache.NetworkSnapshotCache;
+import org.ndexbio.rest.cache.NetworkSummaryCache;
+import org.ndexbio.rest.cache.PermissionCache;
+import org.ndexbio.rest.helpers.ChunkedUploads;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
+import org.ndexbio.rest.task.NetworkDeleter;
+import org.ndexbio.rest.task.PipelinedSifLoader;
+import org.ndexbio.rest.task.TaskProgressHub;
+import org.ndexbio.rest.task.UserTaskScheduler;
+import org.ndexbio.security.LoginThrottle;
+import org.ndexbio.security.SessionTokens;
 import org.ndexbio.task.Configuration;
 import org.ndexbio.task.NdexServerQueue;
 import org.ndexbio.task.SystemTaskProcessor;
@@ -58,7 +69,7 @@ import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 import com.orientechnologies.orient.server.OServer;
 import com.orientechnologies.orient.server.OServerMain;
 
-public class NdexHttpServletDispatcher extends HttpServletDispatcher {
+public class NdexHttpServletDispatcher extends HttpServlet30Dispatcher {
 	
     private static Logger logger = Logger.getLogger(NdexHttpServletDispatcher.class.getSimpleName());
 	
@@ -69,9 +80,7 @@ public class NdexHttpServletDispatcher extends HttpServletDispatcher {
 	private static final int defaultPoolSize = 50;
 	private OServer orientDBServer;
 	private Thread  systemTaskProcessorThread;
-	private Thread  clientTaskProcessorThread;
 	private SystemTaskProcessor systemTaskProcessor;
-	private ClientTaskProcessor clientTaskProcessor;
 	
 	public NdexHttpServletDispatcher() {
 		super();
@@ -122,6 +131,7 @@ public class NdexHttpServletDispatcher extends HttpServletDispatcher {
 	    			configuration.getDBPasswd(), size.intValue());
     	
 			logger.info("Db created for " + NdexDatabase.getURIPrefix());
+			ConnectionPoolMonitor.startUp(configuration, size.intValue());
     	
 			try (UserDocDAO dao = new UserDocDAO(db.getAConnection())) {
     	
@@ -131,17 +141,27 @@ public class NdexHttpServletDispatcher extends HttpServletDispatcher {
     				configuration.getSystemUserPassword());
 			}
 			
+			NetworkSnapshotCache.startUp(configuration);
+			ExportCache.startUp(configuration);
+			NetworkSummaryCache.startUp(configuration);
+			PermissionCache.startUp(configuration);
+			CredentialCache.startUp(configuration);
+			SessionTokens.startUp(configuration);
+			LoginThrottle.startUp(configuration);
+			ChunkedUploads.startUp(configuration);
+
 			// find tasks that needs to be processed in system queue
+			NetworkDeleter.startUp(configuration);
 			populateSystemQueue();
 			populateUserQueue();
 
 			systemTaskProcessor = new SystemTaskProcessor();
-			clientTaskProcessor = new ClientTaskProcessor();
 			systemTaskProcessorThread = new Thread(systemTaskProcessor);
 			systemTaskProcessorThread.start();
 			logger.info("System task executor started.");
-			clientTaskProcessorThread = new Thread(clientTaskProcessor);
-			clientTaskProcessorThread.start();
+			TaskProgressHub.startUp(configuration);
+			PipelinedSifLoader.startUp(configuration);
+			UserTaskScheduler.startUp(configuration);
 			logger.info("Client task executor started.");
 
 			// setup the automatic backup
@@ -165,7 +185,6 @@ public class NdexHttpServletDispatcher extends HttpServletDispatcher {
         try {
         	
         	//signal the task queues and wait for them to finish.
-        	clientTaskProcessor.shutdown();
         	systemTaskProcessor.shutdown();
 
         	NdexServerQueue.INSTANCE.shutdown();
@@ -174,7 +193,20 @@ public class NdexHttpServletDispatcher extends HttpServletDispatcher {
         	
         	systemTaskProcessorThread.join();
         	logger.info("System task processor stopped.");
-        	clientTaskProcessorThread.join();
+        	NetworkDeleter.shutdown();
+        	UserTaskScheduler.shutdown();
+        	PipelinedSifLoader.shutdown();
+        	TaskProgressHub.shutdown();
+        	
+        	NetworkSnapshotCache.shutdown();
+        	ExportCache.shutdown();
+        	NetworkSummaryCache.shutdown();
+        	PermissionCache.shutdown();
+        	CredentialCache.shutdown();
+        	SessionTokens.shutdown();
+        	LoginThrottle.shutdown();
+        	ChunkedUploads.shutdown();
+        	ConnectionPoolMonitor.shutdown();
         	
         	logger.info("Client task processors stopped. Closing database");
         	
@@ -192,16 +224,13 @@ public class NdexHttpServletDispatcher extends HttpServletDispatcher {
 	
 	
 	private static void populateSystemQueue() throws NdexException {
-		try ( ODatabaseDocumentTx odb = NdexDatabase.getInstance().getAConnection()) {
+		try ( ODatabaseDocumentTx odb = ConnectionPoolMonitor.getAConnection()) {
 			OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<>(
 		  			"SELECT FROM network where isDeleted = true");
 			List<ODocument> records = odb.command(query).execute();
 			for ( ODocument doc : records ) {
 				String networkId = doc.field(NdexClasses.ExternalObj_ID);
-				Task t = new Task();
-				t.setResource(networkId);
-				t.setTaskType(TaskType.SYSTEM_DELETE_NETWORK);
-				NdexServerQueue.INSTANCE.addSystemTask(t);
+				NetworkDeleter.submit(networkId);
 			}
 			logger.info (records.size() + " deleted network found for system task queue.");
 		}
@@ -209,7 +238,7 @@ public class NdexHttpServletDispatcher extends HttpServletDispatcher {
 
 	
 	private static void populateUserQueue() throws NdexException {
-		try ( TaskDocDAO taskDAO = new TaskDocDAO(NdexDatabase.getInstance().getAConnection())) {
+		try ( TaskDocDAO taskDAO = new TaskDocDAO(ConnectionPoolMonitor.getAConnection())) {
 			Collection<Task> list =taskDAO.getUnfinishedTasks(); 
 			for ( Task t : list) {
 				NdexServerQueue.INSTANCE.addUserTask(t);
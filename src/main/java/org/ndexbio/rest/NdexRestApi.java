@@ -50,6 +50,9 @@ import org.ndexbio.rest.services.RequestService;
 import org.ndexbio.rest.services.TaskService;
 import org.ndexbio.rest.services.UserService;
 
+import com.fasterxml.jackson.jaxrs.cbor.JacksonCBORProvider;
+import com.fasterxml.jackson.jaxrs.smile.JacksonSmileProvider;
+
 public class NdexRestApi extends Application
 {
     private final Set<Object> _providers = new HashSet<>();
@@ -71,6 +74,8 @@ public class NdexRestApi extends Application
         _providers.add(new ObjectNotFoundExceptionMapper());
         _providers.add(new UnauthorizedOperationExceptionMapper());
         _providers.add(new NdexPreZippedInterceptor());
+        _providers.add(new JacksonSmileProvider());
+        _providers.add(new JacksonCBORProvider());
 
     }
     
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.ndexbio.model.object.User;
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.task.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Cache of verified Authorization headers, so a client sending many requests
+ * is only checked against the database or AD once per TTL. Entries are keyed
+ * by an HMAC of the whole header under a random key generated at startup; the
+ * header and password are never stored. Services must call
+ * {@link #invalidate(UUID)} after a user's password or profile changes.
+ */
+public class CredentialCache {
+
+	static Logger logger = LoggerFactory.getLogger(CredentialCache.class);
+
+	private static final String CREDENTIAL_CACHE_ENABLED = "CREDENTIAL_CACHE";
+	private static final String CREDENTIAL_CACHE_SIZE = "CREDENTIAL_CACHE_SIZE";
+	private static final String CREDENTIAL_CACHE_TTL_SECONDS = "CREDENTIAL_CACHE_TTL_SECONDS";
+	private static final long defaultSize = 10000;
+	private static final long defaultTTLSeconds = 300;
+	private static final String digestAlgorithm = "HmacSHA256";
+
+	private static CredentialCache INSTANCE = null;
+
+	private final Cache<String, User> users;
+	private final SecretKeySpec salt;
+
+	private CredentialCache(long size, long ttlSeconds) {
+		users = CacheBuilder.newBuilder()
+				.maximumSize(size)
+				.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		salt = new SecretKeySpec(key, digestAlgorithm);
+	}
+
+	/**
+	 * Creates the cache unless CREDENTIAL_CACHE is set to false in the server
+	 * configuration.
+	 */
+	public static synchronized void startUp(Configuration config) {
+		String enabled = config.getProperty(CREDENTIAL_CACHE_ENABLED);
+		if (enabled != null && !Boolean.parseBoolean(enabled)) {
+			logger.info("Credential cache is turned off.");
+			return;
+		}
+
+		long size = ConfigProperties.getLong(config, CREDENTIAL_CACHE_SIZE, defaultSize);
+		long ttl = ConfigProperties.getLong(config, CREDENTIAL_CACHE_TTL_SECONDS, defaultTTLSeconds);
+		INSTANCE = new CredentialCache(size, ttl);
+		logger.info("Credential cache started with size " + size + " and ttl " + ttl + "s.");
+	}
+
+	public static synchronized void shutdown() {
+		if (INSTANCE != null) {
+			INSTANCE.users.invalidateAll();
+			INSTANCE = null;
+		}
+	}
+
+	/**
+	 * @return the user that the given Authorization header was verified for,
+	 *         or null if it is not cached.
+	 */
+	public static User get(String authorization) {
+		CredentialCache cache = INSTANCE;
+		return cache == null ? null : cache.users.getIfPresent(cache.digest(authorization));
+	}
+
+	/**
+	 * Records that the Authorization header was verified for the user.
+	 */
+	public static void put(String authorization, User user) {
+		CredentialCache cache = INSTANCE;
+		if (cache != null)
+			cache.users.put(cache.digest(authorization), user);
+	}
+
+	/**
+	 * Drops every cached credential of the user.
+	 */
+	public static void invalidate(UUID userId) {
+		CredentialCache cache = INSTANCE;
+		if (cache == null)
+			return;
+		for (Iterator<User> it = cache.users.asMap().values().iterator(); it.hasNext();) {
+			if (userId.equals(it.next().getExternalId()))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Drops every cached credential of the account. Used where only the
+	 * account name is known, e.g. a password reset.
+	 */
+	public static void invalidate(String accountName) {
+		CredentialCache cache = INSTANCE;
+		if (cache == null)
+			return;
+		for (Iterator<User> it = cache.users.asMap().values().iterator(); it.hasNext();) {
+			if (accountName.equalsIgnoreCase(it.next().getAccountName()))
+				it.remove();
+		}
+	}
+
+	/**
+	 * @return hit/miss counts of the cache, or null if it is turned off.
+	 */
+	public static CacheStats getStats() {
+		CredentialCache cache = INSTANCE;
+		return cache == null ? null : cache.users.stats();
+	}
+
+	private String digest(String authorization) {
+		try {
+			Mac mac = Mac.getInstance(digestAlgorithm);
+			mac.init(salt);
+			return BaseEncoding.base16().encode(mac.doFinal(authorization.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			// HmacSHA256 is required on every Java platform.
+			throw new IllegalStateException(e);
+		}
+	}
+}
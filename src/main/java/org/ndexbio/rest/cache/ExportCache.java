@@ -0,0 +1,484 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.cache;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FilenameUtils;
+import org.ndexbio.common.models.dao.orientdb.NetworkDocDAO;
+import org.ndexbio.common.models.dao.orientdb.UserDocDAO;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.exceptions.ObjectNotFoundException;
+import org.ndexbio.model.object.Task;
+import org.ndexbio.model.object.network.FileFormat;
+import org.ndexbio.model.object.network.NetworkSummary;
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
+import org.ndexbio.task.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+/**
+ * Keeps the files written by EXPORT_NETWORK_TO_FILE tasks, keyed by the
+ * network UUID, its modification time and the export format. An export of a
+ * network that has not changed since it was last exported in the same format
+ * is answered by linking the cached file into the task owner's workspace
+ * instead of running the exporter again.
+ * <p>
+ * The exporters write &lt;task id&gt;.&lt;extension&gt; into the owner's
+ * workspace. Rather than predicting the extension, the cache looks for the
+ * file the exporter actually wrote and keeps its extension, so a hit gets the
+ * same name a real export would have.
+ * <p>
+ * Exports of the same network version and format that run at the same time
+ * are coalesced: one task runs the exporter, and the others are handed back
+ * to the scheduler without holding a worker, to be run again, normally as a
+ * cache hit, once that export is done. An export still running after
+ * EXPORT_COALESCE_WAIT_SECONDS is taken as abandoned, and the next task for
+ * it runs the exporter again.
+ * <p>
+ * The cache is kept under EXPORT_CACHE_MAX_MB of disk by dropping the least
+ * recently used files. The last use of a file is its modification time, so
+ * the order survives a restart. Only the latest exported version of a network
+ * is kept.
+ */
+public class ExportCache {
+
+	static Logger logger = LoggerFactory.getLogger(ExportCache.class);
+
+	private static final String EXPORT_CACHE_ENABLED = "EXPORT_CACHE";
+	private static final String EXPORT_CACHE_MAX_MB = "EXPORT_CACHE_MAX_MB";
+	private static final String EXPORT_COALESCE_WAIT_SECONDS = "EXPORT_COALESCE_WAIT_SECONDS";
+	private static final long defaultMaxMB = 10240;
+	private static final long defaultCoalesceWaitSeconds = 3600;
+
+	private static final String cacheDirName = "export-cache";
+	private static final String tmpSuffix = ".tmp";
+
+	private static ExportCache INSTANCE = null;
+
+	private final File cacheDir;
+	private final long maxBytes;
+	private final SingleFlight<String, File> exports;
+
+	private static final class Entry {
+		final File file;
+		final long size;
+
+		Entry(File file) {
+			this.file = file;
+			this.size = file.length();
+		}
+	}
+
+	// key -> cached file, in least recently used order. Guarded by this.
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private ExportCache(File cacheDir, long maxBytes, long coalesceWaitMillis) {
+		this.cacheDir = cacheDir;
+		this.maxBytes = maxBytes;
+		this.exports = new SingleFlight<>(coalesceWaitMillis);
+	}
+
+	/**
+	 * Creates the cache if it is enabled in the server configuration and loads
+	 * the files left by the last run. The cache is on unless EXPORT_CACHE is
+	 * set to false.
+	 */
+	public static synchronized void startUp(Configuration config) {
+		String enabled = config.getProperty(EXPORT_CACHE_ENABLED);
+		if (enabled != null && !Boolean.parseBoolean(enabled)) {
+			logger.info("Export cache is turned off.");
+			return;
+		}
+
+		File dir = new File(config.getNdexRoot() + "/" + cacheDirName);
+		if (!dir.exists())
+			dir.mkdirs();
+
+		long maxMB = ConfigProperties.getLong(config, EXPORT_CACHE_MAX_MB, defaultMaxMB);
+		long wait = ConfigProperties.getLong(config, EXPORT_COALESCE_WAIT_SECONDS,
+				defaultCoalesceWaitSeconds);
+		ExportCache cache = new ExportCache(dir, maxMB * 1024 * 1024, wait * 1000);
+		cache.load();
+		INSTANCE = cache;
+		logger.info("Export cache started in " + dir.getAbsolutePath() + " with " + cache.entries.size()
+				+ " files, " + cache.totalBytes + " of " + cache.maxBytes + " bytes used.");
+	}
+
+	public static synchronized void shutdown() {
+		INSTANCE = null;
+	}
+
+	/**
+	 * Runs an EXPORT_NETWORK_TO_FILE task through the cache. The exporter is
+	 * only called when no file of the current version of the network is cached
+	 * and no other task is exporting it.
+	 * 
+	 * @param requeue
+	 *            called, on the thread that finished it, once the export that
+	 *            another task is running for the same version is done.
+	 * @return false if the task was not run because another task is exporting
+	 *         the same version; requeue will be called for it.
+	 */
+	public static boolean export(Task task, Callable<?> exporter, Runnable requeue) throws Exception {
+		ExportCache cache = INSTANCE;
+		if (cache == null) {
+			exporter.call();
+			return true;
+		}
+		return cache.run(task, exporter, requeue);
+	}
+
+	/**
+	 * Looks only at the files held in memory. The network's version is not
+	 * read from the database, so the cached file may still turn out to be out
+	 * of date, or be evicted before the task runs.
+	 * 
+	 * @return true if an export of the task's network in its format is cached.
+	 */
+	public static boolean mayBeCached(Task task) {
+		ExportCache cache = INSTANCE;
+		if (cache == null || task.getResource() == null)
+			return false;
+		String prefix = task.getResource() + "/";
+		String suffix = "." + task.getFormat();
+		synchronized (cache) {
+			for (String key : cache.entries.keySet())
+				if (key.startsWith(prefix) && key.endsWith(suffix))
+					return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Drops the cached exports of a network that was changed or deleted.
+	 */
+	public static void networkChanged(String networkId) {
+		ExportCache cache = INSTANCE;
+		if (cache != null)
+			cache.dropVersions(networkId, null);
+	}
+
+	/**
+	 * @return hit, miss and disk usage counters, or null if the cache is off.
+	 */
+	public static Map<String, Object> getStatus() {
+		ExportCache cache = INSTANCE;
+		if (cache == null)
+			return null;
+		Map<String, Object> status = new HashMap<>();
+		synchronized (cache) {
+			status.put("files", cache.entries.size());
+			status.put("bytes", cache.totalBytes);
+		}
+		status.put("maxBytes", cache.maxBytes);
+		status.put("hits", cache.hits.get());
+		status.put("misses", cache.misses.get());
+		status.put("coalesced", cache.coalesced.get());
+		status.put("evictions", cache.evictions.get());
+		status.put("inFlight", cache.exports.getInFlightCount());
+		return status;
+	}
+
+	private boolean run(Task task, Callable<?> exporter, Runnable requeue) throws Exception {
+		String networkId = task.getResource();
+		File workspace = getWorkspace(task);
+
+		while (true) {
+			long version = getVersion(networkId);
+			String key = getKey(networkId, version, task.getFormat());
+			if (copyFromCache(key, workspace, task)) {
+				hits.incrementAndGet();
+				logger.info("Export of network " + networkId + " in task " + task.getExternalId()
+						+ " served from cache.");
+				return true;
+			}
+
+			SingleFlight<String, File>.Flight flight = exports.lead(key);
+			if (flight == null) {
+				// another task is exporting this version; rather than hold a worker
+				// until it is done, hand this task back then.
+				if (exports.follow(key, requeue)) {
+					coalesced.incrementAndGet();
+					logger.info("Export task " + task.getExternalId() + " waits for the export of network "
+							+ networkId + " already running.");
+					return false;
+				}
+				continue;
+			}
+
+			misses.incrementAndGet();
+			File cached = null;
+			try {
+				exporter.call();
+				File exported = findExportFile(workspace, task);
+				if (exported == null)
+					logger.error("Export task " + task.getExternalId() + " finished, but no file named "
+							+ task.getExternalId() + ".* was found in " + workspace + "; export not cached.");
+				else
+					cached = store(key, networkId, version, exported);
+			} finally {
+				if (cached != null)
+					flight.complete(cached);
+				else
+					flight.fail();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Puts a copy of the exported file in the cache, unless the network was
+	 * modified while it was exported.
+	 *
+	 * @return the cached file, or null if it was not cached.
+	 */
+	private File store(String key, String networkId, long version, File exported) {
+		try {
+			if (getVersion(networkId) != version) {
+				logger.info("Network " + networkId + " changed while it was exported, export not cached.");
+				return null;
+			}
+
+			File file = new File(cacheDir, key + "." + FilenameUtils.getExtension(exported.getName()));
+			File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + tmpSuffix);
+			file.getParentFile().mkdirs();
+			try {
+				linkOrCopy(exported, tmp);
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				tmp.delete();
+			}
+
+			dropVersions(networkId, key);
+			synchronized (this) {
+				Entry entry = new Entry(file);
+				Entry old = entries.put(key, entry);
+				totalBytes += entry.size - (old == null ? 0 : old.size);
+				if (old != null && !old.file.equals(file))
+					old.file.delete();
+				evict();
+			}
+			return file;
+		} catch (IOException | NdexException | RuntimeException e) {
+			logger.error("Failed to cache export of network " + networkId + ".", e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the key was cached and its file is now in the workspace,
+	 *         named like the exporter would have named it.
+	 */
+	private boolean copyFromCache(String key, File workspace, Task task) throws IOException {
+		File file;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry == null)
+				return false;
+			file = entry.file;
+		}
+		File target = new File(workspace, task.getExternalId() + "." + FilenameUtils.getExtension(file.getName()));
+		file.setLastModified(System.currentTimeMillis());
+		target.getParentFile().mkdirs();
+		Files.deleteIfExists(target.toPath());
+		try {
+			linkOrCopy(file, target);
+		} catch (NoSuchFileException e) {
+			// evicted since we looked, or deleted behind our back.
+			remove(key);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Hard links are free and both names can be deleted independently, so
+	 * they are used wherever the file system allows them.
+	 */
+	private static void linkOrCopy(File from, File to) throws IOException {
+		try {
+			Files.createLink(to.toPath(), from.toPath());
+		} catch (IOException | UnsupportedOperationException e) {
+			Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Removes every cached export of the network except the given key.
+	 */
+	private void dropVersions(String networkId, String keepKey) {
+		String prefix = networkId + "/";
+		List<String> drop = new ArrayList<>();
+		synchronized (this) {
+			for (String key : entries.keySet())
+				if (key.startsWith(prefix) && !key.equals(keepKey))
+					drop.add(key);
+		}
+		for (String key : drop)
+			remove(key);
+		if (keepKey == null)
+			new File(cacheDir, networkId).delete();
+	}
+
+	private void remove(String key) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.remove(key);
+			if (entry != null)
+				totalBytes -= entry.size;
+		}
+		if (entry != null)
+			entry.file.delete();
+	}
+
+	// Caller holds the lock.
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (totalBytes > maxBytes && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			totalBytes -= eldest.size;
+			File file = eldest.file;
+			file.delete();
+			file.getParentFile().delete();  // only succeeds when empty
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Reads the cached files from disk, least recently used first.
+	 */
+	private synchronized void load() {
+		List<File> files = new ArrayList<>();
+		File[] dirs = cacheDir.listFiles();
+		for (File dir : dirs == null ? new File[0] : dirs) {
+			File[] exported = dir.listFiles();
+			if (exported == null)
+				continue;
+			for (File f : exported) {
+				// <version>.<format>.<extension>; anything else is a leftover of an unfinished copy
+				if (f.getName().endsWith(tmpSuffix) || f.getName().split("\\.").length != 3)
+					f.delete();
+				else
+					files.add(f);
+			}
+		}
+		File[] sorted = files.toArray(new File[files.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (File f : sorted) {
+			String name = f.getName();
+			Entry entry = new Entry(f);
+			entries.put(f.getParentFile().getName() + "/" + name.substring(0, name.lastIndexOf('.')), entry);
+			totalBytes += entry.size;
+		}
+		evict();
+	}
+
+	private static String getKey(String networkId, long version, FileFormat format) {
+		return networkId + "/" + version + "." + format;
+	}
+
+	/**
+	 * Reads the modification time from the database rather than the summary
+	 * cache, so an export is never keyed by a version that is out of date.
+	 */
+	private static long getVersion(String networkId) throws NdexException {
+		try (ODatabaseDocumentTx db = ConnectionPoolMonitor.getAConnection()) {
+			ODocument doc = new NetworkDocDAO(db).getNetworkDocByUUIDString(networkId);
+			if (doc == null)
+				throw new ObjectNotFoundException("Network with ID: " + networkId + " doesn't exist.");
+			NetworkSummary summary = NetworkDocDAO.getNetworkSummary(doc);
+			return summary.getModificationTime().getTime();
+		}
+	}
+
+	/**
+	 * The directory the exporters write to: &lt;ndexRoot&gt;/workspace/&lt;owner
+	 * account&gt;.
+	 */
+	private static File getWorkspace(Task task) throws NdexException {
+		String owner;
+		try (UserDocDAO dao = new UserDocDAO(ConnectionPoolMonitor.getAConnection())) {
+			owner = dao.getUserById(task.getTaskOwnerId()).getAccountName();
+		}
+		return new File(Configuration.getInstance().getNdexRoot() + "/workspace/" + owner);
+	}
+
+	/**
+	 * @return the newest file named after the task in the workspace, or null if
+	 *         the exporter wrote none.
+	 */
+	private static File findExportFile(File workspace, Task task) {
+		final String prefix = task.getExternalId() + ".";
+		File[] files = workspace.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().startsWith(prefix);
+			}
+		});
+		File newest = null;
+		for (File f : files == null ? new File[0] : files)
+			if (newest == null || f.lastModified() > newest.lastModified())
+				newest = f;
+		return newest;
+	}
+}
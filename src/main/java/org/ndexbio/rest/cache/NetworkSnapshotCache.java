@@ -0,0 +1,356 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.ndexbio.common.models.dao.orientdb.NetworkDocDAO;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.object.network.NetworkSummary;
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
+import org.ndexbio.rest.helpers.NetworkEncoding;
+import org.ndexbio.rest.helpers.NetworkStreamingOutput;
+import org.ndexbio.rest.helpers.PropertyGraphStreamingOutput;
+import org.ndexbio.task.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+/**
+ * Pre-gzipped JSON snapshots of networks that are not read-only. A snapshot is
+ * keyed by the network UUID and its modification time, so a snapshot is only
+ * served while the network is unchanged. Snapshots are built on a background
+ * thread once a network has not been modified for a settle period, so a
+ * network that is being edited is not rebuilt after every change.
+ * <p>
+ * A request for a network version that has no snapshot yet is streamed from
+ * the database as usual, and a build of the snapshot it asked for is queued
+ * to the background builder, subject to the same settle period. Requests that
+ * arrive while that build is running wait for it instead of reading the
+ * network again, and are then served from the file.
+ * <p>
+ * Each {@link View} and {@link NetworkEncoding} has its own snapshot. After a
+ * change only the JSON Network view is rebuilt ahead of time; other snapshots
+ * are queued when they are first asked for.
+ */
+public class NetworkSnapshotCache {
+
+	static Logger logger = LoggerFactory.getLogger(NetworkSnapshotCache.class);
+
+	private static final String SNAPSHOT_CACHE_ENABLED = "NETWORK_SNAPSHOT_CACHE";
+	private static final String SNAPSHOT_SETTLE_SECONDS = "NETWORK_SNAPSHOT_SETTLE_SECONDS";
+	private static final String SNAPSHOT_BUILDER_THREADS = "NETWORK_SNAPSHOT_BUILDER_THREADS";
+	private static final String READ_COALESCE_WAIT_SECONDS = "NETWORK_READ_COALESCE_WAIT_SECONDS";
+	private static final long defaultSettleSeconds = 60;
+	private static final int defaultBuilderThreads = 1;
+	private static final long defaultCoalesceWaitSeconds = 120;
+
+	private static final String snapshotDirName = "network-snapshots";
+	private static final String suffix = ".gz";
+
+	private static NetworkSnapshotCache INSTANCE = null;
+
+	/**
+	 * The representations of a network that can be cached.
+	 */
+	public enum View {
+		NETWORK(""),
+		PROPERTY_GRAPH(".pg");
+
+		private final String fileSuffix;
+
+		private View(String fileSuffix) {
+			this.fileSuffix = fileSuffix;
+		}
+
+		StreamingOutput newWriter(String networkId, NetworkEncoding encoding) {
+			return this == NETWORK ?
+					new NetworkStreamingOutput(networkId, encoding) :
+					new PropertyGraphStreamingOutput(networkId, encoding);
+		}
+	}
+
+	private final File snapshotDir;
+	private final long settleMillis;
+	private final ScheduledExecutorService builder;
+	// <networkId>/<view>/<encoding> -> scheduled build
+	private final ConcurrentMap<String, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+	private final long coalesceWaitMillis;
+	private final SingleFlight<String, File> reads;
+
+	private NetworkSnapshotCache(File snapshotDir, long settleMillis, int threads, long coalesceWaitMillis) {
+		this.snapshotDir = snapshotDir;
+		this.settleMillis = settleMillis;
+		this.coalesceWaitMillis = coalesceWaitMillis;
+		this.reads = new SingleFlight<>(coalesceWaitMillis);
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads);
+		executor.setRemoveOnCancelPolicy(true);
+		this.builder = executor;
+	}
+
+	/**
+	 * Creates the cache if it is enabled in the server configuration. The
+	 * cache is on unless NETWORK_SNAPSHOT_CACHE is set to false.
+	 */
+	public static synchronized void startUp(Configuration config) {
+		String enabled = config.getProperty(SNAPSHOT_CACHE_ENABLED);
+		if (enabled != null && !Boolean.parseBoolean(enabled)) {
+			logger.info("Network snapshot cache is turned off.");
+			return;
+		}
+
+		File dir = new File(config.getNdexRoot() + "/" + snapshotDirName);
+		if (!dir.exists())
+			dir.mkdirs();
+
+		long settle = ConfigProperties.getLong(config, SNAPSHOT_SETTLE_SECONDS, defaultSettleSeconds);
+		int threads = (int) ConfigProperties.getLong(config, SNAPSHOT_BUILDER_THREADS, defaultBuilderThreads);
+		long wait = ConfigProperties.getLong(config, READ_COALESCE_WAIT_SECONDS, defaultCoalesceWaitSeconds);
+		INSTANCE = new NetworkSnapshotCache(dir, settle * 1000, Math.max(1, threads), wait * 1000);
+		logger.info("Network snapshot cache started in " + dir.getAbsolutePath() + " with settle time " + settle + "s.");
+	}
+
+	/**
+	 * @return the cache, or null if it is turned off.
+	 */
+	public static NetworkSnapshotCache getInstance() {
+		return INSTANCE;
+	}
+
+	public static synchronized void shutdown() {
+		if (INSTANCE != null) {
+			INSTANCE.builder.shutdownNow();
+			INSTANCE = null;
+		}
+	}
+
+	/**
+	 * @return the snapshot of the given version of the network, or null if
+	 *         there is none yet.
+	 */
+	public File getSnapshot(String networkId, NetworkSummary summary, View view,
+			NetworkEncoding encoding) {
+		File f = snapshotFile(networkId, getVersion(summary), view, encoding);
+		return f.exists() ? f : null;
+	}
+
+	/**
+	 * Waits for the snapshot of a network version that has no snapshot yet if
+	 * the builder is writing it right now. Otherwise the build is queued to the
+	 * builder and the caller doesn't wait.
+	 *
+	 * @return the snapshot, or null if the caller should stream the network
+	 *         itself.
+	 */
+	public File awaitSnapshot(String networkId, NetworkSummary summary, View view,
+			NetworkEncoding encoding) {
+		String key = getETag(networkId, summary, view, encoding);
+		if (!reads.isInFlight(key)) {
+			scheduleBuild(networkId, view, encoding, 0, false);
+			return null;
+		}
+		try {
+			File f = reads.await(key, coalesceWaitMillis, TimeUnit.MILLISECONDS);
+			return f != null ? f : getSnapshot(networkId, summary, view, encoding);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Drops the snapshots of a network after it was modified and schedules a
+	 * new one once the network settles. Calling this again before the settle
+	 * time is over pushes the build back.
+	 */
+	public void networkUpdated(String networkId) {
+		deleteSnapshots(networkId, -1);
+		scheduleBuild(networkId, View.NETWORK, NetworkEncoding.JSON, settleMillis, true);
+	}
+
+	/**
+	 * Drops the snapshots of a deleted network.
+	 */
+	public void networkDeleted(String networkId) {
+		String prefix = networkId + "/";
+		for (String key : pending.keySet()) {
+			if (!key.startsWith(prefix))
+				continue;
+			ScheduledFuture<?> f = pending.remove(key);
+			if (f != null)
+				f.cancel(false);
+		}
+		deleteSnapshots(networkId, -1);
+		networkDir(networkId).delete();
+	}
+
+	public static String getETag(String networkId, NetworkSummary summary, View view,
+			NetworkEncoding encoding) {
+		return networkId + "-" + getVersion(summary) + view.fileSuffix + encoding.getFileSuffix();
+	}
+
+	private static long getVersion(NetworkSummary summary) {
+		return summary.getModificationTime().getTime();
+	}
+
+	private File networkDir(String networkId) {
+		return new File(snapshotDir, networkId);
+	}
+
+	private File snapshotFile(String networkId, long version, View view, NetworkEncoding encoding) {
+		return new File(networkDir(networkId), version + view.fileSuffix + encoding.getFileSuffix() + suffix);
+	}
+
+	private void scheduleBuild(final String networkId, final View view, final NetworkEncoding encoding,
+			long delayMillis, boolean reschedule) {
+		final String key = networkId + "/" + view + "/" + encoding;
+		ScheduledFuture<?> old = pending.get(key);
+		if (old != null) {
+			if (!reschedule)
+				return;
+			old.cancel(false);
+		}
+
+		ScheduledFuture<?> f = builder.schedule(new Runnable() {
+			@Override
+			public void run() {
+				pending.remove(key);
+				build(networkId, view, encoding);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+		pending.put(key, f);
+	}
+
+	private void build(String networkId, View view, NetworkEncoding encoding) {
+		try {
+			NetworkSummary summary = getSummary(networkId);
+			if (summary == null || summary.getIsDeleted())
+				return;
+			if (summary.getReadOnlyCommitId() > 0 && summary.getReadOnlyCommitId() == summary.getReadOnlyCacheId())
+				return;  // read-only networks have their own cache.
+
+			long version = getVersion(summary);
+			long age = System.currentTimeMillis() - version;
+			if (age < settleMillis) {
+				scheduleBuild(networkId, view, encoding, settleMillis - age, false);
+				return;
+			}
+
+			if (snapshotFile(networkId, version, view, encoding).exists())
+				return;
+
+			// requests for this version that arrive while it is written wait for it.
+			SingleFlight<String, File>.Flight flight = reads.lead(getETag(networkId, summary, view, encoding));
+			if (flight == null)
+				return;
+			File snapshot = null;
+			try {
+				snapshot = writeSnapshot(networkId, version, view, encoding);
+			} finally {
+				if (snapshot != null)
+					flight.complete(snapshot);
+				else
+					flight.fail();
+			}
+		} catch (NdexException | IOException | RuntimeException e) {
+			logger.error("Failed to build snapshot of network " + networkId + ".", e);
+		}
+	}
+
+	/**
+	 * Streams the network into a new snapshot of the given version.
+	 *
+	 * @return the snapshot, or null if the network changed while it was read.
+	 */
+	private File writeSnapshot(String networkId, long version, View view, NetworkEncoding encoding)
+			throws IOException, NdexException {
+		File dir = networkDir(networkId);
+		if (!dir.exists())
+			dir.mkdirs();
+		File tmp = new File(dir, version + "." + Thread.currentThread().getId() + ".tmp");
+		File target = snapshotFile(networkId, version, view, encoding);
+
+		try {
+			try (OutputStream gz = new GZIPOutputStream(new FileOutputStream(tmp))) {
+				view.newWriter(networkId, encoding).write(gz);
+			}
+
+			NetworkSummary after = getSummary(networkId);
+			if (after == null || getVersion(after) != version || !tmp.renameTo(target)) {
+				logger.info("Network " + networkId + " changed while its snapshot was built, snapshot discarded.");
+				return null;
+			}
+		} finally {
+			tmp.delete();
+		}
+
+		deleteSnapshots(networkId, version);
+		logger.info("Snapshot of network " + networkId + " built: " + target.length() + " bytes.");
+		return target;
+	}
+
+	private static NetworkSummary getSummary(String networkId) throws NdexException {
+		try (ODatabaseDocumentTx db = ConnectionPoolMonitor.getAConnection()) {
+			ODocument doc = new NetworkDocDAO(db).getNetworkDocByUUIDString(networkId);
+			return doc == null ? null : NetworkDocDAO.getNetworkSummary(doc);
+		}
+	}
+
+	/**
+	 * Deletes every snapshot of the network except those of the given version.
+	 */
+	private void deleteSnapshots(String networkId, long keepVersion) {
+		File[] files = networkDir(networkId).listFiles();
+		if (files == null)
+			return;
+		String keep = keepVersion < 0 ? null : Long.toString(keepVersion);
+		for (File f : files) {
+			String name = f.getName();
+			if (name.endsWith(suffix) && (keep == null || !name.substring(0, name.indexOf('.')).equals(keep)))
+				f.delete();
+		}
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.cache;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ndexbio.common.models.dao.orientdb.NetworkDocDAO;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.exceptions.ObjectNotFoundException;
+import org.ndexbio.model.object.network.NetworkSummary;
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.rest.helpers.RequestConnection;
+import org.ndexbio.task.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+/**
+ * In-memory cache of network summaries keyed by network UUID. Services that
+ * change a network must call {@link #invalidate} after the change is
+ * committed. Entries also expire after a while, so changes made outside the
+ * REST services (e.g. by tasks) are picked up eventually.
+ * <p>
+ * A summary read from the database is only cached if the network was not
+ * invalidated while it was being read. Otherwise a request that read the old
+ * row just before a commit could put it back right after the invalidation,
+ * and a network made private would stay visible until the entry expired.
+ * <p>
+ * The cache is bounded by weight rather than entry count: a summary weighs one
+ * unit plus one per property, so a few summaries with very large property
+ * lists can't take over the heap.
+ */
+public class NetworkSummaryCache {
+
+	static Logger logger = LoggerFactory.getLogger(NetworkSummaryCache.class);
+
+	private static final String SUMMARY_CACHE_ENABLED = "NETWORK_SUMMARY_CACHE";
+	private static final String SUMMARY_CACHE_WEIGHT = "NETWORK_SUMMARY_CACHE_WEIGHT";
+	private static final String SUMMARY_CACHE_TTL_SECONDS = "NETWORK_SUMMARY_CACHE_TTL_SECONDS";
+	private static final long defaultMaxWeight = 200000;
+	private static final long defaultTTLSeconds = 300;
+	private static final int generationStripes = 1024;
+
+	private static NetworkSummaryCache INSTANCE = null;
+
+	private final Cache<String, NetworkSummary> summaries;
+
+	// bumped by invalidate(); networks that share a stripe only cost each other a cache miss.
+	private final long[] generations = new long[generationStripes];
+
+	private NetworkSummaryCache(long maxWeight, long ttlSeconds) {
+		summaries = CacheBuilder.newBuilder()
+				.maximumWeight(maxWeight)
+				.weigher(new Weigher<String, NetworkSummary>() {
+					@Override
+					public int weigh(String key, NetworkSummary summary) {
+						int weight = 1;
+						if (summary.getProperties() != null)
+							weight += summary.getProperties().size();
+						if (summary.getPresentationProperties() != null)
+							weight += summary.getPresentationProperties().size();
+						return weight;
+					}
+				})
+				.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Creates the cache unless NETWORK_SUMMARY_CACHE is set to false in the
+	 * server configuration.
+	 */
+	public static synchronized void startUp(Configuration config) {
+		String enabled = config.getProperty(SUMMARY_CACHE_ENABLED);
+		if (enabled != null && !Boolean.parseBoolean(enabled)) {
+			logger.info("Network summary cache is turned off.");
+			return;
+		}
+
+		long weight = ConfigProperties.getLong(config, SUMMARY_CACHE_WEIGHT, defaultMaxWeight);
+		long ttl = ConfigProperties.getLong(config, SUMMARY_CACHE_TTL_SECONDS, defaultTTLSeconds);
+		INSTANCE = new NetworkSummaryCache(weight, ttl);
+		logger.info("Network summary cache started with max weight " + weight + " and ttl " + ttl + "s.");
+	}
+
+	/**
+	 * @return the cache, or null if it is turned off.
+	 */
+	public static NetworkSummaryCache getInstance() {
+		return INSTANCE;
+	}
+
+	public static synchronized void shutdown() {
+		if (INSTANCE != null) {
+			INSTANCE.summaries.invalidateAll();
+			INSTANCE = null;
+		}
+	}
+
+	/**
+	 * Returns the summary of a network, reading it from the database if it is
+	 * not cached or the cache is turned off. The returned object is shared
+	 * with other requests and must not be modified.
+	 */
+	public static NetworkSummary getSummary(String networkId) throws NdexException {
+		NetworkSummaryCache cache = INSTANCE;
+		if (cache == null)
+			return loadSummary(networkId);
+
+		NetworkSummary summary = cache.summaries.getIfPresent(networkId);
+		if (summary == null) {
+			int stripe = stripe(networkId);
+			long generation;
+			synchronized (cache.generations) {
+				generation = cache.generations[stripe];
+			}
+			summary = loadSummary(networkId);
+			synchronized (cache.generations) {
+				if (cache.generations[stripe] == generation)
+					cache.summaries.put(networkId, summary);
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Drops the cached summary of a network. Called after any committed
+	 * change to the network.
+	 */
+	public static void invalidate(String networkId) {
+		NetworkSummaryCache cache = INSTANCE;
+		if (cache == null)
+			return;
+		synchronized (cache.generations) {
+			cache.generations[stripe(networkId)]++;
+			cache.summaries.invalidate(networkId);
+		}
+	}
+
+	private static int stripe(String networkId) {
+		return (networkId.hashCode() & 0x7fffffff) % generationStripes;
+	}
+
+	/**
+	 * @return hit/miss counts of the cache, or null if it is turned off.
+	 */
+	public static CacheStats getStats() {
+		NetworkSummaryCache cache = INSTANCE;
+		return cache == null ? null : cache.summaries.stats();
+	}
+
+	public static long getSize() {
+		NetworkSummaryCache cache = INSTANCE;
+		return cache == null ? 0 : cache.summaries.size();
+	}
+
+	private static NetworkSummary loadSummary(String networkId) throws NdexException {
+		ODatabaseDocumentTx db = RequestConnection.acquire();
+		try {
+			ODocument doc = new NetworkDocDAO(db).getNetworkDocByUUIDString(networkId);
+			if (doc == null)
+				throw new ObjectNotFoundException("Network with ID: " + networkId + " doesn't exist.");
+			return NetworkDocDAO.getNetworkSummary(doc);
+		} finally {
+			RequestConnection.release(db);
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.cache;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.ndexbio.common.models.dao.orientdb.Helper;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.object.Permissions;
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.rest.helpers.RequestConnection;
+import org.ndexbio.task.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+
+/**
+ * Short-lived cache of network permission decisions, keyed by
+ * (account, network, permission). Services must call
+ * {@link #networkMembershipChanged} after a network membership change and
+ * {@link #invalidateAll} after a group membership change, since group members
+ * inherit the group's network permissions. Network visibility is not
+ * part of these decisions; it is read from the {@link NetworkSummaryCache}.
+ */
+public class PermissionCache {
+
+	static Logger logger = LoggerFactory.getLogger(PermissionCache.class);
+
+	private static final String PERMISSION_CACHE_ENABLED = "PERMISSION_CACHE";
+	private static final String PERMISSION_CACHE_SIZE = "PERMISSION_CACHE_SIZE";
+	private static final String PERMISSION_CACHE_TTL_SECONDS = "PERMISSION_CACHE_TTL_SECONDS";
+	private static final long defaultSize = 100000;
+	private static final long defaultTTLSeconds = 30;
+	private static final int generationStripes = 1024;
+
+	private static PermissionCache INSTANCE = null;
+
+	private final Cache<Key, Boolean> decisions;
+
+	// bumped by the invalidations, so a decision read from the database before
+	// an invalidation is not stored after it; networks that share a stripe only
+	// cost each other a cache miss.
+	private final long[] generations = new long[generationStripes];
+
+	private PermissionCache(long size, long ttlSeconds) {
+		decisions = CacheBuilder.newBuilder()
+				.maximumSize(size)
+				.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Creates the cache unless PERMISSION_CACHE is set to false in the server
+	 * configuration.
+	 */
+	public static synchronized void startUp(Configuration config) {
+		String enabled = config.getProperty(PERMISSION_CACHE_ENABLED);
+		if (enabled != null && !Boolean.parseBoolean(enabled)) {
+			logger.info("Permission cache is turned off.");
+			return;
+		}
+
+		long size = ConfigProperties.getLong(config, PERMISSION_CACHE_SIZE, defaultSize);
+		long ttl = ConfigProperties.getLong(config, PERMISSION_CACHE_TTL_SECONDS, defaultTTLSeconds);
+		INSTANCE = new PermissionCache(size, ttl);
+		logger.info("Permission cache started with size " + size + " and ttl " + ttl + "s.");
+	}
+
+	public static synchronized void shutdown() {
+		if (INSTANCE != null) {
+			INSTANCE.decisions.invalidateAll();
+			INSTANCE = null;
+		}
+	}
+
+	/**
+	 * Checks if the account has the given permission on the network, directly
+	 * or through a group.
+	 *
+	 * @param db
+	 *            connection used on a cache miss. If null, a connection is
+	 *            opened only when the decision is not cached.
+	 */
+	public static boolean hasPermission(ODatabaseDocumentTx db, String accountName, String networkId,
+			Permissions permission) throws NdexException {
+		Key key = new Key(accountName, networkId, permission.name());
+		Boolean cached = lookup(key);
+		if (cached != null)
+			return cached.booleanValue();
+
+		long generation = getGeneration(networkId);
+		boolean result;
+		if (db != null) {
+			result = Helper.checkPermissionOnNetworkByAccountName(db, networkId, accountName, permission);
+		} else {
+			ODatabaseDocumentTx conn = RequestConnection.acquire();
+			try {
+				result = Helper.checkPermissionOnNetworkByAccountName(conn, networkId, accountName, permission);
+			} finally {
+				RequestConnection.release(conn);
+			}
+		}
+		store(key, generation, result);
+		return result;
+	}
+
+	/**
+	 * Checks if the user, given by UUID, is an administrator of the network.
+	 */
+	public static boolean isAdmin(ODatabaseDocumentTx db, String networkId, String userId) throws NdexException {
+		Key key = new Key(userId, networkId, "isAdmin");
+		Boolean cached = lookup(key);
+		if (cached != null)
+			return cached.booleanValue();
+
+		long generation = getGeneration(networkId);
+		boolean result = Helper.isAdminOfNetwork(db, networkId, userId);
+		store(key, generation, result);
+		return result;
+	}
+
+	/**
+	 * Drops every decision about the network.
+	 */
+	public static void networkMembershipChanged(String networkId) {
+		PermissionCache cache = INSTANCE;
+		if (cache == null)
+			return;
+		synchronized (cache.generations) {
+			cache.generations[stripe(networkId)]++;
+			for (Iterator<Key> it = cache.decisions.asMap().keySet().iterator(); it.hasNext();) {
+				if (it.next().networkId.equals(networkId))
+					it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drops every decision. Used after changes whose effect can't be tied to
+	 * one network, e.g. a group membership change, which affects every network
+	 * the group is a member of.
+	 */
+	public static void invalidateAll() {
+		PermissionCache cache = INSTANCE;
+		if (cache == null)
+			return;
+		synchronized (cache.generations) {
+			for (int i = 0; i < generationStripes; i++)
+				cache.generations[i]++;
+			cache.decisions.invalidateAll();
+		}
+	}
+
+	/**
+	 * @return hit/miss counts of the cache, or null if it is turned off.
+	 */
+	public static CacheStats getStats() {
+		PermissionCache cache = INSTANCE;
+		return cache == null ? null : cache.decisions.stats();
+	}
+
+	private static Boolean lookup(Key key) {
+		PermissionCache cache = INSTANCE;
+		return cache == null ? null : cache.decisions.getIfPresent(key);
+	}
+
+	/**
+	 * @return the generation of the network's stripe, to be passed to
+	 *         {@link #store} with the decision read after it.
+	 */
+	private static long getGeneration(String networkId) {
+		PermissionCache cache = INSTANCE;
+		if (cache == null)
+			return 0;
+		synchronized (cache.generations) {
+			return cache.generations[stripe(networkId)];
+		}
+	}
+
+	/**
+	 * Stores the decision unless the network's decisions were invalidated
+	 * since the generation was taken.
+	 */
+	private static void store(Key key, long generation, boolean result) {
+		PermissionCache cache = INSTANCE;
+		if (cache == null)
+			return;
+		synchronized (cache.generations) {
+			if (cache.generations[stripe(key.networkId)] == generation)
+				cache.decisions.put(key, Boolean.valueOf(result));
+		}
+	}
+
+	private static int stripe(String networkId) {
+		return (networkId.hashCode() & 0x7fffffff) % generationStripes;
+	}
+
+	private static final class Key {
+		final String principal;
+		final String networkId;
+		final String check;
+
+		Key(String principal, String networkId, String check) {
+			this.principal = principal;
+			this.networkId = networkId;
+			this.check = check;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return principal.equals(k.principal) && networkId.equals(k.networkId) && check.equals(k.check);
+		}
+
+		@Override
+		public int hashCode() {
+			return (principal.hashCode() * 31 + networkId.hashCode()) * 31 + check.hashCode();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces concurrent requests for the same result. The first caller for a
+ * key becomes the leader and produces the value; callers that arrive while it
+ * is in flight wait for it, or ask to be called back when it is done, instead
+ * of repeating the work. A flight is removed as soon as it completes, so later
+ * callers start a new one.
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, Flight> flights = new ConcurrentHashMap<>();
+	private final long staleAfterMillis;
+
+	/**
+	 * @param staleAfterMillis
+	 *            a flight that has not completed after this long is treated
+	 *            as abandoned, and the next caller may lead a new one.
+	 */
+	public SingleFlight(long staleAfterMillis) {
+		this.staleAfterMillis = staleAfterMillis;
+	}
+
+	/**
+	 * @return a new flight that the caller must complete or fail, or null if
+	 *         another caller is already producing the value for this key.
+	 */
+	public Flight lead(K key) {
+		Flight f = new Flight(key);
+		Flight current = flights.putIfAbsent(key, f);
+		if (current == null)
+			return f;
+		if (current.isStale() && flights.replace(key, current, f)) {
+			current.fail();
+			return f;
+		}
+		return null;
+	}
+
+	/**
+	 * Waits for the flight in progress for this key.
+	 *
+	 * @return the value, or null if no flight is in progress, the leader
+	 *         failed, or the wait timed out.
+	 */
+	public V await(K key, long timeout, TimeUnit unit) throws InterruptedException {
+		Flight f = flights.get(key);
+		return f == null ? null : f.await(timeout, unit);
+	}
+
+	/**
+	 * Runs the callback once the flight in progress for this key completes or
+	 * fails, on the thread that finishes it.
+	 *
+	 * @return false if no flight is in progress, in which case the callback
+	 *         is never run.
+	 */
+	public boolean follow(K key, Runnable callback) {
+		Flight f = flights.get(key);
+		return f != null && f.addFollower(callback);
+	}
+
+	/**
+	 * @return true if a flight that is not stale is producing the value for
+	 *         this key.
+	 */
+	public boolean isInFlight(K key) {
+		Flight f = flights.get(key);
+		return f != null && !f.isStale();
+	}
+
+	public int getInFlightCount() {
+		return flights.size();
+	}
+
+	public class Flight {
+		private final K key;
+		private final long started = System.currentTimeMillis();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile V value;
+		// guarded by this; null once the flight is finished
+		private List<Runnable> followers = new ArrayList<>();
+
+		private Flight(K key) {
+			this.key = key;
+		}
+
+		private boolean isStale() {
+			return System.currentTimeMillis() - started > staleAfterMillis;
+		}
+
+		public void complete(V result) {
+			value = result;
+			finish();
+		}
+
+		public void fail() {
+			value = null;
+			finish();
+		}
+
+		private synchronized boolean addFollower(Runnable callback) {
+			if (followers == null)
+				return false;
+			followers.add(callback);
+			return true;
+		}
+
+		private void finish() {
+			flights.remove(key, this);
+			done.countDown();
+			List<Runnable> toRun;
+			synchronized (this) {
+				toRun = followers;
+				followers = null;
+			}
+			if (toRun != null) {
+				for (Runnable callback : toRun)
+					callback.run();
+			}
+		}
+
+		V await(long timeout, TimeUnit unit) throws InterruptedException {
+			return done.await(timeout, unit) ? value : null;
+		}
+	}
+}
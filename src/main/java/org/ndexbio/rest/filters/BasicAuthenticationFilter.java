@@ -36,13 +36,14 @@ import java.util.List;
 
 import javax.annotation.security.DenyAll;
 import javax.annotation.security.PermitAll;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.container.ContainerRequestContext;
 import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.Provider;
 
 import org.ndexbio.common.models.dao.orientdb.UserDAO;
-import org.ndexbio.common.access.NdexDatabase;
 import org.jboss.resteasy.core.Headers;
 import org.jboss.resteasy.core.ResourceMethodInvoker;
 import org.jboss.resteasy.core.ServerResponse;
@@ -52,13 +53,19 @@ import org.ndexbio.model.exceptions.ObjectNotFoundException;
 import org.ndexbio.model.exceptions.UnauthorizedOperationException;
 import org.ndexbio.model.object.NewUser;
 import org.ndexbio.model.object.User;
+import org.ndexbio.rest.cache.CredentialCache;
+import org.ndexbio.rest.helpers.RequestConnection;
 import org.ndexbio.rest.services.NdexOpenFunction;
 import org.ndexbio.security.DelegatedLDAPAuthenticator;
 import org.ndexbio.security.LDAPAuthenticator;
+import org.ndexbio.security.LoginThrottle;
+import org.ndexbio.security.SessionTokens;
 import org.ndexbio.task.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+
 /*
  * class represents a RestEasy request filter that will validate
  * a user supplied credentials against those stored in the OrientDb database
@@ -76,11 +83,15 @@ public class BasicAuthenticationFilter implements ContainerRequestFilter
     private static final ServerResponse ACCESS_DENIED_USER_NOT_FOUND = 
     		new ServerResponse("User not found.", 401, new Headers<>());
     private static final ServerResponse FORBIDDEN = new ServerResponse("Forbidden.", 403, new Headers<>());
+    private static final int TOO_MANY_REQUESTS = 429;
     private static LDAPAuthenticator ADAuthenticator = null;
     private boolean authenticatedUserOnly = false;
     private static final String AUTHENTICATED_USER_ONLY="AUTHENTICATED_USER_ONLY";
     private static final String AD_CREATE_USER_AUTOMATICALLY="AD_CREATE_USER_AUTOMATICALLY";
     
+    @Context
+    private HttpServletRequest servletRequest;
+    
     public BasicAuthenticationFilter() throws NdexException {
     	super();
     	
@@ -110,18 +121,53 @@ public class BasicAuthenticationFilter implements ContainerRequestFilter
 //        ODatabaseDocumentTx localConnection = null;
         
         String[] authInfo = null;
+        String clientAddress = null;
         User authUser = null;
         boolean authenticated = false;
+
+        // credentials verified recently don't need another trip to the database or AD.
+        final String authorization = requestContext.getHeaderString("Authorization");
+        if ( authorization != null && authorization.startsWith(SessionTokens.BEARER_PREFIX)) {
+        	// signed session tokens carry the user, so they are checked in memory only.
+        	try {
+        		requestContext.setProperty("User",
+        				SessionTokens.verify(authorization.substring(SessionTokens.BEARER_PREFIX.length()).trim()));
+        	} catch (UnauthorizedOperationException e) {
+        		_logger.info("Rejected session token: " + e.getMessage() + " Path:" + requestContext.getUriInfo().getPath());
+        		requestContext.abortWith(ACCESS_DENIED);
+        	}
+        	return;
+        }
+        if ( authorization != null) {
+        	User cachedUser = CredentialCache.get(authorization);
+        	if ( cachedUser != null) {
+        		requestContext.setProperty("User", cachedUser);
+        		return;
+        	}
+        }
+
         try
         {
         	
             authInfo = parseCredentials(requestContext);
             if(authInfo != null) {  // server need to authenticate the user.
+            	clientAddress = LoginThrottle.getClientAddress(servletRequest == null ? null : servletRequest.getRemoteAddr(), 
+            			requestContext.getHeaderString("X-Forwarded-For"));
+            	long retryAfter = LoginThrottle.check(authInfo[0], clientAddress);
+            	if ( retryAfter > 0) {
+            		_logger.info("Login of " + authInfo[0] + " from " + clientAddress + " throttled for " + retryAfter + "s.");
+            		Headers<Object> headers = new Headers<>();
+            		headers.putSingle("Retry-After", Long.toString(retryAfter));
+            		requestContext.abortWith(new ServerResponse("Too many failed login attempts.", TOO_MANY_REQUESTS, headers));
+            		return;
+            	}
             	if (ADAuthenticator !=null ) {
             		if ( ADAuthenticator.authenticateUser(authInfo[0], authInfo[1]) ) {
             			authenticated = true;
             			_logger.info("User " + authInfo[0] + " authenticated by AD.");
-                		try ( UserDAO dao = new UserDAO(NdexDatabase.getInstance().getAConnection()) ) {
+                		ODatabaseDocumentTx db = RequestConnection.acquire();
+                		try {
+                		  UserDAO dao = new UserDAO(db);
                    		  try {
                 			authUser = dao.getUserByAccountName(authInfo[0]);
                    		  } catch (ObjectNotFoundException e) {
@@ -132,20 +178,28 @@ public class BasicAuthenticationFilter implements ContainerRequestFilter
                        			} else 
                        				throw e;
                        	  }	
-                   		} 
+                   		} finally {
+                   		  RequestConnection.release(db);
+                   		}
             		}
             	} else {
             		authInfo[0] = authInfo[0].toLowerCase();
   //          		localConnection = NdexDatabase.getInstance().getAConnection();
-            		try ( UserDAO dao = new UserDAO(NdexDatabase.getInstance().getAConnection()) ) {
-            		 authUser = dao.authenticateUser(authInfo[0],authInfo[1]);
+            		ODatabaseDocumentTx db = RequestConnection.acquire();
+            		try {
+            		 authUser = new UserDAO(db).authenticateUser(authInfo[0],authInfo[1]);
+            		} finally {
+            		 RequestConnection.release(db);
             		}
             	}
             
             	if (authUser != null) {
+            		LoginThrottle.loginSucceeded(authInfo[0]);
+            		CredentialCache.put(authorization, authUser);
             		requestContext.setProperty("User", authUser);
             		return;
             	}
+            	LoginThrottle.loginFailed(authInfo[0], clientAddress);
     /*        	else { 
             		_logger.error("Can't get user object in authentication. URL:" + requestContext.getUriInfo().getPath());
                     requestContext.abortWith(ACCESS_DENIED);
@@ -153,6 +207,8 @@ public class BasicAuthenticationFilter implements ContainerRequestFilter
                 return ; */
             }
         } catch (SecurityException | UnauthorizedOperationException e2 ) {
+            if ( authInfo != null)
+            	LoginThrottle.loginFailed(authInfo[0], clientAddress);
             _logger.info("Failed to authenticate a user: " + (authInfo == null? "": authInfo[0]) + " Path:" +
             		requestContext.getUriInfo().getPath(), e2);
              requestContext.abortWith(ACCESS_DENIED);
@@ -161,6 +217,7 @@ public class BasicAuthenticationFilter implements ContainerRequestFilter
             _logger.info("User: " + authInfo[0] +" not found in Ndex db." /*requestContext.getUriInfo().getPath()*/);
             String mName = method.getName();
             if ( !mName.equals("createUser")) {
+                LoginThrottle.loginFailed(authInfo[0], clientAddress);
                 requestContext.abortWith(ACCESS_DENIED_USER_NOT_FOUND);
                 return;
             }
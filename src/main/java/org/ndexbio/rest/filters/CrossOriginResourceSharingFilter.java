@@ -81,6 +81,9 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.ext.Provider;
 
+import org.ndexbio.rest.helpers.ElementCursor;
+import org.ndexbio.security.SessionTokens;
+
 @Provider
 public class CrossOriginResourceSharingFilter implements ContainerResponseFilter, Filter
 {
@@ -94,6 +97,7 @@ public class CrossOriginResourceSharingFilter implements ContainerResponseFilter
 		headers.putSingle("Access-Control-Allow-Methods", "HEAD, DELETE,GET,OPTIONS,POST,PUT");
 		headers.putSingle("Access-Control-Allow-Headers", "Accept, Content-Type, Authorization, Content-Length, X-Requested-With");
 		headers.putSingle("Access_Control_Allow_Credentials", true);
+		headers.putSingle("Access-Control-Expose-Headers", ElementCursor.NEXT_CURSOR_HEADER + ", " + SessionTokens.TOKEN_HEADER);
 	
 	}
 	
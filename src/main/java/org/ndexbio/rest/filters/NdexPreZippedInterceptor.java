@@ -49,7 +49,8 @@ public class NdexPreZippedInterceptor implements WriterInterceptor {
 		Object o = context.getProperty(NdexService.NdexZipFlag);
 		if ( o!=null && o == Boolean.TRUE) {
 			context.getHeaders().putSingle("Content-Encoding", "gzip");
-			context.getHeaders().putSingle("Vary", "Accept-Encoding");
+			// pre-zipped payloads are also chosen by Accept (JSON, Smile or CBOR).
+			context.getHeaders().putSingle("Vary", "Accept, Accept-Encoding");
 		}
         context.proceed();
 
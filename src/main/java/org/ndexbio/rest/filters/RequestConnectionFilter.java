@@ -28,41 +28,45 @@
  * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  *
  */
-package org.ndexbio.rest.helpers;
+package org.ndexbio.rest.filters;
 
-import javax.ws.rs.FormParam;
-import org.jboss.resteasy.annotations.providers.multipart.PartType;
+import java.io.IOException;
 
-public class UploadedFile
-{
-    private byte[] _fileData;
-    private String _filename;
-    
-    
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 
-    public byte[] getFileData()
-    {
-        return _fileData;
-    }
-    
-    @FormParam("fileUpload")
-    @PartType("application/octet-stream")
-    public void setFileData(byte[] fileData)
-    {
-        _fileData = fileData;
-    }
-    
-    public String getFilename()
-    {
-        return _filename;
-    }
-    
-    @FormParam("filename")
-    public void setFilename(String filename)
-    {
-        if (filename.indexOf("\\") < 0)
-            _filename = filename;
-        else
-            _filename = filename.substring(filename.lastIndexOf("\\") + 1);
-    }
+import org.ndexbio.rest.helpers.RequestConnection;
+
+/*
+ * Opens a RequestConnection scope around the whole request and always closes
+ * it, returning the shared connection to the pool, when the servlet returns,
+ * even if a JAX-RS filter or the service method threw. It is registered in
+ * web.xml so it wraps the RESTEasy servlet.
+ */
+public class RequestConnectionFilter implements Filter {
+
+	@Override
+	public void init(FilterConfig filterConfig) throws ServletException {
+		// nothing to configure
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+			throws IOException, ServletException {
+		RequestConnection.begin();
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			RequestConnection.end();
+		}
+	}
+
+	@Override
+	public void destroy() {
+		// nothing to release
+	}
 }
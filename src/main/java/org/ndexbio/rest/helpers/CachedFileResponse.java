@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.exceptions.ObjectNotFoundException;
+
+/**
+ * Builds the response for a pre-serialized network file. The response carries
+ * a strong ETag, answers If-None-Match with 304 and honors a single byte range
+ * so interrupted downloads can be resumed.
+ * <p>
+ * The file is opened before the response is built, so a file that is gone is
+ * answered with 404 rather than with a 200 whose body can't be written, and
+ * a file deleted later is still sent in full from the open handle.
+ */
+public final class CachedFileResponse {
+
+	private static final String bytesUnit = "bytes";
+
+	private CachedFileResponse() {}
+
+	/**
+	 * @param range
+	 *            the Range request header, may be null.
+	 * @param ifRange
+	 *            the If-Range request header, may be null. The range is only
+	 *            honored if it matches the ETag.
+	 */
+	public static Response build(File file, MediaType type, EntityTag etag, Request request,
+			String range, String ifRange) throws NdexException {
+
+		Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+		if (notModified != null)
+			return notModified.tag(etag).build();
+
+		FileChannel channel;
+		long total;
+		try {
+			// closed by FileRangeStreamingOutput once written
+			channel = new FileInputStream(file).getChannel();
+		} catch (FileNotFoundException e) {
+			throw new ObjectNotFoundException("Ndex server can't find file: " + file.getAbsolutePath());
+		}
+		try {
+			total = channel.size();
+		} catch (IOException e) {
+			close(channel);
+			throw new NdexException("Failed to read file " + file.getAbsolutePath() + ": " + e.getMessage());
+		}
+
+		long[] byteRange = null;
+		if (range != null && (ifRange == null || ifRange.equals(etag.toString())))
+			byteRange = parseRange(range, total);
+
+		if (byteRange == null) {
+			return Response.ok(new FileRangeStreamingOutput(channel, 0, total), type)
+					.tag(etag)
+					.header("Accept-Ranges", bytesUnit)
+					.header("Content-Length", Long.toString(total))
+					.build();
+		}
+
+		if (byteRange.length == 0) {
+			close(channel);
+			return Response.status(416)
+					.tag(etag)
+					.header("Content-Range", bytesUnit + " */" + total)
+					.build();
+		}
+
+		long length = byteRange[1] - byteRange[0] + 1;
+		return Response.status(206)
+				.type(type)
+				.entity(new FileRangeStreamingOutput(channel, byteRange[0], length))
+				.tag(etag)
+				.header("Accept-Ranges", bytesUnit)
+				.header("Content-Range", bytesUnit + " " + byteRange[0] + "-" + byteRange[1] + "/" + total)
+				.header("Content-Length", Long.toString(length))
+				.build();
+	}
+
+	private static void close(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing was read from it
+		}
+	}
+
+	/**
+	 * Parses a single-range Range header.
+	 *
+	 * @return {first, last} byte positions (inclusive), an empty array if the
+	 *         range can't be satisfied, or null if the header should be ignored
+	 *         and the whole file returned (unknown unit, malformed value or a
+	 *         multi-range request).
+	 */
+	static long[] parseRange(String range, long total) {
+		String value = range.trim();
+		if (!value.startsWith(bytesUnit + "="))
+			return null;
+		value = value.substring(bytesUnit.length() + 1).trim();
+		if (value.indexOf(',') >= 0)
+			return null;
+
+		int dash = value.indexOf('-');
+		if (dash < 0)
+			return null;
+
+		String first = value.substring(0, dash).trim();
+		String last = value.substring(dash + 1).trim();
+		try {
+			if (first.isEmpty()) {
+				if (last.isEmpty())
+					return null;
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0 || total == 0)
+					return new long[0];
+				return new long[] { Math.max(0, total - suffix), total - 1 };
+			}
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+			if (end < start)
+				return null;
+			if (start >= total)
+				return new long[0];
+			return new long[] { start, Math.min(end, total - 1) };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
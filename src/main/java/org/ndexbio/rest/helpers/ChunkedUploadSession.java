@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+/**
+ * State of a chunked network upload. The client sends filename, size and
+ * optionally the SHA-256 checksum of the whole file to open a session, and
+ * gets back the session id, the chunk size and which chunks are still
+ * missing. The same object is saved next to the uploaded data, so a session
+ * survives a server restart.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ChunkedUploadSession {
+
+	private String sessionId;
+	private String owner;
+	private String filename;
+	private long size;
+	private long chunkSize;
+	private String checksum;
+	private long lastModified;
+	private String[] chunkChecksums;
+
+	// kept by ChunkedUploads under the session's lock and never saved: the
+	// number of chunks being written, and whether the session was committed or
+	// aborted.
+	int writers;
+	boolean closed;
+
+	public String getSessionId() {
+		return sessionId;
+	}
+
+	public void setSessionId(String sessionId) {
+		this.sessionId = sessionId;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public void setOwner(String owner) {
+		this.owner = owner;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	public void setFilename(String filename) {
+		this.filename = filename;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(long chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @return the SHA-256 of the whole file in hex, or null if the client
+	 *         didn't send one.
+	 */
+	public String getChecksum() {
+		return checksum;
+	}
+
+	public void setChecksum(String checksum) {
+		this.checksum = checksum;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public void setLastModified(long lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @return the SHA-256 of each chunk received so far, null for the ones
+	 *         still missing.
+	 */
+	public String[] getChunkChecksums() {
+		return chunkChecksums;
+	}
+
+	public void setChunkChecksums(String[] chunkChecksums) {
+		this.chunkChecksums = chunkChecksums;
+	}
+
+	public int getChunkCount() {
+		return (int) ((size + chunkSize - 1) / chunkSize);
+	}
+
+	public List<Integer> getMissingChunks() {
+		List<Integer> missing = new ArrayList<>();
+		for (int i = 0; i < chunkChecksums.length; i++) {
+			if (chunkChecksums[i] == null)
+				missing.add(i);
+		}
+		return missing;
+	}
+
+	/**
+	 * @return the number of bytes chunk i must have.
+	 */
+	public long getChunkLength(int i) {
+		return Math.min(chunkSize, size - i * chunkSize);
+	}
+}
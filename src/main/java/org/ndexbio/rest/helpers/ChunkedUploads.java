@@ -0,0 +1,388 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.exceptions.ObjectNotFoundException;
+import org.ndexbio.model.exceptions.UnauthorizedOperationException;
+import org.ndexbio.task.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Keeps the sessions of chunked network uploads. The data of a session goes
+ * into &lt;sessionId&gt;.chunks in uploaded-networks, each chunk written at its
+ * own offset, so chunks can arrive in any order, in parallel, and again after
+ * a failure. The session itself is saved as &lt;sessionId&gt;.session after each
+ * chunk, so an upload can be resumed after a server restart too. Sessions not
+ * touched for UPLOAD_SESSION_TTL_HOURS are deleted.
+ * <p>
+ * A session is closed under its lock when it is committed or aborted, and a
+ * chunk is only written to a session that is open, so a late chunk can't
+ * bring back the files of a closed session. A commit is refused while chunks
+ * are still being written.
+ */
+public class ChunkedUploads {
+
+	static Logger logger = LoggerFactory.getLogger(ChunkedUploads.class);
+
+	private static final String UPLOAD_CHUNK_SIZE = "UPLOAD_CHUNK_SIZE";
+	private static final String UPLOAD_SESSION_TTL_HOURS = "UPLOAD_SESSION_TTL_HOURS";
+	private static final long defaultChunkSize = 8L * 1024 * 1024;
+	private static final long defaultTTLHours = 24;
+	private static final long minChunkSize = 64 * 1024;
+	private static final String dataSuffix = ".chunks";
+	private static final String sessionSuffix = ".session";
+
+	private static ChunkedUploads INSTANCE = null;
+
+	private final File directory;
+	private final long chunkSize;
+	private final long ttlMillis;
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final ConcurrentMap<String, ChunkedUploadSession> sessions = new ConcurrentHashMap<>();
+
+	private ChunkedUploads(File directory, long chunkSize, long ttlHours) {
+		this.directory = directory;
+		this.chunkSize = chunkSize;
+		this.ttlMillis = TimeUnit.HOURS.toMillis(ttlHours);
+	}
+
+	public static synchronized void startUp(Configuration config) {
+		File directory = new File(config.getNdexRoot() + "/uploaded-networks");
+		if (!directory.exists())
+			directory.mkdir();
+		long chunkSize = Math.max(minChunkSize, ConfigProperties.getLong(config, UPLOAD_CHUNK_SIZE, defaultChunkSize));
+		long ttlHours = ConfigProperties.getLong(config, UPLOAD_SESSION_TTL_HOURS, defaultTTLHours);
+
+		INSTANCE = new ChunkedUploads(directory, chunkSize, ttlHours);
+		INSTANCE.removeExpired();
+		logger.info("Chunked uploads use " + chunkSize + " byte chunks, sessions expire after " + ttlHours + "h.");
+	}
+
+	public static synchronized void shutdown() {
+		INSTANCE = null;
+	}
+
+	private static ChunkedUploads getInstance() throws NdexException {
+		ChunkedUploads uploads = INSTANCE;
+		if (uploads == null)
+			throw new NdexException("Chunked uploads are not available.");
+		return uploads;
+	}
+
+	/**
+	 * Opens a session for a file of the given size.
+	 * 
+	 * @param checksum
+	 *            the SHA-256 of the whole file in hex, checked on commit; may be
+	 *            null.
+	 */
+	public static ChunkedUploadSession create(UUID sessionId, String owner, String filename, long size,
+			String checksum) throws NdexException {
+		ChunkedUploads uploads = getInstance();
+		uploads.removeExpired();
+
+		ChunkedUploadSession session = new ChunkedUploadSession();
+		session.setSessionId(sessionId.toString());
+		session.setOwner(owner);
+		session.setFilename(filename);
+		session.setSize(size);
+		session.setChunkSize(uploads.chunkSize);
+		session.setChecksum(checksum == null ? null : checksum.trim().toLowerCase());
+		session.setChunkChecksums(new String[session.getChunkCount()]);
+
+		try {
+			Files.createFile(uploads.dataFile(session.getSessionId()).toPath());
+			uploads.save(session);
+		} catch (IOException e) {
+			throw new NdexException("Failed to create upload session: " + e.getMessage());
+		}
+		uploads.sessions.put(session.getSessionId(), session);
+		return session;
+	}
+
+	/**
+	 * @throws ObjectNotFoundException
+	 *             if there is no such session.
+	 * @throws UnauthorizedOperationException
+	 *             if the session belongs to another user.
+	 */
+	public static ChunkedUploadSession get(String sessionId, String owner) throws NdexException {
+		return getInstance().find(sessionId, owner);
+	}
+
+	/**
+	 * Writes one chunk at its place in the file. A chunk that was received
+	 * before is overwritten.
+	 * 
+	 * @param checksum
+	 *            the SHA-256 of the chunk in hex; may be null. The chunk is not
+	 *            counted as received if it doesn't match.
+	 */
+	public static ChunkedUploadSession writeChunk(ChunkedUploadSession session, int chunk, InputStream data,
+			String checksum) throws NdexException {
+		ChunkedUploads uploads = getInstance();
+		if (chunk < 0 || chunk >= session.getChunkCount())
+			throw new NdexException("Chunk " + chunk + " is out of range; the upload has " + session.getChunkCount()
+					+ " chunks.");
+
+		uploads.beginWrite(session, chunk);
+		String actual = null;
+		try {
+			long expected = session.getChunkLength(chunk);
+			MessageDigest digest = UploadWriter.newDigest();
+			long written;
+			try (FileChannel out = FileChannel.open(uploads.dataFile(session.getSessionId()).toPath(),
+					StandardOpenOption.WRITE)) {
+				written = UploadWriter.write(data, out, chunk * session.getChunkSize(), expected, digest);
+			} catch (IOException e) {
+				throw new NdexException("Failed to write chunk " + chunk + ": " + e.getMessage());
+			}
+			if (written != expected)
+				throw new NdexException("Chunk " + chunk + " has " + written + " bytes, expected " + expected + ".");
+
+			String received = UploadWriter.toHex(digest.digest());
+			if (checksum != null && !checksum.trim().equalsIgnoreCase(received))
+				throw new NdexException("Checksum of chunk " + chunk + " is " + received + ", expected " + checksum + ".");
+			actual = received;
+		} finally {
+			uploads.endWrite(session, chunk, actual);
+		}
+		return session;
+	}
+
+	/**
+	 * Takes over a committed upload, e.g. by creating the task that loads it.
+	 */
+	public interface Handoff {
+		void accept(File file) throws NdexException;
+	}
+
+	/**
+	 * Checks that all chunks are there and that the file matches the checksum
+	 * given when the session was opened, moves the file to target and hands it
+	 * over. The session is only closed once the handoff succeeded; if it fails
+	 * the file is moved back, so the commit can be tried again.
+	 */
+	public static void commit(ChunkedUploadSession session, File target, Handoff handoff) throws NdexException {
+		ChunkedUploads uploads = getInstance();
+		synchronized (session) {
+			checkOpen(session);
+			if (session.writers > 0)
+				throw new NdexException("Chunks of the upload are still being written.");
+			if (!session.getMissingChunks().isEmpty())
+				throw new NdexException("Upload is missing chunks " + session.getMissingChunks() + ".");
+
+			File data = uploads.dataFile(session.getSessionId());
+			try {
+				if (session.getChecksum() != null) {
+					String actual = checksum(data);
+					if (!actual.equals(session.getChecksum()))
+						throw new NdexException("Checksum of the uploaded file is " + actual + ", expected "
+								+ session.getChecksum() + ".");
+				}
+				Files.move(data.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				throw new NdexException("Failed to save uploaded file: " + e.getMessage());
+			}
+
+			boolean handedOff = false;
+			try {
+				handoff.accept(target);
+				handedOff = true;
+			} finally {
+				if (!handedOff) {
+					try {
+						Files.move(target.toPath(), data.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					} catch (IOException e) {
+						logger.error("Failed to move " + target + " back to upload session " + session.getSessionId()
+								+ ": " + e.getMessage());
+					}
+				}
+			}
+			uploads.remove(session.getSessionId());
+		}
+	}
+
+	/**
+	 * Closes the session and deletes what was uploaded.
+	 */
+	public static void abort(ChunkedUploadSession session) throws NdexException {
+		getInstance().remove(session.getSessionId());
+	}
+
+	private ChunkedUploadSession find(String sessionId, String owner) throws NdexException {
+		ChunkedUploadSession session = sessions.get(sessionId);
+		if (session == null) {
+			// started before a restart
+			if (!isSessionId(sessionId) || !sessionFile(sessionId).isFile())
+				throw new ObjectNotFoundException("Upload session " + sessionId + " doesn't exist.");
+			try {
+				session = mapper.readValue(sessionFile(sessionId), ChunkedUploadSession.class);
+			} catch (IOException e) {
+				throw new NdexException("Failed to read upload session " + sessionId + ": " + e.getMessage());
+			}
+			ChunkedUploadSession existing = sessions.putIfAbsent(sessionId, session);
+			if (existing != null)
+				session = existing;
+		}
+		if (!session.getOwner().equals(owner))
+			throw new UnauthorizedOperationException("Upload session " + sessionId + " belongs to another user.");
+		return session;
+	}
+
+	/**
+	 * Counts a chunk as missing until it has been written in full, and the
+	 * writer as active, so the session is not committed meanwhile.
+	 */
+	private void beginWrite(ChunkedUploadSession session, int chunk) throws NdexException {
+		synchronized (session) {
+			checkOpen(session);
+			if (session.getChunkChecksums()[chunk] != null) {
+				session.getChunkChecksums()[chunk] = null;
+				save(session, chunk);
+			}
+			session.writers++;
+		}
+	}
+
+	/**
+	 * @param checksum
+	 *            the checksum of the chunk, or null if it was not written in full.
+	 */
+	private void endWrite(ChunkedUploadSession session, int chunk, String checksum) throws NdexException {
+		synchronized (session) {
+			session.writers--;
+			if (checksum == null)
+				return;
+			checkOpen(session);
+			session.getChunkChecksums()[chunk] = checksum;
+			save(session, chunk);
+		}
+	}
+
+	private static void checkOpen(ChunkedUploadSession session) throws ObjectNotFoundException {
+		if (session.closed)
+			throw new ObjectNotFoundException("Upload session " + session.getSessionId() + " is closed.");
+	}
+
+	private void save(ChunkedUploadSession session, int chunk) throws NdexException {
+		try {
+			save(session);
+		} catch (IOException e) {
+			throw new NdexException("Failed to save upload session after chunk " + chunk + ": " + e.getMessage());
+		}
+	}
+
+	private void save(ChunkedUploadSession session) throws IOException {
+		session.setLastModified(System.currentTimeMillis());
+		File tmp = new File(directory, session.getSessionId() + sessionSuffix + ".tmp");
+		mapper.writeValue(tmp, session);
+		Files.move(tmp.toPath(), sessionFile(session.getSessionId()).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void remove(String sessionId) {
+		ChunkedUploadSession session = sessions.remove(sessionId);
+		if (session != null) {
+			synchronized (session) {
+				session.closed = true;
+			}
+		}
+		sessionFile(sessionId).delete();
+		dataFile(sessionId).delete();
+	}
+
+	private void removeExpired() {
+		final long cutoff = System.currentTimeMillis() - ttlMillis;
+		File[] expired = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.getName().endsWith(sessionSuffix) && f.lastModified() < cutoff;
+			}
+		});
+		if (expired == null)
+			return;
+		for (File f : expired) {
+			String sessionId = f.getName().substring(0, f.getName().length() - sessionSuffix.length());
+			logger.info("Removing expired upload session " + sessionId);
+			remove(sessionId);
+		}
+	}
+
+	private File dataFile(String sessionId) {
+		return new File(directory, sessionId + dataSuffix);
+	}
+
+	private File sessionFile(String sessionId) {
+		return new File(directory, sessionId + sessionSuffix);
+	}
+
+	private static boolean isSessionId(String sessionId) {
+		try {
+			UUID.fromString(sessionId);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	private static String checksum(File file) throws IOException {
+		MessageDigest digest = UploadWriter.newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (in.read(buffer) != -1) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return UploadWriter.toHex(digest.digest());
+	}
+}
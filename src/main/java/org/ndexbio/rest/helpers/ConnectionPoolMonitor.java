@@ -0,0 +1,403 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ndexbio.common.access.NdexDatabase;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.task.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+
+/**
+ * Instruments {@link NdexDatabase#getAConnection()}: records how long callers
+ * wait for a connection, how many are in use and how long they are held, and
+ * reports connections held past a threshold. With DB_CONNECTION_TRACE on it
+ * also records where each connection was taken.
+ * <p>
+ * Connections are handed back by closing them, which can happen anywhere, so
+ * a background task checks the open connections once a second instead of
+ * hooking every close. Hold times are therefore accurate to about a second.
+ * <p>
+ * From the wait times the monitor also works out a pool size between
+ * NDEX_DBCONNECTION_POOL_MIN_SIZE and NDEX_DBCONNECTION_POOL_MAX_SIZE. The
+ * pool in ndex-common can't be resized while running, so the target is
+ * reported and logged for the next restart rather than applied.
+ */
+public class ConnectionPoolMonitor {
+
+	static Logger logger = LoggerFactory.getLogger(ConnectionPoolMonitor.class);
+
+	private static final String DB_CONNECTION_MONITOR = "DB_CONNECTION_MONITOR";
+	private static final String DB_CONNECTION_LEAK_SECONDS = "DB_CONNECTION_LEAK_SECONDS";
+	private static final String DB_CONNECTION_TRACE = "DB_CONNECTION_TRACE";
+	private static final String DB_CONNECTION_TARGET_WAIT_MILLIS = "DB_CONNECTION_TARGET_WAIT_MILLIS";
+	private static final String NDEX_DBCONNECTION_POOL_MIN_SIZE = "NDEX_DBCONNECTION_POOL_MIN_SIZE";
+	private static final String NDEX_DBCONNECTION_POOL_MAX_SIZE = "NDEX_DBCONNECTION_POOL_MAX_SIZE";
+	private static final long defaultLeakSeconds = 60;
+	private static final long defaultTargetWaitMillis = 50;
+	private static final long sizingIntervalSeconds = 10;
+	private static final int maxReportedLeaks = 20;
+
+	private static ConnectionPoolMonitor INSTANCE = null;
+
+	private static final class Lease {
+		final long acquiredAt = System.currentTimeMillis();
+		final String thread = Thread.currentThread().getName();
+		final Throwable origin;
+		boolean reported;
+
+		Lease(boolean trace) {
+			origin = trace ? new Throwable("Connection acquired here") : null;
+		}
+	}
+
+	private final Map<ODatabaseDocumentTx, Lease> leases = new IdentityHashMap<>();
+	private final ScheduledExecutorService scanner;
+	private final long leakMillis;
+	private final boolean trace;
+	private final long targetWaitNanos;
+	private final int minSize;
+	private final int maxSize;
+	private final int configuredSize;
+	private volatile int targetSize;
+
+	private final AtomicLong acquires = new AtomicLong();
+	private final AtomicLong acquireFailures = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong releases = new AtomicLong();
+	private final AtomicLong holdMillis = new AtomicLong();
+	private final AtomicLong maxHoldMillis = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+	private final AtomicInteger external = new AtomicInteger();
+	private volatile int peakInUse;
+
+	// activity since the last sizing decision
+	private final AtomicLong windowAcquires = new AtomicLong();
+	private final AtomicLong windowWaitNanos = new AtomicLong();
+	private volatile int windowPeakInUse;
+
+	private ConnectionPoolMonitor(int poolSize, int minSize, int maxSize, long leakSeconds, boolean trace,
+			long targetWaitMillis) {
+		this.configuredSize = poolSize;
+		this.targetSize = poolSize;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.leakMillis = TimeUnit.SECONDS.toMillis(leakSeconds);
+		this.trace = trace;
+		this.targetWaitNanos = TimeUnit.MILLISECONDS.toNanos(targetWaitMillis);
+		this.scanner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "db-connection-monitor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scanner.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					scan();
+				} catch (RuntimeException e) {
+					logger.error("Failed to check database connections.", e);
+				}
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+		scanner.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				resize();
+			}
+		}, sizingIntervalSeconds, sizingIntervalSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Starts monitoring unless DB_CONNECTION_MONITOR is set to false in the
+	 * server configuration.
+	 * 
+	 * @param poolSize
+	 *            the size the pool was created with.
+	 */
+	public static synchronized void startUp(Configuration config, int poolSize) {
+		String enabled = config.getProperty(DB_CONNECTION_MONITOR);
+		if (enabled != null && !Boolean.parseBoolean(enabled)) {
+			logger.info("Database connection monitor is turned off.");
+			return;
+		}
+
+		int minSize = (int) ConfigProperties.getLong(config, NDEX_DBCONNECTION_POOL_MIN_SIZE, Math.max(1, poolSize / 2));
+		int maxSize = (int) ConfigProperties.getLong(config, NDEX_DBCONNECTION_POOL_MAX_SIZE, poolSize * 2);
+		long leakSeconds = ConfigProperties.getLong(config, DB_CONNECTION_LEAK_SECONDS, defaultLeakSeconds);
+		long targetWait = ConfigProperties.getLong(config, DB_CONNECTION_TARGET_WAIT_MILLIS, defaultTargetWaitMillis);
+		// capturing a stack trace on every acquire is costly, so it is only done when asked for.
+		boolean trace = Boolean.parseBoolean(config.getProperty(DB_CONNECTION_TRACE));
+
+		INSTANCE = new ConnectionPoolMonitor(poolSize, minSize, Math.max(minSize, maxSize), leakSeconds, trace, targetWait);
+		logger.info("Database connection monitor started; connections held over " + leakSeconds + "s are reported.");
+	}
+
+	public static synchronized void shutdown() {
+		if (INSTANCE != null) {
+			INSTANCE.scanner.shutdownNow();
+			INSTANCE = null;
+		}
+	}
+
+	/**
+	 * Takes a connection from the pool, recording the wait. Callers close it
+	 * as usual.
+	 */
+	public static ODatabaseDocumentTx getAConnection() throws NdexException {
+		ConnectionPoolMonitor monitor = INSTANCE;
+		if (monitor == null)
+			return NdexDatabase.getInstance().getAConnection();
+		return monitor.acquire();
+	}
+
+	/**
+	 * A connection counted by {@link #countExternal}, until it is closed.
+	 */
+	public static final class External implements AutoCloseable {
+		private final ConnectionPoolMonitor monitor;
+		private boolean closed;
+
+		private External(ConnectionPoolMonitor monitor) {
+			this.monitor = monitor;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (closed)
+				return;
+			closed = true;
+			if (monitor != null)
+				monitor.external.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts a connection that a DAO takes from NdexDatabase by itself, such
+	 * as NetworkDAOTx, as in use until the returned handle is closed. Its wait
+	 * and hold times are not recorded, but it is part of the utilization.
+	 */
+	public static External countExternal() {
+		ConnectionPoolMonitor monitor = INSTANCE;
+		if (monitor != null)
+			monitor.external.incrementAndGet();
+		return new External(monitor);
+	}
+
+	private ODatabaseDocumentTx acquire() throws NdexException {
+		long start = System.nanoTime();
+		ODatabaseDocumentTx db;
+		try {
+			db = NdexDatabase.getInstance().getAConnection();
+		} catch (NdexException | RuntimeException e) {
+			acquireFailures.incrementAndGet();
+			throw e;
+		}
+		long waited = System.nanoTime() - start;
+
+		acquires.incrementAndGet();
+		waitNanos.addAndGet(waited);
+		windowAcquires.incrementAndGet();
+		windowWaitNanos.addAndGet(waited);
+		updateMax(maxWaitNanos, waited);
+
+		Lease lease = new Lease(trace);
+		synchronized (leases) {
+			// a pooled connection is reused after it is closed, so an old lease on the same object is over.
+			Lease old = leases.put(db, lease);
+			if (old != null)
+				released(old, lease.acquiredAt);
+			int inUse = leases.size();
+			if (inUse > peakInUse)
+				peakInUse = inUse;
+			if (inUse > windowPeakInUse)
+				windowPeakInUse = inUse;
+		}
+		return db;
+	}
+
+	private void scan() {
+		long now = System.currentTimeMillis();
+		List<Lease> leaked = new ArrayList<>();
+		synchronized (leases) {
+			for (Iterator<Map.Entry<ODatabaseDocumentTx, Lease>> it = leases.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<ODatabaseDocumentTx, Lease> e = it.next();
+				Lease lease = e.getValue();
+				if (e.getKey().isClosed()) {
+					it.remove();
+					released(lease, now);
+				} else if (!lease.reported && now - lease.acquiredAt > leakMillis) {
+					lease.reported = true;
+					leaked.add(lease);
+				}
+			}
+		}
+		for (Lease lease : leaked) {
+			leaks.incrementAndGet();
+			String message = "Database connection taken by thread " + lease.thread + " has been held for "
+					+ TimeUnit.MILLISECONDS.toSeconds(now - lease.acquiredAt) + "s.";
+			if (lease.origin != null)
+				logger.warn(message, lease.origin);
+			else
+				logger.warn(message);
+		}
+	}
+
+	private void released(Lease lease, long now) {
+		long held = now - lease.acquiredAt;
+		releases.incrementAndGet();
+		holdMillis.addAndGet(held);
+		updateMax(maxHoldMillis, held);
+		if (lease.reported)
+			logger.info("Database connection taken by thread " + lease.thread + " was released after "
+					+ TimeUnit.MILLISECONDS.toSeconds(held) + "s.");
+	}
+
+	private void resize() {
+		long count = windowAcquires.getAndSet(0);
+		long waited = windowWaitNanos.getAndSet(0);
+		int peak = windowPeakInUse;
+		windowPeakInUse = 0;
+
+		int size = targetSize;
+		int newSize = size;
+		long avgWait = count == 0 ? 0 : waited / count;
+		if (avgWait > targetWaitNanos && peak >= size * 9 / 10)
+			newSize = Math.min(maxSize, size + Math.max(1, size / 4));
+		else if (avgWait < targetWaitNanos / 10 && peak < size / 2)
+			newSize = Math.max(minSize, size - Math.max(1, size / 5));
+
+		if (newSize != size) {
+			targetSize = newSize;
+			logger.info("Database connection pool target size changed from " + size + " to " + newSize
+					+ " (average wait " + TimeUnit.NANOSECONDS.toMillis(avgWait) + "ms, peak in use " + peak + ").");
+		}
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value))
+				break;
+		}
+	}
+
+	/**
+	 * @return counters and the connections held past the leak threshold, or
+	 *         null if the monitor is turned off.
+	 */
+	public static Map<String, Object> getStatus() {
+		ConnectionPoolMonitor monitor = INSTANCE;
+		if (monitor == null)
+			return null;
+		return monitor.status();
+	}
+
+	/**
+	 * A cheap measure of foreground load for background work that should back
+	 * off while the server is busy.
+	 *
+	 * @return the share of the pool in use, or -1 if the monitor is turned
+	 *         off.
+	 */
+	public static double getUtilization() {
+		ConnectionPoolMonitor monitor = INSTANCE;
+		if (monitor == null)
+			return -1;
+		synchronized (monitor.leases) {
+			return (double) (monitor.leases.size() + monitor.external.get()) / monitor.configuredSize;
+		}
+	}
+
+	private Map<String, Object> status() {
+		long now = System.currentTimeMillis();
+		Map<String, Object> result = new LinkedHashMap<>();
+		long count = acquires.get();
+		long released = releases.get();
+
+		List<Map<String, Object>> held = new ArrayList<>();
+		int inUse;
+		synchronized (leases) {
+			inUse = leases.size();
+			for (Lease lease : leases.values()) {
+				if (now - lease.acquiredAt > leakMillis && held.size() < maxReportedLeaks) {
+					Map<String, Object> entry = new LinkedHashMap<>();
+					entry.put("thread", lease.thread);
+					entry.put("heldSeconds", TimeUnit.MILLISECONDS.toSeconds(now - lease.acquiredAt));
+					if (lease.origin != null) {
+						List<String> frames = new ArrayList<>();
+						for (StackTraceElement frame : lease.origin.getStackTrace())
+							frames.add(frame.toString());
+						entry.put("acquiredAt", frames);
+					}
+					held.add(entry);
+				}
+			}
+		}
+
+		result.put("configuredSize", configuredSize);
+		result.put("targetSize", targetSize);
+		result.put("minSize", minSize);
+		result.put("maxSize", maxSize);
+		result.put("inUse", inUse);
+		result.put("externalInUse", external.get());
+		result.put("peakInUse", peakInUse);
+		result.put("acquires", count);
+		result.put("acquireFailures", acquireFailures.get());
+		result.put("avgWaitMillis", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitNanos.get() / count));
+		result.put("maxWaitMillis", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+		result.put("avgHoldMillis", released == 0 ? 0 : holdMillis.get() / released);
+		result.put("maxHoldMillis", maxHoldMillis.get());
+		result.put("leakThresholdSeconds", TimeUnit.MILLISECONDS.toSeconds(leakMillis));
+		result.put("leaksDetected", leaks.get());
+		result.put("heldPastThreshold", held);
+		return result;
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import org.ndexbio.common.models.dao.orientdb.NetworkDAO;
+import org.ndexbio.common.models.dao.orientdb.NetworkDocDAO;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.exceptions.ObjectNotFoundException;
+import org.ndexbio.model.object.network.Edge;
+import org.ndexbio.model.object.network.Network;
+import org.ndexbio.model.object.network.NetworkSummary;
+import org.ndexbio.model.object.network.PropertyGraphEdge;
+import org.ndexbio.model.object.network.PropertyGraphNetwork;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+/**
+ * Reads a network block by block using an {@link ElementCursor}. Each block starts
+ * right after the last edge of the previous block, found by a record id seek,
+ * and only the edges of the block are loaded.
+ */
+public class EdgeBlockReader {
+
+	private final ODatabaseDocumentTx db;
+	private final NetworkDAO dao;
+	private final ElementBlockQuery edgeQuery;
+
+	public EdgeBlockReader(ODatabaseDocumentTx db) {
+		this.db = db;
+		this.dao = new NetworkDAO(db);
+		this.edgeQuery = new ElementBlockQuery(db, NetworkElementType.EDGE);
+	}
+
+	/**
+	 * @return the token for the block after the last one read, or null if the
+	 *         last block reached the end of the network.
+	 */
+	public String getNextCursor() {
+		return edgeQuery.getNextCursor();
+	}
+
+	public Network getNetworkBlock(String networkId, String cursor, int blockSize)
+			throws NdexException {
+		ODocument networkDoc = getNetworkDoc(networkId);
+		NetworkSummary summary = NetworkDocDAO.getNetworkSummary(networkDoc);
+		Network network = new Network();
+		network.setExternalId(summary.getExternalId());
+		network.setName(summary.getName());
+
+		for (ORID rid : edgeQuery.after(networkDoc, cursor, blockSize)) {
+			ODocument edgeDoc = db.load(rid);
+			if (edgeDoc == null)
+				continue;
+			Edge e = dao.getEdgeFromDocument(edgeDoc, network);
+			network.getEdges().put(e.getId(), e);
+		}
+		network.setEdgeCount(network.getEdges().size());
+		network.setNodeCount(network.getNodes().size());
+		return network;
+	}
+
+	public PropertyGraphNetwork getPropertyGraphBlock(String networkId, String cursor,
+			int blockSize) throws NdexException {
+		ODocument networkDoc = getNetworkDoc(networkId);
+		PropertyGraphNetwork network = new PropertyGraphNetwork();
+
+		for (ORID rid : edgeQuery.after(networkDoc, cursor, blockSize)) {
+			ODocument edgeDoc = db.load(rid);
+			if (edgeDoc == null)
+				continue;
+			PropertyGraphEdge e = dao.getPropertyGraphEdge(edgeDoc, network);
+			network.getEdges().put(e.getId(), e);
+		}
+		return network;
+	}
+
+	private ODocument getNetworkDoc(String networkId) throws NdexException {
+		ODocument networkDoc = dao.getNetworkDocByUUIDString(networkId);
+		if (networkDoc == null)
+			throw new ObjectNotFoundException("Network with ID: " + networkId + " doesn't exist.");
+		return networkDoc;
+	}
+}
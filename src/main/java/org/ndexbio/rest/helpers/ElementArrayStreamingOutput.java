@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.ndexbio.common.models.dao.orientdb.NetworkDocDAO;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.object.network.Network;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+/**
+ * Writes a block of network elements as an array in the given encoding. It
+ * takes the record ids of the block from {@link ElementBlockQuery}; each
+ * element is loaded, converted and written one at a time when the response is
+ * sent, so every record is read once.
+ */
+public class ElementArrayStreamingOutput implements StreamingOutput {
+
+	static Logger logger = LoggerFactory.getLogger(ElementArrayStreamingOutput.class);
+
+	private final NetworkElementType type;
+	private final List<ORID> rids;
+	private final ObjectMapper mapper;
+
+	public ElementArrayStreamingOutput(NetworkElementType type, List<ORID> rids,
+			NetworkEncoding encoding) {
+		this.type = type;
+		this.mapper = encoding.getMapper();
+		this.rids = rids;
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException,
+			WebApplicationException {
+
+		ODatabaseDocumentTx db = null;
+		try {
+			db = RequestConnection.acquire();
+			NetworkDocDAO dao = new NetworkDocDAO(db);
+			// references shared by the elements of the block are loaded once.
+			Network lookup = NetworkElementType.newLookup(NetworkStreamingOutput.LOOKUP_SIZE);
+			JsonGenerator g = mapper.getFactory().createGenerator(output);
+			g.writeStartArray();
+			for (ORID rid : rids) {
+				ODocument doc = db.load(rid);
+				if (doc != null)
+					g.writeObject(type.readShared(dao, doc, lookup));
+			}
+			g.writeEndArray();
+			g.flush();
+		} catch (NdexException e) {
+			logger.error("Failed to stream " + type.getJsonField() + ".", e);
+			throw new WebApplicationException(e);
+		} finally {
+			RequestConnection.release(db);
+		}
+	}
+}
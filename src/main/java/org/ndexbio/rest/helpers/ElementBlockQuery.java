@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.ndexbio.model.exceptions.NdexException;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+
+/**
+ * Reads one block of the elements of a given type that belong to a network.
+ * Blocks can be addressed either by an {@link ElementCursor} or by the older
+ * skipBlocks/blockSize pair.
+ * <p>
+ * A cursor is a keyset: it holds the record id of the last element read, and
+ * the next block is a range query on the element class starting right after
+ * it, in record id order. OrientDB serves an <code>@rid</code> range by
+ * browsing the cluster from that position, so a block costs the same wherever
+ * it is in the network. The range is capped by the highest record id the
+ * network linked when paging started, which keeps the last block from
+ * browsing into the elements of networks created later.
+ * <p>
+ * skipBlocks has offset semantics, so it walks the network's own links up to
+ * the block without loading their records.
+ * <p>
+ * Either way only the record ids of the block are returned; the records are
+ * loaded once, when the block is written.
+ */
+public class ElementBlockQuery {
+
+	private final ODatabaseDocumentTx db;
+	private final NetworkElementType type;
+	private String nextCursor;
+
+	public ElementBlockQuery(ODatabaseDocumentTx db, NetworkElementType type) {
+		this.db = db;
+		this.type = type;
+	}
+
+	/**
+	 * @return the token for the block after the last one read, or null if the
+	 *         last block reached the end of the network.
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * @return the record ids of the block, in record id order. The records are
+	 *         not loaded here; the caller loads each one as it writes it.
+	 */
+	public List<ORID> after(ODocument networkDoc, String cursor, int blockSize)
+			throws NdexException {
+		checkBlockSize(blockSize);
+		ElementCursor position = ElementCursor.decode(cursor);
+		ORID max;
+		List<ORID> rids;
+		if (position == null) {
+			ORID[] range = range(type.getLinks(networkDoc));
+			if (range == null) {
+				nextCursor = null;
+				return new ArrayList<>(0);
+			}
+			max = range[1];
+			rids = seek(networkDoc, ">=", range[0], max, blockSize);
+		} else {
+			max = position.getMax();
+			rids = seek(networkDoc, ">", position.getLast(), max, blockSize);
+		}
+		nextCursor = nextCursor(rids, blockSize, max);
+		return rids;
+	}
+
+	/**
+	 * Reads the block at an offset. Links are in the network's link order, not
+	 * in record id order, so no cursor is issued for the block after it.
+	 *
+	 * @return the record ids of the block, without loading their records.
+	 */
+	public List<ORID> skip(ODocument networkDoc, int skipBlocks, int blockSize)
+			throws NdexException {
+		checkBlockSize(blockSize);
+		if (skipBlocks < 0)
+			throw new NdexException("skipBlocks can't be a negative number.");
+		nextCursor = null;
+		return page(type.getLinks(networkDoc), (long) skipBlocks * blockSize, blockSize);
+	}
+
+	private List<ORID> seek(ODocument networkDoc, String from, ORID after, ORID max,
+			int blockSize) {
+		String query = "SELECT @rid AS rid FROM " + type.getClassName()
+				+ " WHERE @rid " + from + " ? AND @rid <= ?"
+				+ " AND in_" + type.getNetworkEdge() + " CONTAINS ?"
+				+ " ORDER BY @rid LIMIT " + blockSize;
+		List<ODocument> rows = db.command(new OSQLSynchQuery<ODocument>(query))
+				.execute(after, max, networkDoc.getIdentity());
+		List<ORID> rids = new ArrayList<>(rows.size());
+		for (ODocument row : rows) {
+			OIdentifiable rid = row.field("rid");
+			rids.add(rid.getIdentity());
+		}
+		return rids;
+	}
+
+	/**
+	 * @return the lowest and the highest record id among the links, or null if
+	 *         there are none. Only the ids are compared; no record is loaded.
+	 */
+	static ORID[] range(Iterator<? extends OIdentifiable> links) {
+		ORID min = null;
+		ORID max = null;
+		while (links.hasNext()) {
+			ORID rid = links.next().getIdentity();
+			if (min == null || rid.compareTo(min) < 0)
+				min = rid;
+			if (max == null || rid.compareTo(max) > 0)
+				max = rid;
+		}
+		return min == null ? null : new ORID[] { min, max };
+	}
+
+	/**
+	 * @return the record ids of at most blockSize links after the first
+	 *         <code>position</code> ones.
+	 */
+	static List<ORID> page(Iterator<? extends OIdentifiable> links, long position, int blockSize) {
+		for (long i = 0; i < position && links.hasNext(); i++)
+			links.next();
+		List<ORID> rids = new ArrayList<>(blockSize);
+		while (rids.size() < blockSize && links.hasNext())
+			rids.add(links.next().getIdentity());
+		return rids;
+	}
+
+	/**
+	 * @return the cursor of the block after <code>rids</code>, read in record
+	 *         id order, or null if that block was the last one below
+	 *         <code>max</code>.
+	 */
+	static String nextCursor(List<ORID> rids, int blockSize, ORID max) {
+		if (rids.size() < blockSize)
+			return null;
+		ORID last = rids.get(rids.size() - 1);
+		return last.compareTo(max) >= 0 ? null : new ElementCursor(last, max).encode();
+	}
+
+	private static void checkBlockSize(int blockSize) throws NdexException {
+		if (blockSize <= 0)
+			throw new NdexException("Block size must be a positive number.");
+	}
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import org.ndexbio.model.exceptions.NdexException;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.id.ORecordId;
+
+/**
+ * Continuation token for paging over the elements (edges, terms, namespaces)
+ * of a network. The token wraps the record id of the last element read and
+ * the highest record id the network linked when paging started, so the next
+ * block is a range seek on the element cluster rather than a walk over the
+ * elements already read. Because the position is a record id and not a count,
+ * elements removed from the network while it is paged do not shift the later
+ * blocks. Clients should treat the token as opaque.
+ */
+public final class ElementCursor {
+
+	/** Token that clients pass to read the first block. */
+	public static final String START = "start";
+
+	/** Response header that carries the token for the next block. */
+	public static final String NEXT_CURSOR_HEADER = "NDEx-Next-Cursor";
+
+	private static final String prefix = "e";
+	private static final String separator = ".";
+
+	private final ORID last;
+	private final ORID max;
+
+	public ElementCursor(ORID last, ORID max) {
+		this.last = last;
+		this.max = max;
+	}
+
+	/** @return the record id of the last element read. */
+	public ORID getLast() {
+		return last;
+	}
+
+	/** @return the highest record id of the paged elements. */
+	public ORID getMax() {
+		return max;
+	}
+
+	public String encode() {
+		return prefix + Integer.toString(last.getClusterId(), Character.MAX_RADIX)
+				+ separator + Long.toString(last.getClusterPosition(), Character.MAX_RADIX)
+				+ separator + Integer.toString(max.getClusterId(), Character.MAX_RADIX)
+				+ separator + Long.toString(max.getClusterPosition(), Character.MAX_RADIX);
+	}
+
+	/**
+	 * @return the decoded cursor, or null for the start of the network.
+	 * @throws NdexException
+	 *             the token was not issued by this server.
+	 */
+	public static ElementCursor decode(String token) throws NdexException {
+		if (token == null || token.equals(START))
+			return null;
+		if (!token.startsWith(prefix))
+			throw new NdexException("Invalid cursor " + token + ".");
+		String[] parts = token.substring(prefix.length()).split("\\" + separator, -1);
+		if (parts.length != 4)
+			throw new NdexException("Invalid cursor " + token + ".");
+		try {
+			int lastCluster = Integer.parseInt(parts[0], Character.MAX_RADIX);
+			long lastPosition = Long.parseLong(parts[1], Character.MAX_RADIX);
+			int maxCluster = Integer.parseInt(parts[2], Character.MAX_RADIX);
+			long maxPosition = Long.parseLong(parts[3], Character.MAX_RADIX);
+			if (lastCluster < 0 || lastPosition < 0 || maxCluster < 0 || maxPosition < 0)
+				throw new NdexException("Invalid cursor " + token + ".");
+			return new ElementCursor(new ORecordId(lastCluster, lastPosition),
+					new ORecordId(maxCluster, maxPosition));
+		} catch (NumberFormatException e) {
+			throw new NdexException("Invalid cursor " + token + ".");
+		}
+	}
+}
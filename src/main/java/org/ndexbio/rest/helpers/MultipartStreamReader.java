@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the parts of a multipart/form-data body one at a time straight from
+ * the request stream, so a part can be copied to its destination without
+ * being held in memory or in a temporary file first. Only the fixed size
+ * read buffer is kept, whatever the size of the body.
+ * <p>
+ * Call {@link #nextPart()} to move to the next part, and read its content
+ * from {@link #getPartStream()} before moving on; whatever is not read is
+ * skipped.
+ */
+public class MultipartStreamReader {
+
+	private static final int bufferSize = 64 * 1024;
+	private static final int maxHeaderLength = 8 * 1024;
+
+	private final InputStream in;
+	private final byte[] delimiter;
+	private final byte[] buffer;
+	private int head;
+	private int tail;
+	private boolean eof;
+
+	// the preamble before the first boundary is read like a part
+	private boolean partDone = false;
+	private boolean finished;
+	private String fieldName;
+	private String fileName;
+	private final InputStream partStream = new PartStream();
+
+	/**
+	 * @param contentType
+	 *            the Content-Type header of the request, which carries the
+	 *            boundary.
+	 * @throws IOException
+	 *             if the content type has no boundary.
+	 */
+	public MultipartStreamReader(InputStream in, String contentType) throws IOException {
+		String boundary = getBoundary(contentType);
+		if (boundary == null)
+			throw new IOException("Multipart boundary is missing from content type " + contentType);
+		this.in = in;
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+		this.buffer = new byte[Math.max(bufferSize, delimiter.length * 2)];
+		// the first boundary has no line break in front of it; pretend it has,
+		// so it is found like any other
+		buffer[0] = '\r';
+		buffer[1] = '\n';
+		tail = 2;
+	}
+
+	/**
+	 * Skips the rest of the current part and reads the headers of the next.
+	 * 
+	 * @return false if there are no more parts.
+	 */
+	public boolean nextPart() throws IOException {
+		if (finished)
+			return false;
+		byte[] skip = new byte[4096];
+		while (partStream.read(skip) != -1) {
+			// skip the rest of the current part
+		}
+
+		// the delimiter is followed by "--" on the last boundary, or by a line break
+		int c1 = readByte();
+		int c2 = readByte();
+		if (c1 == '-' && c2 == '-') {
+			finished = true;
+			return false;
+		}
+		while (c1 != '\r' || c2 != '\n') {
+			if (c2 == -1)
+				throw new IOException("Unexpected end of multipart body.");
+			c1 = c2;
+			c2 = readByte();
+		}
+
+		fieldName = null;
+		fileName = null;
+		String line;
+		while ((line = readHeaderLine()).length() > 0) {
+			int idx = line.indexOf(':');
+			if (idx > 0 && line.substring(0, idx).trim().equalsIgnoreCase("Content-Disposition")) {
+				String value = line.substring(idx + 1);
+				fieldName = getParameter(value, "name");
+				fileName = getParameter(value, "filename");
+			}
+		}
+		if (fieldName == null)
+			fieldName = "";
+		partDone = false;
+		return true;
+	}
+
+	/**
+	 * @return the name of the form field of the current part.
+	 */
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	/**
+	 * @return the file name the client sent with the current part, or null.
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return the content of the current part. The stream ends at the next
+	 *         boundary and must not be closed.
+	 */
+	public InputStream getPartStream() {
+		return partStream;
+	}
+
+	/**
+	 * Reads the current part as a UTF-8 string.
+	 * 
+	 * @throws IOException
+	 *             if the part is longer than maxBytes.
+	 */
+	public String getPartAsString(int maxBytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[1024];
+		int n;
+		while ((n = partStream.read(b)) != -1) {
+			out.write(b, 0, n);
+			if (out.size() > maxBytes)
+				throw new IOException("Form field " + fieldName + " is longer than " + maxBytes + " bytes.");
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private final class PartStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (partDone)
+				return -1;
+			if (len == 0)
+				return 0;
+
+			while (true) {
+				if (tail - head < delimiter.length && !eof)
+					fill();
+
+				int idx = indexOfDelimiter();
+				if (idx == head) {
+					head += delimiter.length;
+					partDone = true;
+					return -1;
+				}
+
+				// bytes that can't be the start of a delimiter
+				int available = idx != -1 ? idx - head : tail - head - (delimiter.length - 1);
+				if (available > 0) {
+					int n = Math.min(len, available);
+					System.arraycopy(buffer, head, b, off, n);
+					head += n;
+					return n;
+				}
+				if (eof)
+					throw new IOException("Unexpected end of multipart body.");
+				fill();
+			}
+		}
+	}
+
+	private int indexOfDelimiter() {
+		int last = tail - delimiter.length;
+		outer: for (int i = head; i <= last; i++) {
+			for (int j = 0; j < delimiter.length; j++) {
+				if (buffer[i + j] != delimiter[j])
+					continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private void fill() throws IOException {
+		if (head > 0) {
+			System.arraycopy(buffer, head, buffer, 0, tail - head);
+			tail -= head;
+			head = 0;
+		}
+		int n = in.read(buffer, tail, buffer.length - tail);
+		if (n == -1)
+			eof = true;
+		else
+			tail += n;
+	}
+
+	private int readByte() throws IOException {
+		if (head == tail) {
+			if (eof)
+				return -1;
+			fill();
+			if (head == tail)
+				return -1;
+		}
+		return buffer[head++] & 0xff;
+	}
+
+	private String readHeaderLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = readByte()) != '\n') {
+			if (c == -1)
+				throw new IOException("Unexpected end of multipart body.");
+			if (line.size() > maxHeaderLength)
+				throw new IOException("Multipart header is longer than " + maxHeaderLength + " bytes.");
+			line.write(c);
+		}
+		String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	static String getBoundary(String contentType) {
+		return contentType == null ? null : getParameter(contentType, "boundary");
+	}
+
+	/**
+	 * @return the value of a parameter such as name="x" in a header value, or
+	 *         null if it isn't there.
+	 */
+	static String getParameter(String headerValue, String name) {
+		for (String param : headerValue.split(";")) {
+			int idx = param.indexOf('=');
+			if (idx == -1 || !param.substring(0, idx).trim().equalsIgnoreCase(name))
+				continue;
+			String value = param.substring(idx + 1).trim();
+			if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+				value = value.substring(1, value.length() - 1);
+			return value;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.ndexbio.common.NdexClasses;
+import org.ndexbio.common.models.dao.orientdb.NetworkDocDAO;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.object.network.BaseTerm;
+import org.ndexbio.model.object.network.Citation;
+import org.ndexbio.model.object.network.FunctionTerm;
+import org.ndexbio.model.object.network.Namespace;
+import org.ndexbio.model.object.network.Network;
+import org.ndexbio.model.object.network.Node;
+import org.ndexbio.model.object.network.ReifiedEdgeTerm;
+import org.ndexbio.model.object.network.Support;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.db.record.ridbag.ORidBag;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+
+/**
+ * The element collections of a network, in the order they appear in a
+ * serialized Network. Each type knows the JSON field it is written to, the
+ * graph edge that links it to the network vertex, its document class, and how
+ * to read one document into its model object.
+ * <p>
+ * The DAO readers add referenced elements to the Network they are given and
+ * only load a reference that is not there yet. Callers that stream elements
+ * one at a time use {@link #readShared} with one lookup Network per request,
+ * made by {@link #newLookup}, so a node, term or citation that many edges
+ * refer to is usually loaded once. The lookup keeps a bounded number of the
+ * most recently used elements of each type, so a large network does not end
+ * up in memory; an element dropped from it is loaded again when it is next
+ * referenced. Edges are never kept in the lookup.
+ */
+public enum NetworkElementType {
+
+	NAMESPACE("namespaces", NdexClasses.Network_E_Namespace, NdexClasses.Namespace) {
+		@Override
+		public Object read(NetworkDocDAO dao, ODocument doc, Network scratch) throws NdexException {
+			return dao.getNamespace(doc);
+		}
+	},
+	BASE_TERM("baseTerms", NdexClasses.Network_E_BaseTerms, NdexClasses.BaseTerm) {
+		@Override
+		public Object read(NetworkDocDAO dao, ODocument doc, Network scratch) throws NdexException {
+			return dao.getBaseTerm(doc, scratch);
+		}
+	},
+	FUNCTION_TERM("functionTerms", NdexClasses.Network_E_FunctionTerms, NdexClasses.FunctionTerm) {
+		@Override
+		public Object read(NetworkDocDAO dao, ODocument doc, Network scratch) throws NdexException {
+			return dao.getFunctionTermfromDoc(doc, scratch);
+		}
+	},
+	REIFIED_EDGE_TERM("reifiedEdgeTerms", NdexClasses.Network_E_ReifiedEdgeTerms, NdexClasses.ReifiedEdgeTerm) {
+		@Override
+		public Object read(NetworkDocDAO dao, ODocument doc, Network scratch) throws NdexException {
+			return dao.getReifiedEdgeTermFromDoc(doc, scratch);
+		}
+	},
+	NODE("nodes", NdexClasses.Network_E_Nodes, NdexClasses.Node) {
+		@Override
+		public Object read(NetworkDocDAO dao, ODocument doc, Network scratch) throws NdexException {
+			return dao.getNode(doc, scratch);
+		}
+	},
+	EDGE("edges", NdexClasses.Network_E_Edges, NdexClasses.Edge) {
+		@Override
+		public Object read(NetworkDocDAO dao, ODocument doc, Network scratch) throws NdexException {
+			return dao.getEdgeFromDocument(doc, scratch);
+		}
+	},
+	CITATION("citations", NdexClasses.Network_E_Citations, NdexClasses.Citation) {
+		@Override
+		public Object read(NetworkDocDAO dao, ODocument doc, Network scratch) throws NdexException {
+			return dao.getCitationFromDoc(doc);
+		}
+	},
+	SUPPORT("supports", NdexClasses.Network_E_Supports, NdexClasses.Support) {
+		@Override
+		public Object read(NetworkDocDAO dao, ODocument doc, Network scratch) throws NdexException {
+			return dao.getSupportFromDoc(doc);
+		}
+	};
+
+	private final String jsonField;
+	private final String networkEdge;
+	private final String className;
+
+	private NetworkElementType(String jsonField, String networkEdge, String className) {
+		this.jsonField = jsonField;
+		this.networkEdge = networkEdge;
+		this.className = className;
+	}
+
+	public String getJsonField() {
+		return jsonField;
+	}
+
+	public String getNetworkEdge() {
+		return networkEdge;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	public abstract Object read(NetworkDocDAO dao, ODocument doc, Network scratch) throws NdexException;
+
+	/**
+	 * @return the record ids of the elements of this type that the network
+	 *         vertex links to. The elements themselves are not loaded.
+	 */
+	@SuppressWarnings("unchecked")
+	public Iterator<OIdentifiable> getLinks(ODocument networkDoc) {
+		Object links = networkDoc.field("out_" + networkEdge);
+		if (links instanceof ORidBag)
+			return ((ORidBag) links).rawIterator();
+		if (links instanceof Iterable)
+			return ((Iterable<OIdentifiable>) links).iterator();
+		return Collections.<OIdentifiable>emptyIterator();
+	}
+
+	/**
+	 * @return an empty lookup for {@link #readShared} that holds at most
+	 *         <code>maxEntries</code> elements of each type.
+	 */
+	public static Network newLookup(int maxEntries) {
+		Network lookup = new Network();
+		lookup.setNamespaces(NetworkElementType.<Namespace>lru(maxEntries));
+		lookup.setBaseTerms(NetworkElementType.<BaseTerm>lru(maxEntries));
+		lookup.setFunctionTerms(NetworkElementType.<FunctionTerm>lru(maxEntries));
+		lookup.setReifiedEdgeTerms(NetworkElementType.<ReifiedEdgeTerm>lru(maxEntries));
+		lookup.setNodes(NetworkElementType.<Node>lru(maxEntries));
+		lookup.setCitations(NetworkElementType.<Citation>lru(maxEntries));
+		lookup.setSupports(NetworkElementType.<Support>lru(maxEntries));
+		return lookup;
+	}
+
+	private static <V> Map<Long, V> lru(final int maxEntries) {
+		return new LinkedHashMap<Long, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Reads one element, reusing the copy in the lookup if an element read
+	 * earlier in the same request already loaded it as a reference.
+	 */
+	public Object readShared(NetworkDocDAO dao, ODocument doc, Network lookup) throws NdexException {
+		Map<Long, Object> known = getReferenced(lookup);
+		if (known == null) {
+			Object element = read(dao, doc, lookup);
+			lookup.getEdges().clear();
+			return element;
+		}
+		Long id = doc.field(NdexClasses.Element_ID);
+		Object element = known.get(id);
+		if (element == null) {
+			element = read(dao, doc, lookup);
+			known.put(id, element);
+		}
+		return element;
+	}
+
+	/**
+	 * @return the map of the lookup that holds elements of this type, or null
+	 *         for edges.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Map<Long, Object> getReferenced(Network lookup) {
+		switch (this) {
+		case NAMESPACE:
+			return (Map) lookup.getNamespaces();
+		case BASE_TERM:
+			return (Map) lookup.getBaseTerms();
+		case FUNCTION_TERM:
+			return (Map) lookup.getFunctionTerms();
+		case REIFIED_EDGE_TERM:
+			return (Map) lookup.getReifiedEdgeTerms();
+		case NODE:
+			return (Map) lookup.getNodes();
+		case CITATION:
+			return (Map) lookup.getCitations();
+		case SUPPORT:
+			return (Map) lookup.getSupports();
+		default:
+			return null;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Encodings in which network payloads can be sent. Smile and CBOR carry the
+ * same data model as JSON, so they are produced by the same Jackson code with
+ * a different generator factory, and are much cheaper for clients to parse.
+ */
+public enum NetworkEncoding {
+
+	JSON(MediaType.APPLICATION_JSON, "", new JsonFactory()),
+	SMILE(NetworkEncoding.APPLICATION_SMILE, ".smile", new SmileFactory()),
+	CBOR(NetworkEncoding.APPLICATION_CBOR, ".cbor", new CBORFactory());
+
+	public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+	public static final String APPLICATION_CBOR = "application/cbor";
+
+	private final MediaType mediaType;
+	private final String fileSuffix;
+	private final ObjectMapper mapper;
+
+	private NetworkEncoding(String mediaType, String fileSuffix, JsonFactory factory) {
+		this.mediaType = MediaType.valueOf(mediaType);
+		this.fileSuffix = fileSuffix;
+		factory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		this.mapper = new ObjectMapper(factory);
+	}
+
+	public MediaType getMediaType() {
+		return mediaType;
+	}
+
+	/**
+	 * @return the part added to file names of cached payloads in this
+	 *         encoding; empty for JSON so existing cache files keep their
+	 *         names.
+	 */
+	public String getFileSuffix() {
+		return fileSuffix;
+	}
+
+	/**
+	 * @return a shared mapper writing this encoding. It does not close the
+	 *         streams it writes to.
+	 */
+	public ObjectMapper getMapper() {
+		return mapper;
+	}
+
+	/**
+	 * Picks the encoding from the Accept header of the request. The media
+	 * types are already sorted by preference, and JSON is used when no
+	 * binary encoding is asked for explicitly, so wildcard clients keep
+	 * getting JSON.
+	 */
+	public static NetworkEncoding select(HttpHeaders headers) {
+		if (headers == null)
+			return JSON;
+		for (MediaType accepted : headers.getAcceptableMediaTypes()) {
+			if (accepted.isWildcardType() || accepted.isWildcardSubtype())
+				return JSON;
+			for (NetworkEncoding e : values()) {
+				if (e.mediaType.isCompatible(accepted))
+					return e;
+			}
+		}
+		return JSON;
+	}
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.ndexbio.common.NdexClasses;
+import org.ndexbio.common.models.dao.orientdb.NetworkDocDAO;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.exceptions.ObjectNotFoundException;
+import org.ndexbio.model.object.network.Network;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orientechnologies.orient.core.command.traverse.OTraverse;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.filter.OSQLPredicate;
+
+/**
+ * Writes a complete network as a JSON Network object directly to the response
+ * stream. Network elements are read from OrientDB one record at a time and
+ * written out immediately. Up to LOOKUP_SIZE recently used nodes, terms and
+ * citations of each kind are kept, so that edges referring to them don't
+ * load them again; edges, the bulk of a network, are never held in memory.
+ * The output has the same layout as a serialized {@link Network}, in JSON or
+ * one of the binary {@link NetworkEncoding}s.
+ */
+public class NetworkStreamingOutput implements StreamingOutput {
+
+	static Logger logger = LoggerFactory.getLogger(NetworkStreamingOutput.class);
+
+	/** Elements of each type kept for references while a network is written. */
+	static final int LOOKUP_SIZE = 10000;
+
+	private final String networkId;
+	private final ObjectMapper mapper;
+
+	public NetworkStreamingOutput(String networkId) {
+		this(networkId, NetworkEncoding.JSON);
+	}
+
+	public NetworkStreamingOutput(String networkId, NetworkEncoding encoding) {
+		this.networkId = networkId;
+		this.mapper = encoding.getMapper();
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException,
+			WebApplicationException {
+
+		ODatabaseDocumentTx db = null;
+		try {
+			db = RequestConnection.acquire();
+			NetworkDocDAO dao = new NetworkDocDAO(db);
+			ODocument networkDoc = dao.getNetworkDocByUUIDString(networkId);
+			if (networkDoc == null)
+				throw new ObjectNotFoundException("Network with ID: " + networkId + " doesn't exist.");
+
+			JsonGenerator g = mapper.getFactory().createGenerator(output);
+			g.writeStartObject();
+			writeSummaryFields(g, mapper, networkDoc);
+			writeElements(g, dao, networkDoc, NetworkElementType.newLookup(LOOKUP_SIZE));
+			g.writeEndObject();
+			g.flush();
+		} catch (NdexException e) {
+			logger.error("Failed to stream network " + networkId + ".", e);
+			throw new WebApplicationException(e);
+		} finally {
+			RequestConnection.release(db);
+		}
+	}
+
+	/**
+	 * Writes the scalar and metadata fields of the network. These are small, so
+	 * they are taken from the NetworkSummary of the network document.
+	 */
+	private static void writeSummaryFields(JsonGenerator g, ObjectMapper mapper, ODocument networkDoc)
+			throws IOException, NdexException {
+		JsonNode summary = mapper.valueToTree(NetworkDocDAO.getNetworkSummary(networkDoc));
+		Iterator<Map.Entry<String, JsonNode>> fields = summary.fields();
+		while (fields.hasNext()) {
+			Map.Entry<String, JsonNode> field = fields.next();
+			g.writeFieldName(field.getKey());
+			g.writeTree(field.getValue());
+		}
+	}
+
+	/**
+	 * Writes every element collection of the network in the order the client
+	 * needs to resolve references: namespaces and terms first, then nodes,
+	 * edges, citations and supports.
+	 */
+	protected static void writeElements(JsonGenerator g, NetworkDocDAO dao,
+			ODocument networkDoc, Network lookup) throws IOException, NdexException {
+		for (NetworkElementType type : NetworkElementType.values())
+			writeElementMap(g, dao, networkDoc, type, lookup);
+	}
+
+	/**
+	 * Traverses one outgoing edge class of the network vertex and writes each
+	 * element as "id": {...}. References are resolved through the lookup
+	 * shared by the whole request.
+	 */
+	protected static void writeElementMap(JsonGenerator g, NetworkDocDAO dao,
+			ODocument networkDoc, NetworkElementType type, Network lookup)
+			throws IOException, NdexException {
+
+		g.writeObjectFieldStart(type.getJsonField());
+		for (OIdentifiable rec : new OTraverse()
+				.field("out_" + type.getNetworkEdge())
+				.target(networkDoc)
+				.predicate(new OSQLPredicate("$depth <= 1"))) {
+			ODocument doc = (ODocument) rec;
+			if (!doc.getClassName().equals(type.getClassName()))
+				continue;
+			Long id = doc.field(NdexClasses.Element_ID);
+			g.writeFieldName(id.toString());
+			g.writeObject(type.readShared(dao, doc, lookup));
+		}
+		g.writeEndObject();
+	}
+}
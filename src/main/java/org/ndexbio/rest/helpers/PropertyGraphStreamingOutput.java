@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.ndexbio.common.models.dao.orientdb.NetworkDAO;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.exceptions.ObjectNotFoundException;
+import org.ndexbio.model.object.network.NetworkSummary;
+import org.ndexbio.model.object.network.PropertyGraphEdge;
+import org.ndexbio.model.object.network.PropertyGraphNetwork;
+import org.ndexbio.model.object.network.PropertyGraphNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+
+/**
+ * Writes a complete network as a PropertyGraphNetwork directly to the response
+ * stream. The network is read in edge blocks with the same paged query that
+ * backs edge/asPropertyGraph: a first pass writes the nodes of every block, a
+ * second pass writes the edges, so only one block is in memory at a time.
+ * <p>
+ * Nodes that are on no edge are not in any block. When the summary counts
+ * more nodes than the first pass wrote, the missing ones are taken from the
+ * complete network before the node section is closed.
+ */
+public class PropertyGraphStreamingOutput implements StreamingOutput {
+
+	static Logger logger = LoggerFactory.getLogger(PropertyGraphStreamingOutput.class);
+
+	static final int BLOCK_SIZE = 5000;
+
+	private static final String nodesField = "nodes";
+	private static final String edgesField = "edges";
+
+	private final String networkId;
+	private final ObjectMapper mapper;
+
+	public PropertyGraphStreamingOutput(String networkId, NetworkEncoding encoding) {
+		this.networkId = networkId;
+		this.mapper = encoding.getMapper();
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException,
+			WebApplicationException {
+
+		ODatabaseDocumentTx db = null;
+		try {
+			db = RequestConnection.acquire();
+			NetworkDAO dao = new NetworkDAO(db);
+			UUID id = UUID.fromString(networkId);
+			NetworkSummary summary = dao.getNetworkSummaryById(networkId);
+			if (summary == null)
+				throw new ObjectNotFoundException("Network with ID: " + networkId + " doesn't exist.");
+
+			PropertyGraphNetwork first = dao.getProperytGraphNetworkById(id, 0, BLOCK_SIZE);
+			JsonGenerator g = mapper.getFactory().createGenerator(output);
+			g.writeStartObject();
+			writeHeaderFields(g, first);
+			writeNodes(g, dao, id, first, summary.getNodeCount());
+			writeEdges(g, dao, id, first);
+			g.writeEndObject();
+			g.flush();
+		} catch (NdexException e) {
+			logger.error("Failed to stream property graph of network " + networkId + ".", e);
+			throw new WebApplicationException(e);
+		} finally {
+			RequestConnection.release(db);
+		}
+	}
+
+	private static void writeNodes(JsonGenerator g, NetworkDAO dao, UUID id,
+			PropertyGraphNetwork first, int nodeCount) throws IOException, NdexException {
+		g.writeObjectFieldStart(nodesField);
+		Set<Long> written = new HashSet<>();
+		PropertyGraphNetwork block = first;
+		for (int skip = 1; ; skip++) {
+			writeNewNodes(g, block, written);
+			if (block.getEdges().size() < BLOCK_SIZE)
+				break;
+			block = dao.getProperytGraphNetworkById(id, skip, BLOCK_SIZE);
+		}
+		if (written.size() < nodeCount)
+			writeNewNodes(g, dao.getProperytGraphNetworkById(id), written);
+		g.writeEndObject();
+	}
+
+	private static void writeNewNodes(JsonGenerator g, PropertyGraphNetwork block,
+			Set<Long> written) throws IOException {
+		for (PropertyGraphNode node : block.getNodes().values()) {
+			if (!written.add(node.getId()))
+				continue;
+			g.writeFieldName(Long.toString(node.getId()));
+			g.writeObject(node);
+		}
+	}
+
+	private static void writeEdges(JsonGenerator g, NetworkDAO dao, UUID id,
+			PropertyGraphNetwork first) throws IOException, NdexException {
+		g.writeObjectFieldStart(edgesField);
+		PropertyGraphNetwork block = first;
+		for (int skip = 1; ; skip++) {
+			for (PropertyGraphEdge edge : block.getEdges().values()) {
+				g.writeFieldName(Long.toString(edge.getId()));
+				g.writeObject(edge);
+			}
+			if (block.getEdges().size() < BLOCK_SIZE)
+				break;
+			block = dao.getProperytGraphNetworkById(id, skip, BLOCK_SIZE);
+		}
+		g.writeEndObject();
+	}
+
+	/**
+	 * Writes the network level fields of the first block, i.e. everything
+	 * except its nodes and edges.
+	 */
+	private void writeHeaderFields(JsonGenerator g, PropertyGraphNetwork sample) throws IOException {
+		JsonNode header = mapper.valueToTree(sample);
+		Iterator<Map.Entry<String, JsonNode>> fields = header.fields();
+		while (fields.hasNext()) {
+			Map.Entry<String, JsonNode> field = fields.next();
+			if (field.getKey().equals(nodesField) || field.getKey().equals(edgesField))
+				continue;
+			g.writeFieldName(field.getKey());
+			g.writeTree(field.getValue());
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import org.ndexbio.model.exceptions.NdexException;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+
+/**
+ * Lets the parts of one REST request that use it (the authentication filter,
+ * permission and summary cache loads, the NetworkAService read endpoints and
+ * the StreamingOutput bodies they return) share a single pooled connection
+ * instead of taking one from the pool each.
+ * <p>
+ * The scope is opened and closed by RequestConnectionFilter, a servlet filter
+ * around the whole request, so it also covers the response body being
+ * written. Inside it, {@link #acquire()} opens the connection on first use
+ * and returns the same one afterwards; outside it, e.g. on task threads or
+ * when a suspended response is resumed on another thread, it returns a new
+ * pooled connection. Callers always hand the connection back with
+ * {@link #release(ODatabaseDocumentTx)}, which only closes connections that
+ * aren't the shared one.
+ * <p>
+ * Code that doesn't go through here still takes its own connection: the other
+ * services, which open one per DAO, the network create and update endpoints
+ * and their loaders, and NetworkDAOTx, which opens its own inside ndex-common
+ * (see ConnectionPoolMonitor#countExternal).
+ */
+public class RequestConnection {
+
+	private static final ThreadLocal<RequestConnection> current = new ThreadLocal<>();
+
+	private ODatabaseDocumentTx db;
+
+	private RequestConnection() {}
+
+	/**
+	 * Starts a request scope on this thread. A scope left over on the thread is
+	 * closed first.
+	 */
+	public static void begin() {
+		end();
+		current.set(new RequestConnection());
+	}
+
+	/**
+	 * Ends the request scope on this thread and returns its connection to the
+	 * pool.
+	 */
+	public static void end() {
+		RequestConnection scope = current.get();
+		if (scope == null)
+			return;
+		current.remove();
+		if (scope.db != null && !scope.db.isClosed())
+			scope.db.close();
+	}
+
+	/**
+	 * @return the request's connection, or a new one from the pool when no
+	 *         request scope is open. A DAO that closed the shared connection
+	 *         just causes a new one to be opened.
+	 */
+	public static ODatabaseDocumentTx acquire() throws NdexException {
+		RequestConnection scope = current.get();
+		if (scope == null)
+			return ConnectionPoolMonitor.getAConnection();
+
+		if (scope.db == null || scope.db.isClosed())
+			scope.db = ConnectionPoolMonitor.getAConnection();
+		return scope.db;
+	}
+
+	/**
+	 * Closes the connection unless it is the request's shared one, which stays
+	 * open until the request ends.
+	 */
+	public static void release(ODatabaseDocumentTx db) {
+		if (db == null)
+			return;
+		RequestConnection scope = current.get();
+		if (scope != null && scope.db == db)
+			return;
+		db.close();
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.ndexbio.model.exceptions.NdexException;
+
+/**
+ * Copies an uploaded stream into a file channel through one fixed size
+ * buffer, checking the size limit and updating a checksum as it goes.
+ */
+public class UploadWriter {
+
+	private static final int bufferSize = 64 * 1024;
+	private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+	private UploadWriter() {}
+
+	/**
+	 * Writes the stream to the channel starting at position, without moving the
+	 * channel's own position.
+	 * 
+	 * @param maxBytes
+	 *            the most bytes the stream may hold, or 0 for no limit.
+	 * @param digest
+	 *            updated with every byte written; may be null.
+	 * @return the number of bytes written.
+	 * @throws NdexException
+	 *             if the stream holds more than maxBytes. What was written up to
+	 *             then stays in the file.
+	 */
+	public static long write(InputStream in, FileChannel out, long position, long maxBytes, MessageDigest digest)
+			throws IOException, NdexException {
+		ReadableByteChannel source = Channels.newChannel(in);
+		ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+		long total = 0;
+		int n;
+		while ((n = source.read(buffer)) != -1) {
+			total += n;
+			if (maxBytes > 0 && total > maxBytes)
+				throw new NdexException("Uploaded file is larger than the limit of " + maxBytes + " bytes.");
+
+			buffer.flip();
+			if (digest != null)
+				digest.update(buffer.array(), 0, buffer.limit());
+			while (buffer.hasRemaining())
+				position += out.write(buffer, position);
+			buffer.clear();
+		}
+		return total;
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = hexDigits[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = hexDigits[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
@@ -35,21 +35,41 @@ import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import javax.annotation.security.PermitAll;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 
 import org.ndexbio.common.access.NdexDatabase;
 import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.exceptions.ObjectNotFoundException;
+import org.ndexbio.model.exceptions.UnauthorizedOperationException;
 import org.ndexbio.model.object.NdexStatus;
+import org.ndexbio.model.object.Priority;
+import org.ndexbio.rest.annotations.ApiDoc;
+import org.ndexbio.rest.cache.CredentialCache;
+import org.ndexbio.rest.cache.ExportCache;
+import org.ndexbio.rest.cache.NetworkSummaryCache;
+import org.ndexbio.rest.cache.PermissionCache;
+import org.ndexbio.rest.filters.BasicAuthenticationFilter;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
+import org.ndexbio.rest.task.NetworkDeleter;
+import org.ndexbio.rest.task.TaskProgressHub;
+import org.ndexbio.rest.task.UserTaskScheduler;
+import org.ndexbio.security.LDAPAuthenticator;
+import org.ndexbio.security.LDAPConnectionPool;
+import org.ndexbio.security.LoginThrottle;
 import org.ndexbio.task.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.CacheStats;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.record.impl.ODocument;
 import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
@@ -81,7 +101,7 @@ public class AdminService extends NdexService {
 		
 		logger.info(userNameForLog() + "[start: Getting status]");
 		
-		try (ODatabaseDocumentTx db =NdexDatabase.getInstance().getAConnection()){
+		try (ODatabaseDocumentTx db =ConnectionPoolMonitor.getAConnection()){
 			
 			NdexStatus status = new NdexStatus();
 			status.setNetworkCount(AdminService.getClassCount(db,"network"));
@@ -104,12 +124,187 @@ public class AdminService extends NdexService {
 			}
 		    
 			props.put("ServerResultLimit", "10000");
+
+			CacheStats summaryStats = NetworkSummaryCache.getStats();
+			if ( summaryStats != null) {
+				props.put("NetworkSummaryCacheSize", Long.toString(NetworkSummaryCache.getSize()));
+				props.put("NetworkSummaryCacheHits", Long.toString(summaryStats.hitCount()));
+				props.put("NetworkSummaryCacheMisses", Long.toString(summaryStats.missCount()));
+				props.put("NetworkSummaryCacheEvictions", Long.toString(summaryStats.evictionCount()));
+			}
+
+			CacheStats permissionStats = PermissionCache.getStats();
+			if ( permissionStats != null) {
+				props.put("PermissionCacheHits", Long.toString(permissionStats.hitCount()));
+				props.put("PermissionCacheMisses", Long.toString(permissionStats.missCount()));
+			}
+
+			CacheStats credentialStats = CredentialCache.getStats();
+			if ( credentialStats != null) {
+				props.put("CredentialCacheHits", Long.toString(credentialStats.hitCount()));
+				props.put("CredentialCacheMisses", Long.toString(credentialStats.missCount()));
+			}
+
+			Map<String, Object> connections = ConnectionPoolMonitor.getStatus();
+			if ( connections != null) {
+				props.put("DBConnectionsInUse", String.valueOf(connections.get("inUse")));
+				props.put("DBConnectionsPeakInUse", String.valueOf(connections.get("peakInUse")));
+				props.put("DBConnectionPoolTargetSize", String.valueOf(connections.get("targetSize")));
+				props.put("DBConnectionLeaks", String.valueOf(connections.get("leaksDetected")));
+			}
+
+			Map<String, Object> exports = ExportCache.getStatus();
+			if ( exports != null) {
+				props.put("ExportCacheFiles", String.valueOf(exports.get("files")));
+				props.put("ExportCacheBytes", String.valueOf(exports.get("bytes")));
+				props.put("ExportCacheHits", String.valueOf(exports.get("hits")));
+				props.put("ExportCacheMisses", String.valueOf(exports.get("misses")));
+				props.put("ExportCacheCoalesced", String.valueOf(exports.get("coalesced")));
+				props.put("ExportCacheEvictions", String.valueOf(exports.get("evictions")));
+			}
+
+			int queuedTasks = UserTaskScheduler.getQueuedCount();
+			if ( queuedTasks >= 0) {
+				props.put("UserTasksQueued", Integer.toString(queuedTasks));
+				props.put("UserTasksRunning", Integer.toString(UserTaskScheduler.getRunningCount()));
+				props.put("UserTasksCompleted", Long.toString(UserTaskScheduler.getCompletedCount()));
+				props.put("TaskProgressWatchers", Integer.toString(TaskProgressHub.getWatcherCount()));
+			}
+
+			Map<String, Object> deletes = NetworkDeleter.getStatus();
+			if ( deletes != null) {
+				props.put("NetworkDeleteBacklog", String.valueOf(deletes.get("backlog")));
+				props.put("NetworkDeletesCompleted", String.valueOf(deletes.get("networksDeleted")));
+				props.put("NetworkDeleteElementsDeleted", String.valueOf(deletes.get("elementsDeleted")));
+				props.put("NetworkDeleteElementsPerSecond", String.valueOf(deletes.get("elementsPerSecond")));
+				props.put("NetworkDeleteYields", String.valueOf(deletes.get("yields")));
+			}
+
+			long throttled = LoginThrottle.getRejectedCount();
+			if ( throttled >= 0) {
+				props.put("LoginThrottleRejected", Long.toString(throttled));
+				props.put("LoginThrottleTracked", Long.toString(LoginThrottle.getTrackedCount()));
+			}
+
+			LDAPAuthenticator authenticator = BasicAuthenticationFilter.getLDAPAuthenticator();
+			if ( authenticator != null) {
+				LDAPConnectionPool pool = authenticator.getConnectionPool();
+				props.put("LDAPPoolSize", Integer.toString(pool.getSize()));
+				props.put("LDAPPoolActive", Integer.toString(pool.getActive()));
+				props.put("LDAPPoolWaiting", Integer.toString(pool.getWaiting()));
+				props.put("LDAPPoolIdle", Integer.toString(pool.getIdle()));
+				props.put("LDAPPoolReused", Long.toString(pool.getReuseCount()));
+				props.put("LDAPPoolExhausted", Long.toString(pool.getExhaustedCount()));
+				props.put("LDAPBinds", Long.toString(pool.getBindCount()));
+				props.put("LDAPBindFailures", Long.toString(pool.getBindFailureCount()));
+				props.put("LDAPBindAvgMillis", Long.toString(pool.getAverageBindMillis()));
+				props.put("LDAPBindMaxMillis", Long.toString(pool.getMaxBindMillis()));
+
+				CacheStats adStats = authenticator.getCacheStats();
+				if ( adStats != null) {
+					props.put("ADCacheHitRate", String.format("%.3f", adStats.hitRate()));
+					props.put("ADCacheHits", Long.toString(adStats.hitCount()));
+					props.put("ADCacheMisses", Long.toString(adStats.missCount()));
+					props.put("ADCacheEvictions", Long.toString(adStats.evictionCount()));
+					props.put("ADNegativeCacheHits", Long.toString(authenticator.getNegativeCacheStats().hitCount()));
+				}
+			}
 			status.setProperties(props);
 			logger.info(userNameForLog() + "[end: Got status]");
 			return status;
 		} 
 	}
 
+	/**************************************************************************
+	 * 
+	 * Gets usage, wait and hold times of the database connection pool, and
+	 * where the connections held longer than the leak threshold were taken.
+	 * Only the system user may call this.
+	 * @throws NdexException 
+	 **************************************************************************/
+
+	@GET
+	@Path("/connections")
+	@Produces("application/json")
+	@ApiDoc("Returns usage statistics of the database connection pool and the stack traces of connections held " +
+			"longer than DB_CONNECTION_LEAK_SECONDS. Only available to the system user.")
+	public Map<String, Object> getConnectionPoolStatus() throws NdexException {
+
+		logger.info(userNameForLog() + "[start: Getting connection pool status]");
+		if ( !isSystemUser())
+			throw new UnauthorizedOperationException("Only the system user can view the connection pool status.");
+
+		Map<String, Object> result = ConnectionPoolMonitor.getStatus();
+		if ( result == null)
+			throw new NdexException("Database connection monitor is turned off.");
+		logger.info(userNameForLog() + "[end: Got connection pool status]");
+		return result;
+	}
+
+	/**************************************************************************
+	 * 
+	 * Gets the backlog and throughput of the physical removal of deleted
+	 * networks. Only the system user may call this.
+	 * @throws NdexException 
+	 **************************************************************************/
+
+	@GET
+	@Path("/deletes")
+	@Produces("application/json")
+	@ApiDoc("Returns the number of deleted networks waiting to be removed from the database, the network being " +
+			"removed, and the removal rate. Only available to the system user.")
+	public Map<String, Object> getNetworkDeleteStatus() throws NdexException {
+
+		logger.info(userNameForLog() + "[start: Getting network deletion status]");
+		if ( !isSystemUser())
+			throw new UnauthorizedOperationException("Only the system user can view the network deletion status.");
+
+		Map<String, Object> result = NetworkDeleter.getStatus();
+		if ( result == null)
+			throw new NdexException("Chunked network deletion is turned off.");
+		logger.info(userNameForLog() + "[end: Got network deletion status]");
+		return result;
+	}
+
+	/**************************************************************************
+	 * 
+	 * Changes the priority of a user task that is waiting to be run. Only the
+	 * system user may call this.
+	 * @throws NdexException 
+	 **************************************************************************/
+
+	@POST
+	@Path("/task/{taskId}/priority/{priority}")
+	@Produces("application/json")
+	@ApiDoc("Changes the priority of a task that is waiting in the user task queue, e.g. to move an export ahead " +
+			"of bulk uploads. The change is not saved and applies until the task runs or the server restarts. " +
+			"Only available to the system user.")
+	public void setTaskPriority(@PathParam("taskId") final String taskId,
+			@PathParam("priority") final String priority) throws NdexException {
+
+		logger.info(userNameForLog() + "[start: Setting priority of task " + taskId + " to " + priority + "]");
+		if ( !isSystemUser())
+			throw new UnauthorizedOperationException("Only the system user can change task priorities.");
+
+		UUID taskUUID;
+		Priority newPriority;
+		try {
+			taskUUID = UUID.fromString(taskId);
+			newPriority = Priority.valueOf(priority.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new NdexException("Invalid task id or priority: " + e.getMessage());
+		}
+
+		if ( !UserTaskScheduler.setPriority(taskUUID, newPriority))
+			throw new ObjectNotFoundException("Task " + taskId + " is not waiting in the task queue.");
+		logger.info(userNameForLog() + "[end: Priority of task " + taskId + " set to " + newPriority + "]");
+	}
+
+	private boolean isSystemUser() throws NdexException {
+		return getLoggedInUser() != null &&
+				getLoggedInUser().getAccountName().equals(Configuration.getInstance().getSystmUserName()) ;
+	}
+
 	private static Integer getClassCount(ODatabaseDocumentTx db, String className) {
 
 		final List<ODocument> classCountResult = db.query(new OSQLSynchQuery<ODocument>(
@@ -164,7 +359,7 @@ public class AdminService extends NdexService {
 	        		 SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
 	        		 String strDate = sdf.format(Calendar.getInstance().getTime());
 			
-	        		 db = NdexDatabase.getInstance().getAConnection();
+	        		 db = ConnectionPoolMonitor.getAConnection();
 	        		 String exportFile = ndexRoot + "/dbbackups/db_"+ strDate + ".export";
 
 	        		 logger.info("Backing up database to " + exportFile);
@@ -204,8 +399,4 @@ public class AdminService extends NdexService {
 	}
 */
 	
-/*	private boolean isSystemUser() throws NdexException {
-	  return getLoggedInUser().getAccountName().equals(Configuration.getInstance().getSystmUserName()) ;
-	}
-*/
 }
@@ -51,11 +51,12 @@ import org.ndexbio.model.exceptions.ObjectNotFoundException;
 import org.ndexbio.model.object.SimpleUserQuery;
 import org.ndexbio.common.models.dao.orientdb.GroupDAO;
 import org.ndexbio.common.models.dao.orientdb.GroupDocDAO;
-import org.ndexbio.common.access.NdexDatabase;
 import org.ndexbio.model.object.Membership;
 import org.ndexbio.model.object.Permissions;
 import org.ndexbio.model.object.Group;
 import org.ndexbio.rest.annotations.ApiDoc;
+import org.ndexbio.rest.cache.PermissionCache;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 
@@ -171,6 +172,7 @@ public class GroupService extends NdexService {
 		try (GroupDAO dao = getGroupDAO()){
 			dao.deleteGroupById(UUID.fromString(groupId),this.getLoggedInUser().getExternalId());
 			dao.commit();
+			PermissionCache.invalidateAll();
 			logger.info(userNameForLog() + "[end: Group " + groupId +  " deleted]");
 		} 
 	}
@@ -448,6 +450,7 @@ public class GroupService extends NdexService {
 			//check for resource name? but it can be a network. Not really important, the code uses external id's
 			dao.updateMember(groupMember, UUID.fromString(groupId), this.getLoggedInUser().getExternalId());
 			dao.commit();
+			PermissionCache.invalidateAll();
 			logger.info(userNameForLog() + "[end: Member " + groupMember.getMemberAccountName()
 					+ "(" + groupMember.getMembershipType()+ ") updated for group " + groupId + "]");
 		} 
@@ -486,6 +489,7 @@ public class GroupService extends NdexService {
 		try (GroupDAO dao = getGroupDAO()){
 			dao.removeMember(UUID.fromString(memberId), UUID.fromString(groupId), this.getLoggedInUser().getExternalId());
 			dao.commit();
+			PermissionCache.invalidateAll();
 			logger.info(userNameForLog() + "[end: Member " + memberId + " removed from group " + groupId + "]");
 		} 
 	}
@@ -611,11 +615,11 @@ public class GroupService extends NdexService {
 	}
 */
 	private static GroupDAO getGroupDAO() throws NdexException {
-		return new GroupDAO(NdexDatabase.getInstance().getAConnection());
+		return new GroupDAO(ConnectionPoolMonitor.getAConnection());
 	}
 
 	private static GroupDocDAO getGroupDocDAO() throws NdexException {
-		return new GroupDocDAO(NdexDatabase.getInstance().getAConnection());
+		return new GroupDocDAO(ConnectionPoolMonitor.getAConnection());
 	}
 
 }
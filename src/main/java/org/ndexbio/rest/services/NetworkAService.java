@@ -31,10 +31,14 @@
 package org.ndexbio.rest.services;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -47,18 +51,22 @@ import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 
 import org.apache.commons.io.FilenameUtils;
-import org.jboss.resteasy.annotations.providers.multipart.MultipartForm;
 import org.ndexbio.common.access.NdexDatabase;
 import org.ndexbio.common.access.NetworkAOrientDBDAO;
 import org.ndexbio.common.models.dao.orientdb.Helper;
@@ -95,7 +103,6 @@ import org.ndexbio.common.query.NetworkFilterQueryExecutorFactory;
 import org.ndexbio.common.query.SearchNetworkByPropertyExecutor;
 import org.ndexbio.common.util.NdexUUIDFactory;
 //import org.ndexbio.model.object.SearchParameters;
-import org.ndexbio.model.object.network.BaseTerm;
 import org.ndexbio.model.object.network.FileFormat;
 import org.ndexbio.model.object.network.Namespace;
 import org.ndexbio.model.object.network.Network;
@@ -103,9 +110,28 @@ import org.ndexbio.model.object.network.NetworkSummary;
 import org.ndexbio.model.object.network.PropertyGraphNetwork;
 import org.ndexbio.model.object.network.VisibilityType;
 import org.ndexbio.rest.annotations.ApiDoc;
-import org.ndexbio.rest.helpers.UploadedFile;
+import org.ndexbio.rest.cache.ExportCache;
+import org.ndexbio.rest.cache.NetworkSnapshotCache;
+import org.ndexbio.rest.cache.NetworkSummaryCache;
+import org.ndexbio.rest.cache.PermissionCache;
+import org.ndexbio.rest.helpers.CachedFileResponse;
+import org.ndexbio.rest.helpers.ChunkedUploadSession;
+import org.ndexbio.rest.helpers.ChunkedUploads;
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
+import org.ndexbio.rest.helpers.EdgeBlockReader;
+import org.ndexbio.rest.helpers.ElementArrayStreamingOutput;
+import org.ndexbio.rest.helpers.ElementBlockQuery;
+import org.ndexbio.rest.helpers.ElementCursor;
+import org.ndexbio.rest.helpers.MultipartStreamReader;
+import org.ndexbio.rest.helpers.NetworkElementType;
+import org.ndexbio.rest.helpers.NetworkEncoding;
+import org.ndexbio.rest.helpers.NetworkStreamingOutput;
+import org.ndexbio.rest.helpers.PropertyGraphStreamingOutput;
+import org.ndexbio.rest.helpers.RequestConnection;
+import org.ndexbio.rest.helpers.UploadWriter;
+import org.ndexbio.rest.task.NetworkDeleter;
 import org.ndexbio.task.Configuration;
-import org.ndexbio.task.NdexServerQueue;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonParseException;
@@ -114,6 +140,7 @@ import com.fasterxml.jackson.databind.JsonMappingException;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.record.impl.ODocument;
 
 import org.slf4j.Logger;
@@ -125,6 +152,10 @@ public class NetworkAService extends NdexService {
 	
 	static private final String readOnlyParameter = "readOnly";
 
+	static private final String networkUploadMaxBytes = "NETWORK_UPLOAD_MAX_BYTES";
+	static private final long defaultUploadMaxBytes = 2L * 1024 * 1024 * 1024;
+	static private final int maxUploadFieldLength = 4096;
+
 	public NetworkAService(@Context HttpServletRequest httpRequest) {
 		super(httpRequest);
 	}
@@ -137,59 +168,132 @@ public class NetworkAService extends NdexService {
 	@PermitAll
 	@GET
 	@Path("/{networkId}/baseTerm/{skipBlocks}/{blockSize}")
-	@Produces("application/json")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
     @ApiDoc("Retrieves a list of BaseTerm objects from the network specified by 'networkId'. The maximum number of " +
             "BaseTerm objects to retrieve in the query is set by 'blockSize'  (which may be any number chosen by the " +
             "user) while  'skipBlocks' specifies the number of blocks that have already been read.")
-	public List<BaseTerm> getBaseTerms(
+	public Response getBaseTerms(
 			@PathParam("networkId") final String networkId,
 			@PathParam("skipBlocks") final int skipBlocks,
-			@PathParam("blockSize") final int blockSize)
+			@PathParam("blockSize") final int blockSize,
+			@Context HttpHeaders headers)
 
 			throws IllegalArgumentException, NdexException {
 		
 		logger.info(userNameForLog() + "[start: Getting BaseTerm objects from network " + networkId + ", skipBlocks " + skipBlocks + ", blockSize " + blockSize + "]");
 		
-		ODatabaseDocumentTx db = null;
 		try {
-			db = NdexDatabase.getInstance().getAConnection();
-			NetworkDAO daoNew = new NetworkDAO(db);
-			return (List<BaseTerm>) daoNew.getBaseTerms(networkId);
+			return getElementBlock(networkId, NetworkElementType.BASE_TERM, null, skipBlocks, blockSize, NetworkEncoding.select(headers));
 		} finally {
-			if ( db != null) db.close();
 			logger.info(userNameForLog() + "[end: Got BaseTerm objects from network " + networkId + ", skipBlocks " + skipBlocks + ", blockSize " + blockSize + "]");
 		}
 
 	}
 
+	@PermitAll
+	@GET
+	@Path("/{networkId}/baseTerm/after/{cursor}/{blockSize}")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
+    @ApiDoc("Retrieves a list of at most 'blockSize' BaseTerm objects from the network specified by 'networkId', " +
+            "starting after the position given by 'cursor'. Use 'start' as the cursor to read the first block. The " +
+            "token for the next block is returned in the NDEx-Next-Cursor response header, which is absent when the " +
+            "last block has been read.")
+	public Response getBaseTermsAfter(
+			@PathParam("networkId") final String networkId,
+			@PathParam("cursor") final String cursor,
+			@PathParam("blockSize") final int blockSize,
+			@Context HttpHeaders headers)
+
+			throws IllegalArgumentException, NdexException {
+		
+		logger.info(userNameForLog() + "[start: Getting BaseTerm objects from network " + networkId + ", cursor " + cursor + ", blockSize " + blockSize + "]");
+		
+		try {
+			return getElementBlock(networkId, NetworkElementType.BASE_TERM, cursor, 0, blockSize, NetworkEncoding.select(headers));
+		} finally {
+			logger.info(userNameForLog() + "[end: Got BaseTerm objects from network " + networkId + ", cursor " + cursor + ", blockSize " + blockSize + "]");
+		}
+
+	}
+
 	@PermitAll
 	@GET
 	@Path("/{networkId}/namespace/{skipBlocks}/{blockSize}")
-	@Produces("application/json")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
     @ApiDoc("Retrieves a list of Namespace objects from the network specified by 'networkId'. The maximum number of " +
             "Namespace objects to retrieve in the query is set by 'blockSize' (which may be any number chosen by the " +
             "user) while  'skipBlocks' specifies the number of blocks that have already been read.")
-	public List<Namespace> getNamespaces(
+	public Response getNamespaces(
 			@PathParam("networkId") final String networkId,
 			@PathParam("skipBlocks") final int skipBlocks,
-			@PathParam("blockSize") final int blockSize)
+			@PathParam("blockSize") final int blockSize,
+			@Context HttpHeaders headers)
 
 			throws IllegalArgumentException, NdexException {
 		
 		logger.info(userNameForLog() + "[start: Getting list of namespaces for network " + networkId + ", skipBlocks " + skipBlocks + ", blockSize " + blockSize + "]");
 		
-		ODatabaseDocumentTx db = null;
 		try {
-			db = NdexDatabase.getInstance().getAConnection();
-			NetworkDAO daoNew = new NetworkDAO(db);
-			return (List<Namespace>) daoNew.getNamespaces(networkId);
+			return getElementBlock(networkId, NetworkElementType.NAMESPACE, null, skipBlocks, blockSize, NetworkEncoding.select(headers));
 		} finally {
-			if ( db != null) db.close();
 			logger.info(userNameForLog() + "[end: Got list of namespaces for network " + networkId + ", skipBlocks " + skipBlocks + ", blockSize " + blockSize + "]");
 		}
 
 	}
 
+	@PermitAll
+	@GET
+	@Path("/{networkId}/namespace/after/{cursor}/{blockSize}")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
+    @ApiDoc("Retrieves a list of at most 'blockSize' Namespace objects from the network specified by 'networkId', " +
+            "starting after the position given by 'cursor'. Use 'start' as the cursor to read the first block. The " +
+            "token for the next block is returned in the NDEx-Next-Cursor response header, which is absent when the " +
+            "last block has been read.")
+	public Response getNamespacesAfter(
+			@PathParam("networkId") final String networkId,
+			@PathParam("cursor") final String cursor,
+			@PathParam("blockSize") final int blockSize,
+			@Context HttpHeaders headers)
+
+			throws IllegalArgumentException, NdexException {
+		
+		logger.info(userNameForLog() + "[start: Getting list of namespaces for network " + networkId + ", cursor " + cursor + ", blockSize " + blockSize + "]");
+		
+		try {
+			return getElementBlock(networkId, NetworkElementType.NAMESPACE, cursor, 0, blockSize, NetworkEncoding.select(headers));
+		} finally {
+			logger.info(userNameForLog() + "[end: Got list of namespaces for network " + networkId + ", cursor " + cursor + ", blockSize " + blockSize + "]");
+		}
+
+	}
+
+	/*
+	 * Reads one block of elements by cursor, or by skipBlocks when cursor is null,
+	 * and streams it back as an array in the requested encoding.
+	 */
+	private Response getElementBlock(String networkId, NetworkElementType type, String cursor,
+			int skipBlocks, int blockSize, NetworkEncoding encoding) throws NdexException {
+
+		if ( !isSearchable(networkId))
+			throw new UnauthorizedOperationException("Network " + networkId + " is not readable to this user.");
+
+		ODatabaseDocumentTx db = RequestConnection.acquire();
+		try {
+			NetworkDocDAO dao = new NetworkDocDAO(db);
+			ODocument networkDoc = dao.getNetworkDocByUUIDString(networkId);
+			if (networkDoc == null)
+				throw new ObjectNotFoundException("Network with ID: " + networkId + " doesn't exist.");
+
+			ElementBlockQuery query = new ElementBlockQuery(db, type);
+			List<ORID> rids = cursor == null ?
+					query.skip(networkDoc, skipBlocks, blockSize) :
+					query.after(networkDoc, cursor, blockSize);
+			return blockResponse(new ElementArrayStreamingOutput(type, rids, encoding), query.getNextCursor(), encoding);
+		} finally {
+			RequestConnection.release(db);
+		}
+	}
+
 	@POST
 	@Path("/{networkId}/namespace")
 	@Produces("application/json")
@@ -235,6 +339,7 @@ public class NetworkAService extends NdexService {
             networkService.setNetworkProvenance(newProv);
 
 			networkService.commit();
+			networkChanged(networkId);
 			networkService.close();
 		} finally {
 			
@@ -270,11 +375,13 @@ public class NetworkAService extends NdexService {
 		if (  ! isSearchable(networkId) )
 			throw new UnauthorizedOperationException("Network " + networkId + " is not readable to this user.");
 		
-		try (NetworkDocDAO daoNew = new NetworkDocDAO()) {
+		ODatabaseDocumentTx db = RequestConnection.acquire();
+		try {
 
-			return daoNew.getProvenance(UUID.fromString(networkId));
+			return new NetworkDocDAO(db).getProvenance(UUID.fromString(networkId));
 
 		} finally {
+			RequestConnection.release(db);
 			logger.info(userNameForLog() + "[end: Got provenance of network " + networkId + "]");
 		}
 
@@ -303,11 +410,11 @@ public class NetworkAService extends NdexService {
     	NetworkDAO daoNew = null;
 
 		try {
-			db = NdexDatabase.getInstance().getAConnection();
+			db = RequestConnection.acquire();
 			
 			User user = getLoggedInUser();
 
-			if ( !Helper.checkPermissionOnNetworkByAccountName(db, networkId, user.getAccountName(),
+			if ( !PermissionCache.hasPermission(db, user.getAccountName(), networkId,
 					Permissions.WRITE)) {
 				logger.error(userNameForLog() + "[end: No write permissions for user account " + user.getAccountName() + " on network " +
 					networkId + "]");
@@ -325,13 +432,14 @@ public class NetworkAService extends NdexService {
 			UUID networkUUID = UUID.fromString(networkId);
 			daoNew.setProvenance(networkUUID, provenance);
 			daoNew.commit();
+			networkChanged(networkId);
 			return daoNew.getProvenance(networkUUID);
 		} catch (Exception e) {
 			if (null != daoNew) daoNew.rollback();
 			logger.error(userNameForLog() + "[end: Updating provenance of network " + networkId + ". Exception caught:]",  e);			
 			throw e;
 		} finally {
-			if (null != db) db.close();
+			RequestConnection.release(db);
 			logger.info(userNameForLog() + "[end: Updated provenance of network " + networkId + "]");
 		}
     }
@@ -359,11 +467,11 @@ public class NetworkAService extends NdexService {
     	NetworkDAO daoNew = null;
 
 		try {
-			db = NdexDatabase.getInstance().getAConnection();
+			db = RequestConnection.acquire();
 			
 			User user = getLoggedInUser();
 
-			if ( !Helper.checkPermissionOnNetworkByAccountName(db, networkId, user.getAccountName(),
+			if ( !PermissionCache.hasPermission(db, user.getAccountName(), networkId,
 					Permissions.WRITE)) {
 				logger.error(userNameForLog() + "[end: No write permissions for user account " + user.getAccountName() + " on network " +
 						networkId + "]");				
@@ -410,6 +518,7 @@ public class NetworkAService extends NdexService {
             daoNew.setProvenance(networkUUID, newProv);
 
 			daoNew.commit();
+			networkChanged(networkId);
 			//logInfo(logger, "Finished updating properties of network " + networkId);
 			return i;
 		} catch (Exception e) {
@@ -419,7 +528,7 @@ public class NetworkAService extends NdexService {
 			logger.error(userNameForLog() + "[end: Updating properties of network " + networkId + ". Exception caught:]", e);	
 			throw new NdexException(e.getMessage());
 		} finally {
-			if (null != db) db.close();
+			RequestConnection.release(db);
 			logger.info(userNameForLog() + "[end: Updated properties of network " + networkId + "]");
 		}
     }
@@ -440,10 +549,10 @@ public class NetworkAService extends NdexService {
     	NetworkDAO daoNew = null;
 
 		try {
-			db = NdexDatabase.getInstance().getAConnection();
+			db = RequestConnection.acquire();
 			User user = getLoggedInUser();
 
-			if ( !Helper.checkPermissionOnNetworkByAccountName(db, networkId, user.getAccountName(),
+			if ( !PermissionCache.hasPermission(db, user.getAccountName(), networkId,
 					Permissions.WRITE)) {
 				logger.error(userNameForLog() + "[end: No write permissions for user account " + user.getAccountName() + " on network " +
 						networkId + "]");					
@@ -488,6 +597,7 @@ public class NetworkAService extends NdexService {
 
 
 			daoNew.commit();
+			networkChanged(networkId);
 			return i;
 		} catch (Exception e) {
 			if (null != daoNew) {
@@ -497,7 +607,7 @@ public class NetworkAService extends NdexService {
 			logger.error(userNameForLog() + "[end: Updating presentationProperties field of network " + networkId + ". Exception caught:]", e);	
 			throw e;
 		} finally {
-			if (null != db) db.close();
+			RequestConnection.release(db);
 			logger.info(userNameForLog() + "[end: Updated presentationProperties field of network " + networkId + "]");			
 		}
     }
@@ -522,32 +632,22 @@ public class NetworkAService extends NdexService {
 
     	logger.info(userNameForLog() + "[start: Getting networkSummary of network " + networkId + "]");
 
-		ODatabaseDocumentTx db = null;
 		try {
-			db = NdexDatabase.getInstance().getAConnection();
-
-			NetworkDocDAO networkDocDao = new NetworkDocDAO(db);
+			NetworkSummary summary = NetworkSummaryCache.getSummary(networkId);
 
-			VisibilityType vt = Helper.getNetworkVisibility(db, networkId);
+			VisibilityType vt = summary.getVisibility();
 			boolean hasPrivilege = (vt == VisibilityType.PUBLIC || vt== VisibilityType.DISCOVERABLE);
 
 			if ( !hasPrivilege && getLoggedInUser() != null) {
-				hasPrivilege = networkDocDao.checkPrivilege(getLoggedInUser().getAccountName(),
+				hasPrivilege = PermissionCache.hasPermission(null, getLoggedInUser().getAccountName(),
 						networkId, Permissions.READ);
 			}
 			if ( hasPrivilege) {
-				ODocument doc =  networkDocDao.getNetworkDocByUUIDString(networkId);
-				if (doc == null)
-					throw new ObjectNotFoundException("Network with ID: " + networkId + " doesn't exist.");
-				NetworkSummary summary = NetworkDocDAO.getNetworkSummary(doc);
-				db.close();
-				db = null;
 				//logInfo(logger, "NetworkSummary of " + networkId + " returned.");
 				return summary;
 
 			}
 		} finally {
-			if (db != null) db.close();
 			logger.info(userNameForLog() + "[end: Got networkSummary of network " + networkId + "]");
 		}
 		
@@ -559,7 +659,7 @@ public class NetworkAService extends NdexService {
 	@PermitAll
 	@GET
 	@Path("/{networkId}/edge/asNetwork/{skipBlocks}/{blockSize}")
-	@Produces("application/json")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
 	@ApiDoc("This method retrieves a subnetwork of the network specified by 'networkId' based on a ‘block’ of " +
 	        "edges, where a ‘block’ is simply a set that is contiguous in the network as stored in the specific " +
 	        "NDEx Server. The maximum number of edges to retrieve in the query is set by 'blockSize' " +
@@ -583,63 +683,138 @@ public class NetworkAService extends NdexService {
     	
 		ODatabaseDocumentTx db = null;
 		try {
-			db = NdexDatabase.getInstance().getAConnection();
+			db = RequestConnection.acquire();
 			NetworkDAO dao = new NetworkDAO(db);
 	 		Network n = dao.getNetwork(UUID.fromString(networkId), skipBlocks, blockSize);
 	        return n;
 		} finally {
-			if ( db !=null) db.close();
+			RequestConnection.release(db);
 			logger.info(userNameForLog() + "[end: Got edges of network " + networkId + ", skipBlocks " + skipBlocks + ", blockSize " + blockSize +"]");
 		}
 	}
 
+	@PermitAll
+	@GET
+	@Path("/{networkId}/edge/asNetwork/after/{cursor}/{blockSize}")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
+	@ApiDoc("Retrieves a subnetwork of the network specified by 'networkId' based on the block of at most " +
+	        "'blockSize' edges that follows the position given by 'cursor'. Use 'start' as the cursor to read the " +
+	        "first block. The token for the next block is returned in the NDEx-Next-Cursor response header, which " +
+	        "is absent when the last block has been read. Unlike the skipBlocks method, each block costs the same " +
+	        "to read no matter how far into the network it is.")
+	public Response getEdgesAfter(
+			@PathParam("networkId") final String networkId,
+			@PathParam("cursor") final String cursor,
+			@PathParam("blockSize") final int blockSize,
+			@Context HttpHeaders headers)
+
+			throws IllegalArgumentException, NdexException {
+
+		logger.info(userNameForLog() + "[start: Getting edges of network " + networkId + ", cursor " + cursor + ", blockSize " + blockSize +"]");
+
+		if ( !isSearchable(networkId))
+			throw new UnauthorizedOperationException("Network " + networkId + " is not readable to this user.");
+
+		ODatabaseDocumentTx db = RequestConnection.acquire();
+		try {
+			EdgeBlockReader reader = new EdgeBlockReader(db);
+			Network n = reader.getNetworkBlock(networkId, cursor, blockSize);
+			return blockResponse(n, reader.getNextCursor(), NetworkEncoding.select(headers));
+		} finally {
+			RequestConnection.release(db);
+			logger.info(userNameForLog() + "[end: Got edges of network " + networkId + ", cursor " + cursor + ", blockSize " + blockSize +"]");
+		}
+	}
+
+	private static Response blockResponse(Object block, String nextCursor, NetworkEncoding encoding) {
+		Response.ResponseBuilder builder = Response.ok(block, encoding.getMediaType());
+		if ( nextCursor != null)
+			builder.header(ElementCursor.NEXT_CURSOR_HEADER, nextCursor);
+		return builder.build();
+	}
+
 	@PermitAll
 	@GET
 	@Path("/{networkId}/asNetwork")
 //	@Produces("application/json")
 	@ApiDoc("The getCompleteNetwork method enables an application to obtain an entire network as a JSON " +
-	        "structure. This is performed as a monolithic operation, so care should be taken when requesting " +
+	        "structure. The network is streamed to the client as it is read from the database, so server memory " +
+	        "use does not grow with the network size, but care should still be taken when requesting " +
 	        "very large networks. Applications can use the getNetworkSummary method to check the node " +
 	        "and edge counts for a network before attempting to use getCompleteNetwork. As an " +
 	        "optimization, networks that are designated read-only (see Make a Network Read-Only below) " +
-	        "are cached by NDEx for rapid access. ")
+	        "are cached by NDEx for rapid access. Cached networks are returned with an ETag, so a client can " +
+	        "send If-None-Match to get a 304 response when its copy is current, and a byte Range, so an " +
+	        "interrupted download can be resumed. Clients that send Accept: application/x-jackson-smile or " +
+	        "application/cbor get the same structure in that binary encoding, which is faster to parse.")
 	// new Implmentation to handle cached network 
-	public Response getCompleteNetwork(	@PathParam("networkId") final String networkId)
+	public Response getCompleteNetwork(	@PathParam("networkId") final String networkId,
+			@Context Request request,
+			@Context HttpHeaders headers,
+			@HeaderParam("Range") String range,
+			@HeaderParam("If-Range") String ifRange)
 			throws IllegalArgumentException, NdexException {
 
     	logger.info(userNameForLog() + "[start: Getting complete network " + networkId + "]");
 
 		if ( isSearchable(networkId) ) {
 			
-			ODatabaseDocumentTx db = NdexDatabase.getInstance().getAConnection();
-			NetworkDAO daoNew = new NetworkDAO(db);
-			
-			NetworkSummary sum = daoNew.getNetworkSummaryById(networkId);
+			NetworkEncoding encoding = NetworkEncoding.select(headers);
+			NetworkSummary sum = NetworkSummaryCache.getSummary(networkId);
 			long commitId = sum.getReadOnlyCommitId();
-			if ( commitId > 0 && commitId == sum.getReadOnlyCacheId()) {
-				daoNew.close();
-				try {
-					FileInputStream in = new FileInputStream(
-							Configuration.getInstance().getNdexNetworkCachePath() + commitId +".gz")  ;
-				
-					setZipFlag();
-					logger.info(userNameForLog() + "[end: return cached network " + networkId + "]");
-					return 	Response.ok().type(MediaType.APPLICATION_JSON_TYPE).entity(in).build();
-				} catch (IOException e) {
-					throw new NdexException ("Ndex server can't find file: " + e.getMessage());
-				}
+			if ( commitId > 0 && commitId != sum.getReadOnlyCacheId()) {
+				// the read-only cache is built by a task, so a cached summary may not know it is ready yet.
+				NetworkSummaryCache.invalidate(networkId);
+				sum = NetworkSummaryCache.getSummary(networkId);
+				commitId = sum.getReadOnlyCommitId();
+			}
+			// the read-only cache is JSON only; binary encodings are served from snapshots.
+			if ( encoding == NetworkEncoding.JSON && commitId > 0 && commitId == sum.getReadOnlyCacheId()) {
+				File cacheFile = new File(Configuration.getInstance().getNdexNetworkCachePath() + commitId +".gz");
+				setZipFlag();
+				logger.info(userNameForLog() + "[end: return cached network " + networkId + "]");
+				return CachedFileResponse.build(cacheFile, MediaType.APPLICATION_JSON_TYPE,
+						new EntityTag(Long.toString(commitId)), request, range, ifRange);
 			}   	
 
-			Network n = daoNew.getNetworkById(UUID.fromString(networkId));
-			daoNew.close();
-			logger.info(userNameForLog() + "[end: return complete network " + networkId + "]");
-			return Response.ok(n,MediaType.APPLICATION_JSON_TYPE).build();
+			Response snapshot = getSnapshotResponse(networkId, sum, NetworkSnapshotCache.View.NETWORK, encoding,
+					request, range, ifRange);
+			if ( snapshot != null) {
+				logger.info(userNameForLog() + "[end: return network snapshot " + networkId + "]");
+				return snapshot;
+			}
+
+			logger.info(userNameForLog() + "[end: streaming complete network " + networkId + "]");
+			return Response.ok(new NetworkStreamingOutput(networkId, encoding),encoding.getMediaType()).build();
 		}
 		else
 			throw new WebApplicationException(HttpURLConnection.HTTP_UNAUTHORIZED);
 
 	}  
 
+	/*
+	 * Serves a network from the snapshot cache. When there is no snapshot of this
+	 * version yet, the request only waits if the snapshot is being written right
+	 * now; otherwise a build is queued and the caller streams the network itself.
+	 * Returns null when the caller should stream the network itself.
+	 */
+	private Response getSnapshotResponse(String networkId, NetworkSummary sum, NetworkSnapshotCache.View view,
+			NetworkEncoding encoding, Request request, String range, String ifRange) throws NdexException {
+		NetworkSnapshotCache snapshots = NetworkSnapshotCache.getInstance();
+		if ( snapshots == null)
+			return null;
+
+		File snapshot = snapshots.getSnapshot(networkId, sum, view, encoding);
+		if ( snapshot == null) {
+			snapshot = snapshots.awaitSnapshot(networkId, sum, view, encoding);
+			if ( snapshot == null)
+				return null;
+		}
+		setZipFlag();
+		return CachedFileResponse.build(snapshot, encoding.getMediaType(),
+				new EntityTag(NetworkSnapshotCache.getETag(networkId, sum, view, encoding)), request, range, ifRange);
+	}
+
 	@PermitAll
 	@GET
 	@Path("/export/{networkId}/{format}")
@@ -654,14 +829,12 @@ public class NetworkAService extends NdexService {
 		
 		if ( isSearchable(networkId) ) {
 			
-			String networkName =null;
-			try (NetworkDAO networkdao = new NetworkDAO(NdexDatabase.getInstance().getAConnection())){
-				networkName = networkdao.getNetworkSummaryById(networkId).getName();
-			}
+			String networkName = NetworkSummaryCache.getSummary(networkId).getName();
 			
 			Task exportNetworkTask = new Task();
 			exportNetworkTask.setTaskType(TaskType.EXPORT_NETWORK_TO_FILE);
-			exportNetworkTask.setPriority(Priority.LOW);
+			// an export is usually waited on, uploads are bulk work
+			exportNetworkTask.setPriority(Priority.HIGH);
 			exportNetworkTask.setResource(networkId); 
 			exportNetworkTask.setStatus(Status.QUEUED);
 			exportNetworkTask.setDescription("Export network \""+ networkName + "\" in " + format + " format");
@@ -672,7 +845,10 @@ public class NetworkAService extends NdexService {
 				throw new NdexException ("Invalid network format for network export.");
 			}
 			
-			try (TaskDAO taskDAO = new TaskDAO(NdexDatabase.getInstance().getAConnection()) ){ 
+			ODatabaseDocumentTx db = null;
+			try {
+				db = RequestConnection.acquire();
+				TaskDAO taskDAO = new TaskDAO(db);
 				UUID taskId = taskDAO.createTask(getLoggedInUser().getAccountName(),exportNetworkTask);
 				taskDAO.commit();
 				logger.info(userNameForLog() + "[end: task created to export network " + networkId + "]");
@@ -680,7 +856,9 @@ public class NetworkAService extends NdexService {
 			}  catch (Exception e) {
 				logger.error(userNameForLog() + "[end: Exception caught:]",  e);
 				throw new NdexException(e.getMessage());
-			} 
+			} finally {
+				RequestConnection.release(db);
+			}
 		}
 		
 		throw new UnauthorizedOperationException("User doesn't have read access to this network.");
@@ -692,30 +870,36 @@ public class NetworkAService extends NdexService {
 	@PermitAll
 	@GET
 	@Path("/{networkId}/asPropertyGraph")
-	@Produces("application/json")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
     @ApiDoc("Retrieves an entire network specified by 'networkId' as a PropertyGraphNetwork object. A user may wish " +
             "to retrieve a PropertyGraphNetwork rather than an ordinary Network when the would like to work with the " +
-            "network with a table-oriented data structure, for example, an R or Python data frame. (Compare this " +
-            "method to getCompleteNetwork).")
-	public PropertyGraphNetwork getCompleteNetworkAsPropertyGraph(
-			@PathParam("networkId") final String networkId)
+            "network with a table-oriented data structure, for example, an R or Python data frame. The network is " +
+            "streamed as it is read, and a gzipped copy of each version is kept, so repeated downloads support " +
+            "ETag, If-None-Match and byte Ranges like getCompleteNetwork. (Compare this method to getCompleteNetwork).")
+	public Response getCompleteNetworkAsPropertyGraph(
+			@PathParam("networkId") final String networkId,
+			@Context Request request,
+			@Context HttpHeaders headers,
+			@HeaderParam("Range") String range,
+			@HeaderParam("If-Range") String ifRange)
 
-			throws IllegalArgumentException, NdexException, JsonProcessingException {
+			throws IllegalArgumentException, NdexException {
 		
 		logger.info(userNameForLog() + "[start: Retrieving an entire network " + networkId + "as a PropertyGraphNetwork object]");
 		
 		if ( isSearchable(networkId) ) {
 		
-			ODatabaseDocumentTx db =null;
-			try {
-				db = NdexDatabase.getInstance().getAConnection();
-				NetworkDAO daoNew = new NetworkDAO(db);
-				PropertyGraphNetwork n = daoNew.getProperytGraphNetworkById(UUID.fromString(networkId));
-				return n;
-			} finally {
-				if (db !=null ) db.close();
-				logger.info(userNameForLog() + "[end: Retrieved an entire network " + networkId + "as a PropertyGraphNetwork object]");
+			NetworkEncoding encoding = NetworkEncoding.select(headers);
+			NetworkSummary sum = NetworkSummaryCache.getSummary(networkId);
+			Response snapshot = getSnapshotResponse(networkId, sum, NetworkSnapshotCache.View.PROPERTY_GRAPH, encoding,
+					request, range, ifRange);
+			if ( snapshot != null) {
+				logger.info(userNameForLog() + "[end: return PropertyGraphNetwork snapshot " + networkId + "]");
+				return snapshot;
 			}
+
+			logger.info(userNameForLog() + "[end: streaming an entire network " + networkId + "as a PropertyGraphNetwork object]");
+			return Response.ok(new PropertyGraphStreamingOutput(networkId, encoding), encoding.getMediaType()).build();
 		}
 		else {
 			logger.error(userNameForLog() + "[end: Retrieving an entire network " + networkId + "as a PropertyGraphNetwork object. Throwing WebApplicationException exception ...]");
@@ -726,7 +910,7 @@ public class NetworkAService extends NdexService {
 	@PermitAll
 	@GET
 	@Path("/{networkId}/edge/asPropertyGraph/{skipBlocks}/{blockSize}")
-	@Produces("application/json")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
     @ApiDoc("Retrieves a subnetwork of a network based on a block (where a block is simply a contiguous set) of edges" +
             ". The network is specified by 'networkId'  and the maximum number of edges to retrieve in the query is " +
             "set by 'blockSize' (which may be any number chosen by the user) while  'skipBlocks' specifies number of " +
@@ -741,12 +925,47 @@ public class NetworkAService extends NdexService {
 			throws IllegalArgumentException, NdexException {
 
 		logger.info(userNameForLog() + "[start: Retrieving a subnetwork of network " + networkId + " with skipBlocks " + skipBlocks + " and blockSize " + blockSize + "]");
-		ODatabaseDocumentTx db = NdexDatabase.getInstance().getAConnection();
-		NetworkDAO dao = new NetworkDAO(db);
- 		PropertyGraphNetwork n = dao.getProperytGraphNetworkById(UUID.fromString(networkId),skipBlocks, blockSize);
-		db.close();
-		logger.info(userNameForLog() + "[end: Retrieved a subnetwork of network " + networkId + " with skipBlocks " + skipBlocks + " and blockSize " + blockSize + "]");		
-        return n;
+		ODatabaseDocumentTx db = RequestConnection.acquire();
+		try {
+			NetworkDAO dao = new NetworkDAO(db);
+	 		PropertyGraphNetwork n = dao.getProperytGraphNetworkById(UUID.fromString(networkId),skipBlocks, blockSize);
+			logger.info(userNameForLog() + "[end: Retrieved a subnetwork of network " + networkId + " with skipBlocks " + skipBlocks + " and blockSize " + blockSize + "]");		
+	        return n;
+		} finally {
+			RequestConnection.release(db);
+		}
+	}
+
+	@PermitAll
+	@GET
+	@Path("/{networkId}/edge/asPropertyGraph/after/{cursor}/{blockSize}")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
+	@ApiDoc("Retrieves a subnetwork of the network specified by 'networkId' as a PropertyGraphNetwork object, based " +
+	        "on the block of at most 'blockSize' edges that follows the position given by 'cursor'. Use 'start' as " +
+	        "the cursor to read the first block. The token for the next block is returned in the NDEx-Next-Cursor " +
+	        "response header, which is absent when the last block has been read. (Compare this method to getEdgesAfter).")
+	public Response getPropertyGraphEdgesAfter(
+			@PathParam("networkId") final String networkId,
+			@PathParam("cursor") final String cursor,
+			@PathParam("blockSize") final int blockSize,
+			@Context HttpHeaders headers)
+
+			throws IllegalArgumentException, NdexException {
+
+		logger.info(userNameForLog() + "[start: Retrieving a subnetwork of network " + networkId + " with cursor " + cursor + " and blockSize " + blockSize + "]");
+
+		if ( !isSearchable(networkId))
+			throw new UnauthorizedOperationException("Network " + networkId + " is not readable to this user.");
+
+		ODatabaseDocumentTx db = RequestConnection.acquire();
+		try {
+			EdgeBlockReader reader = new EdgeBlockReader(db);
+			PropertyGraphNetwork n = reader.getPropertyGraphBlock(networkId, cursor, blockSize);
+			return blockResponse(n, reader.getNextCursor(), NetworkEncoding.select(headers));
+		} finally {
+			RequestConnection.release(db);
+			logger.info(userNameForLog() + "[end: Retrieved a subnetwork of network " + networkId + " with cursor " + cursor + " and blockSize " + blockSize + "]");
+		}
 	}
 
 	/**************************************************************************
@@ -788,7 +1007,7 @@ public class NetworkAService extends NdexService {
 		ODatabaseDocumentTx db = null;
 		try {
 
-			db = NdexDatabase.getInstance().getAConnection();
+			db = RequestConnection.acquire();
 			NetworkDAO networkDao = new NetworkDAO(db);
             
 			List<Membership> results = networkDao.getNetworkUserMemberships(
@@ -798,7 +1017,7 @@ public class NetworkAService extends NdexService {
 			return results;
 
 		} finally {
-			if (db != null) db.close();
+			RequestConnection.release(db);
 		}
 	}
 
@@ -821,11 +1040,11 @@ public class NetworkAService extends NdexService {
 		
 		ODatabaseDocumentTx db = null;
 		try {
-			db = NdexDatabase.getInstance().getAConnection();
+			db = RequestConnection.acquire();
 			User user = getLoggedInUser();
 			NetworkDAO networkDao = new NetworkDAO(db);
 
-			if (!Helper.isAdminOfNetwork(db, networkId, user.getExternalId().toString())) {
+			if (!PermissionCache.isAdmin(db, networkId, user.getExternalId().toString())) {
 				logger.error(userNameForLog() + "[end: User " + userUUID + " not an admin of network " + networkId + 
 						".  Throwing  WebApplicationException exception ...]");				
 				throw new WebApplicationException(HttpURLConnection.HTTP_UNAUTHORIZED);
@@ -833,10 +1052,12 @@ public class NetworkAService extends NdexService {
 
 			int count = networkDao.revokePrivilege(networkId, userUUID);
             db.commit();
+            NetworkSummaryCache.invalidate(networkId);
+            PermissionCache.networkMembershipChanged(networkId);
     		logger.info(userNameForLog() + "[end: Removed any permissions for network " + networkId + " for user " + userUUID + "]");
             return count;
 		} finally {
-			if (db != null) db.close();
+			RequestConnection.release(db);
 		}
 	}
 	
@@ -866,12 +1087,12 @@ public class NetworkAService extends NdexService {
 		
 		ODatabaseDocumentTx db = null;
 		try {
-			db = NdexDatabase.getInstance().getAConnection();
+			db = RequestConnection.acquire();
 
 			User user = getLoggedInUser();
 			NetworkDAO networkDao = new NetworkDAO(db);
 
-			if (!Helper.isAdminOfNetwork(db, networkId, user.getExternalId().toString())) {
+			if (!PermissionCache.isAdmin(db, networkId, user.getExternalId().toString())) {
 				logger.error(userNameForLog() + "[end: User " + user.getExternalId().toString() + " not an admin of network " + networkId + 
 						".  Throwing  WebApplicationException exception ...]");					
 				throw new WebApplicationException(HttpURLConnection.HTTP_UNAUTHORIZED);
@@ -879,10 +1100,12 @@ public class NetworkAService extends NdexService {
 
 	        int count = networkDao.grantPrivilege(networkId, membership.getMemberUUID().toString(), membership.getPermissions());
 			db.commit();
+			NetworkSummaryCache.invalidate(networkId);
+			PermissionCache.networkMembershipChanged(networkId);
 			logger.info(userNameForLog() + "[end: Updated membership for network " + networkId + "]");
 	        return count;
 		} finally {
-			if (db != null) db.close();
+			RequestConnection.release(db);
 		}
 	}
 
@@ -905,7 +1128,7 @@ public class NetworkAService extends NdexService {
 		
 		ODatabaseDocumentTx db = null;
 		try {
-			db = NdexDatabase.getInstance().getAConnection();
+			db = RequestConnection.acquire();
 
 			User user = getLoggedInUser();
 			NetworkDAO networkDao = new NetworkDAO(db);
@@ -917,7 +1140,7 @@ public class NetworkAService extends NdexService {
 			}
 
 
-			if ( !Helper.checkPermissionOnNetworkByAccountName(db, networkId, user.getAccountName(),
+			if ( !PermissionCache.hasPermission(db, user.getAccountName(), networkId,
 					Permissions.WRITE)) {
 				logger.error(userNameForLog() + "[end: No write permissions for user account " + user.getAccountName() + " on network " +
 						networkId + ".  Throwing  WebApplicationException exception ...]");		
@@ -982,8 +1205,9 @@ public class NetworkAService extends NdexService {
                 networkDao.setProvenance(networkUUID, newProv);
             }
 			db.commit();
+			networkChanged(networkId);
 		} finally {
-			if (db != null) db.close();
+			RequestConnection.release(db);
 			logger.info(userNameForLog() + "[end: Updated the pro information for network " + networkId + "]");
 		}
 	}
@@ -993,7 +1217,7 @@ public class NetworkAService extends NdexService {
 	@PermitAll
 	@POST
 	@Path("/{networkId}/asNetwork/query")
-	@Produces("application/json")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
     @ApiDoc("Retrieves a 'neighborhood' subnetwork of the network specified by ‘networkId’. The query finds " +
             "the subnetwork by a traversal of the network starting with nodes associated with identifiers " +
             "specified in a POSTed JSON query object. " +
@@ -1011,16 +1235,14 @@ public class NetworkAService extends NdexService {
 		logger.info(userNameForLog() + "[start: Retrieving neighborhood subnetwork for network " + networkId +  
 				" with phrase \"" + queryParameters.getSearchString() + "\"]");
 
-		try (ODatabaseDocumentTx db = NdexDatabase.getInstance().getAConnection()) {
-
-		   NetworkDAO networkDao = new NetworkDAO(db);
+		ODatabaseDocumentTx db = RequestConnection.acquire();
+		try {
 
-		   VisibilityType vt = Helper.getNetworkVisibility(db, networkId);
+		   VisibilityType vt = NetworkSummaryCache.getSummary(networkId).getVisibility();
 		   boolean hasPrivilege = (vt == VisibilityType.PUBLIC );
 
 		   if ( !hasPrivilege && getLoggedInUser() != null) {
-			   hasPrivilege = networkDao.checkPrivilege(
-					   (getLoggedInUser() == null ? null : getLoggedInUser().getAccountName()),
+			   hasPrivilege = PermissionCache.hasPermission(db, getLoggedInUser().getAccountName(),
 					   networkId, Permissions.READ);
 		   }
 
@@ -1038,14 +1260,16 @@ public class NetworkAService extends NdexService {
 		   logger.error(userNameForLog() + "[end: Retrieving neighborhood subnetwork for network " + networkId +  
 					" with phrase \"" + queryParameters.getSearchString() + "\".  Throwing WebApplicationException exception ...]");
 		   throw new WebApplicationException(HttpURLConnection.HTTP_UNAUTHORIZED);
-		} 
+		} finally {
+			RequestConnection.release(db);
+		}
 	}
 
 	
 	@PermitAll
 	@POST
 	@Path("/{networkId}/asNetwork/prototypeNetworkQuery")
-	@Produces("application/json")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
     @ApiDoc("This method retrieves a filtered subnetwork of the network specified by ‘networkId’ based on a " +
             "POSTed JSON query object.  The returned subnetwork contains edges which satisfy both the " +
             "edgeFilter and the nodeFilter up to a specified limit. The subnetwork is returned as a Network " +
@@ -1074,27 +1298,44 @@ public class NetworkAService extends NdexService {
 	
 	
 	
+	/*
+	 * Called after a change to a network is committed, so cached copies of the
+	 * network are dropped.
+	 */
+	private static void networkChanged(String networkId) {
+		NetworkSummaryCache.invalidate(networkId);
+		NetworkSnapshotCache snapshots = NetworkSnapshotCache.getInstance();
+		if ( snapshots != null)
+			snapshots.networkUpdated(networkId);
+		ExportCache.networkChanged(networkId);
+	}
+
+	private static void networkDeleted(String networkId) {
+		NetworkSummaryCache.invalidate(networkId);
+		PermissionCache.networkMembershipChanged(networkId);
+		NetworkSnapshotCache snapshots = NetworkSnapshotCache.getInstance();
+		if ( snapshots != null)
+			snapshots.networkDeleted(networkId);
+		ExportCache.networkChanged(networkId);
+	}
+
 	private boolean isSearchable(String networkId) 
 				throws ObjectNotFoundException, NdexException {
-		   try ( NetworkDocDAO networkDao = new NetworkDocDAO() ) {
+		   VisibilityType vt = NetworkSummaryCache.getSummary(networkId).getVisibility();
+		   if ( vt == VisibilityType.PUBLIC )
+			   return true;
 
-		       VisibilityType vt = Helper.getNetworkVisibility(networkDao.getDBConnection(), networkId);
-		       boolean hasPrivilege = (vt == VisibilityType.PUBLIC );
+		   if ( getLoggedInUser() == null)
+			   return false;
 
-		       if ( !hasPrivilege && getLoggedInUser() != null) {
-			     hasPrivilege = networkDao.checkPrivilege(
-					   (getLoggedInUser() == null ? null : getLoggedInUser().getAccountName()),
-					   networkId, Permissions.READ);
-		       }
-
-		       return hasPrivilege;
-		   }
+		   return PermissionCache.hasPermission(null, getLoggedInUser().getAccountName(),
+				   networkId, Permissions.READ);
 	}
 
 	@PermitAll
 	@POST
 	@Path("/{networkId}/asPropertyGraph/query")
-	@Produces("application/json")
+	@Produces({"application/json", NetworkEncoding.APPLICATION_SMILE, NetworkEncoding.APPLICATION_CBOR})
     @ApiDoc("Retrieves a 'neighborhood' subnetwork of a network based on identifiers specified in a POSTed " +
             "SimplePathQuery object. The network is specified by networkId. In the first step of the query, " +
             "a set of base terms exactly matching identifiers found in the searchString of the SimplePathQuery is " +
@@ -1118,20 +1359,17 @@ public class NetworkAService extends NdexService {
 		ODatabaseDocumentTx db = null;
 
 		try {
-			db = NdexDatabase.getInstance().getAConnection();
-
-			NetworkDAO networkDao = new NetworkDAO(db);
+			db = RequestConnection.acquire();
 
-   		    VisibilityType vt = Helper.getNetworkVisibility(db, networkId);
+   		    VisibilityType vt = NetworkSummaryCache.getSummary(networkId).getVisibility();
 			boolean hasPrivilege = (vt == VisibilityType.PUBLIC );
 
 			if ( !hasPrivilege && getLoggedInUser() != null) {
-				   hasPrivilege = networkDao.checkPrivilege(
-						   (getLoggedInUser() == null ? null : getLoggedInUser().getAccountName()),
+				   hasPrivilege = PermissionCache.hasPermission(db, getLoggedInUser().getAccountName(),
 						   networkId, Permissions.READ);
 			}
 
-			db.close();
+			RequestConnection.release(db);
 			db = null;
 			
 			if ( hasPrivilege) {
@@ -1144,7 +1382,7 @@ public class NetworkAService extends NdexService {
 
 			}
 		} finally {
-			if ( db !=null) db.close();
+			RequestConnection.release(db);
 		}
 
 		logger.error(userNameForLog() + "[end: Retrieving neighborhood subnetwork for network " + networkId +  
@@ -1211,7 +1449,9 @@ public class NetworkAService extends NdexService {
     	if(query.getAccountName() != null)
     		query.setAccountName(query.getAccountName().toLowerCase());
         
-    	try (ODatabaseDocumentTx db = NdexDatabase.getInstance().getAConnection()) {
+    	ODatabaseDocumentTx db = null;
+    	try {
+    		db = RequestConnection.acquire();
             NetworkSearchDAO dao = new NetworkSearchDAO(db);
             Collection<NetworkSummary> result = new ArrayList <> ();
 
@@ -1226,6 +1466,8 @@ public class NetworkAService extends NdexService {
 			logger.error(userNameForLog() + "[end: Retrieving NetworkSummary objects using query \"" + 
 			    query.getSearchString() + "\". Exception caught:]", e);			
         	throw new NdexException(e.getMessage());
+        } finally {
+        	RequestConnection.release(db);
         }
 
 	}
@@ -1420,11 +1662,11 @@ public class NetworkAService extends NdexService {
                 !Strings.isNullOrEmpty(newNetwork.getName()),
                 "A network name is required");
 
-        try ( ODatabaseDocumentTx conn = NdexDatabase.getInstance().getAConnection() ) {
+        try ( ODatabaseDocumentTx conn = ConnectionPoolMonitor.getAConnection() ) {
            User user = getLoggedInUser();
 
-           if (!Helper.checkPermissionOnNetworkByAccountName(conn, 
-        		   newNetwork.getExternalId().toString(), user.getAccountName(),
+           if (!PermissionCache.hasPermission(conn, user.getAccountName(),
+        		   newNetwork.getExternalId().toString(),
         		   Permissions.WRITE))
            {
         	   throw new WebApplicationException(HttpURLConnection.HTTP_UNAUTHORIZED);
@@ -1453,7 +1695,9 @@ public class NetworkAService extends NdexService {
         try ( NdexNetworkCloneService service = new NdexNetworkCloneService(NdexDatabase.getInstance(), 
         		  newNetwork, getLoggedInUser().getAccountName()) ) {
 
-           return service.updateNetwork();
+           NetworkSummary summary = service.updateNetwork();
+           networkChanged(newNetwork.getExternalId().toString());
+           return summary;
 
         }
     }
@@ -1472,9 +1716,9 @@ public class NetworkAService extends NdexService {
 		//logInfo(logger, "Deleting network  " + id);
 		ODatabaseDocumentTx db = null;
 		try{
-			db = NdexDatabase.getInstance().getAConnection();
+			db = RequestConnection.acquire();
 
-            if (!Helper.checkPermissionOnNetworkByAccountName(db, id, userAcc, Permissions.ADMIN))
+            if (!PermissionCache.hasPermission(db, userAcc, id, Permissions.ADMIN))
 	        {
 	           throw new WebApplicationException(HttpURLConnection.HTTP_UNAUTHORIZED);
 	        }
@@ -1489,16 +1733,14 @@ public class NetworkAService extends NdexService {
 				//logger.info("Start deleting network " + id);
 				networkDao.logicalDeleteNetwork(id);
 				networkDao.commit();
-				Task task = new Task();
-				task.setTaskType(TaskType.SYSTEM_DELETE_NETWORK);
-				task.setResource(id);
-				NdexServerQueue.INSTANCE.addSystemTask(task);
+				NetworkDeleter.submit(id);
+				networkDeleted(id);
 			}
 			db = null;
 			logger.info(userNameForLog() + "[end: Deleted network " + id + "]");
 			//logger.info("Network " + id + " deleted.");
 		} finally {
-			if ( db != null) db.close();
+			RequestConnection.release(db);
 		}
 	}
 	
@@ -1506,9 +1748,16 @@ public class NetworkAService extends NdexService {
 	/**************************************************************************
 	 * Saves an uploaded network file. Determines the type of file uploaded,
 	 * saves the file, and creates a task.
+	 * 
+	 * The multipart body is read straight from the request and the file part
+	 * is written to disk as it arrives, so the file is never held in memory.
 	 *
-	 * @param uploadedNetwork
-	 *            The uploaded network file.
+	 * @param contentType
+	 *            The Content-Type of the request, which carries the multipart
+	 *            boundary.
+	 * @param body
+	 *            The multipart body with the fields "filename", "fileUpload"
+	 *            and optionally "checksum".
 	 * @throws IllegalArgumentException
 	 *             Bad input.
 	 * @throws NdexException
@@ -1524,80 +1773,231 @@ public class NetworkAService extends NdexService {
 	@Produces("application/json")
     @ApiDoc("Upload a network file into the current users NDEx account. This can take some time while background " +
             "processing converts the data from the file into the common NDEx format. This method errors if the " +
-            "network is missing or if it has no filename or no file data.")
-	public void uploadNetwork(@MultipartForm UploadedFile uploadedNetwork)
+            "network is missing or if it has no filename or no file data, or if the file is larger than " +
+            "NETWORK_UPLOAD_MAX_BYTES. If a 'checksum' field holds the SHA-256 of the file in hex, the upload " +
+            "is rejected when the received file doesn't match it.")
+	public void uploadNetwork(@HeaderParam("Content-Type") String contentType, InputStream body)
 			throws IllegalArgumentException, SecurityException, NdexException {
 
 		logger.info(userNameForLog() + "[start: Uploading network file]");
 		
+		UUID taskId = NdexUUIDFactory.INSTANCE.getNDExUUID();
+
+		final File uploadedNetworkPath = getUploadedNetworkPath();
+
+		// the filename field may come after the file, so the file gets its
+		// extension once the whole body has been read
+		final File partialFile = new File(uploadedNetworkPath, taskId + ".part");
+		String filename = null;
+		String partFilename = null;
+		String expectedChecksum = null;
+		String checksum = null;
+		long size = -1;
+
 		try {
-			Preconditions
-					.checkNotNull(uploadedNetwork, "A network is required");
-			Preconditions.checkState(
-					!Strings.isNullOrEmpty(uploadedNetwork.getFilename()),
-					"A file name containg the network data is required");
-			Preconditions.checkNotNull(uploadedNetwork.getFileData(),
-					"Network file data is required");
-			Preconditions.checkState(uploadedNetwork.getFileData().length > 0,
-					"The file data is empty");
-		} catch (Exception e1) {
-			logger.error(userNameForLog() + "[end: Uploading network file. Exception caught:]", e1 );
-			throw new NdexException(e1.getMessage());
+			MultipartStreamReader reader = new MultipartStreamReader(body, contentType);
+			while (reader.nextPart()) {
+				switch (reader.getFieldName()) {
+				case "filename":
+					filename = reader.getPartAsString(maxUploadFieldLength);
+					break;
+				case "checksum":
+					expectedChecksum = reader.getPartAsString(maxUploadFieldLength).trim().toLowerCase();
+					break;
+				case "fileUpload":
+					partFilename = reader.getFileName();
+					MessageDigest digest = UploadWriter.newDigest();
+					try (FileChannel out = FileChannel.open(partialFile.toPath(), StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+						size = UploadWriter.write(reader.getPartStream(), out, 0, getUploadLimit(), digest);
+					}
+					checksum = UploadWriter.toHex(digest.digest());
+					break;
+				default:
+					break;
+				}
+			}
+
+			if (Strings.isNullOrEmpty(filename))
+				filename = partFilename;
+			if (Strings.isNullOrEmpty(filename))
+				throw new NdexException("A file name containg the network data is required");
+			if (size < 0)
+				throw new NdexException("Network file data is required");
+			if (size == 0)
+				throw new NdexException("The file data is empty");
+			if (expectedChecksum != null && !expectedChecksum.equals(checksum))
+				throw new NdexException("Checksum of the uploaded file is " + checksum + ", expected " +
+						expectedChecksum + ".");
+
+			filename = FilenameUtils.getName(filename);
+			String ext = getUploadExtension(filename);
+			File uploadedNetworkFile = new File(uploadedNetworkPath, taskId + "." + ext);
+			Files.move(partialFile.toPath(), uploadedNetworkFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			createUploadTask(taskId, filename, uploadedNetworkFile.getAbsolutePath());
+		} catch (IOException e) {
+			logger.error(userNameForLog() + "[end: Failed to save uploaded file " + filename + ". Exception caught:]", e);
+			throw new NdexException("Failed to save uploaded file " + filename + " on server: " + e.getMessage());
+		} catch (NdexException e) {
+			logger.error(userNameForLog() + "[end: Uploading network file. Exception caught:]", e);
+			throw e;
+		} finally {
+			// only left behind when the upload failed
+			if (partialFile.exists())
+				partialFile.delete();
 		}
 
-		String ext = FilenameUtils.getExtension(uploadedNetwork.getFilename()).toLowerCase();
+		logger.info(userNameForLog() + "[end: Uploading network file. Task for uploading network is created. " +
+				size + " bytes, SHA-256 " + checksum + "]");
+	}
 
-		if ( !ext.equals("sif") && !ext.equals("xbel") && !ext.equals("xgmml") && !ext.equals("owl") 
-				&& !ext.equals("xls") && ! ext.equals("xlsx")) {
-			logger.error(userNameForLog() + "[end: The uploaded file type is not supported; must be Excel, XGMML, SIF, BioPAX or XBEL.  Throwing  IllegalArgumentException...]");
-			throw new NdexException(
-					"The uploaded file type is not supported; must be Excel, XGMML, SIF, BioPAX or XBEL.");
-		}
-		
-		UUID taskId = NdexUUIDFactory.INSTANCE.getNDExUUID();
+	/**************************************************************************
+	 * Opens a session for uploading a network file in chunks. The client then
+	 * PUTs each chunk, in any order and as often as needed, and commits the
+	 * session to create the same task as uploadNetwork.
+	 *
+	 * @param request
+	 *            The filename and size of the file, and optionally the SHA-256
+	 *            checksum of the whole file.
+	 * @throws NdexException
+	 *             The file type is not supported or the file is too large.
+	 **************************************************************************/
+	@POST
+	@Path("/upload/session")
+	@Consumes("application/json")
+	@Produces("application/json")
+	@ApiDoc("Opens a chunked upload of a network file. Send the 'filename' and 'size' of the file, and optionally " +
+			"the SHA-256 'checksum' of the whole file in hex. Returns the session with its 'sessionId', " +
+			"'chunkSize' and 'missingChunks'. A session is kept for UPLOAD_SESSION_TTL_HOURS after its last chunk.")
+	public ChunkedUploadSession createUploadSession(final ChunkedUploadSession request) throws NdexException {
+
+		logger.info(userNameForLog() + "[start: Opening upload session]");
+
+		if ( request == null || Strings.isNullOrEmpty(request.getFilename()))
+			throw new NdexException("A file name containg the network data is required");
+		if ( request.getSize() <= 0)
+			throw new NdexException("The file data is empty");
+		long limit = getUploadLimit();
+		if ( limit > 0 && request.getSize() > limit)
+			throw new NdexException("Uploaded file is larger than the limit of " + limit + " bytes.");
+
+		String filename = FilenameUtils.getName(request.getFilename());
+		getUploadExtension(filename);
+
+		ChunkedUploadSession session = ChunkedUploads.create(NdexUUIDFactory.INSTANCE.getNDExUUID(),
+				getLoggedInUser().getAccountName(), filename, request.getSize(), request.getChecksum());
+		logger.info(userNameForLog() + "[end: Upload session " + session.getSessionId() + " opened for " +
+				filename + ", " + session.getChunkCount() + " chunks]");
+		return session;
+	}
+
+	@GET
+	@Path("/upload/session/{sessionId}")
+	@Produces("application/json")
+	@ApiDoc("Returns a chunked upload session, with the chunks that still have to be sent in 'missingChunks'.")
+	public ChunkedUploadSession getUploadSession(@PathParam("sessionId") final String sessionId)
+			throws NdexException {
+		return ChunkedUploads.get(sessionId, getLoggedInUser().getAccountName());
+	}
+
+	@PUT
+	@Path("/upload/session/{sessionId}/{chunk}")
+	@Consumes("application/octet-stream")
+	@Produces("application/json")
+	@ApiDoc("Uploads chunk number 'chunk' (from 0) of a chunked upload. Every chunk but the last must be exactly " +
+			"'chunkSize' bytes. If the 'checksum' query parameter holds the SHA-256 of the chunk in hex, a chunk " +
+			"that doesn't match it is rejected. A chunk can be sent again after a failure.")
+	public ChunkedUploadSession uploadChunk(@PathParam("sessionId") final String sessionId,
+			@PathParam("chunk") final int chunk,
+			@QueryParam("checksum") final String checksum,
+			InputStream data) throws NdexException {
+
+		ChunkedUploadSession session = ChunkedUploads.get(sessionId, getLoggedInUser().getAccountName());
+		return ChunkedUploads.writeChunk(session, chunk, data, checksum);
+	}
 
+	@POST
+	@Path("/upload/session/{sessionId}/commit")
+	@Produces("application/json")
+	@ApiDoc("Finishes a chunked upload once all chunks are in, and creates the task that loads the network. " +
+			"Fails if the file doesn't match the checksum given when the session was opened. Returns the task id.")
+	public String commitUploadSession(@PathParam("sessionId") final String sessionId) throws NdexException {
+
+		logger.info(userNameForLog() + "[start: Committing upload session " + sessionId + "]");
+
+		final ChunkedUploadSession session = ChunkedUploads.get(sessionId, getLoggedInUser().getAccountName());
+		String ext = getUploadExtension(session.getFilename());
+		File uploadedNetworkFile = new File(getUploadedNetworkPath(), session.getSessionId() + "." + ext);
+		final UUID taskId = UUID.fromString(session.getSessionId());
+
+		// the session stays open until the task is saved, so a failed commit can be retried.
+		ChunkedUploads.commit(session, uploadedNetworkFile, new ChunkedUploads.Handoff() {
+			@Override
+			public void accept(File file) throws NdexException {
+				createUploadTask(taskId, session.getFilename(), file.getAbsolutePath());
+			}
+		});
+		logger.info(userNameForLog() + "[end: Upload session " + sessionId + " committed, task " + taskId + " created]");
+		return taskId.toString();
+	}
+
+	@DELETE
+	@Path("/upload/session/{sessionId}")
+	@Produces("application/json")
+	@ApiDoc("Cancels a chunked upload and deletes the chunks received so far.")
+	public void deleteUploadSession(@PathParam("sessionId") final String sessionId) throws NdexException {
+		ChunkedUploads.abort(ChunkedUploads.get(sessionId, getLoggedInUser().getAccountName()));
+		logger.info(userNameForLog() + "[Upload session " + sessionId + " cancelled]");
+	}
+
+	private static File getUploadedNetworkPath() throws NdexException {
 		final File uploadedNetworkPath = new File(Configuration.getInstance().getNdexRoot() +
 				"/uploaded-networks");
 		if (!uploadedNetworkPath.exists())
 			uploadedNetworkPath.mkdir();
+		return uploadedNetworkPath;
+	}
 
-		String fileFullPath = uploadedNetworkPath.getAbsolutePath() + "/" + taskId + "." + ext;
-		final File uploadedNetworkFile = new File(fileFullPath);
+	/**
+	 * @return the extension of an uploaded network file in lower case.
+	 * @throws NdexException if the file type is not supported.
+	 */
+	private String getUploadExtension(String filename) throws NdexException {
+		String ext = FilenameUtils.getExtension(filename).toLowerCase();
 
-		if (!uploadedNetworkFile.exists())
-			try {
-				uploadedNetworkFile.createNewFile();
-			} catch (IOException e1) {
-				//e1.printStackTrace();
-				logger.error(userNameForLog() + "[end: Failed to create file " + fileFullPath + " on server when uploading " + 
-						uploadedNetwork.getFilename() + ". Exception caught:]", e1);
-				throw new NdexException ("Failed to create file " + fileFullPath + " on server when uploading " + 
-						uploadedNetwork.getFilename() + ": " + e1.getMessage());
-			}
+		if ( !ext.equals("sif") && !ext.equals("xbel") && !ext.equals("xgmml") && !ext.equals("owl") 
+				&& !ext.equals("xls") && ! ext.equals("xlsx")) {
+			logger.error(userNameForLog() + "[end: The uploaded file type is not supported; must be Excel, XGMML, SIF, BioPAX or XBEL.  Throwing  IllegalArgumentException...]");
+			throw new NdexException(
+					"The uploaded file type is not supported; must be Excel, XGMML, SIF, BioPAX or XBEL.");
+		}
+		return ext;
+	}
 
-		try ( FileOutputStream saveNetworkFile = new FileOutputStream(uploadedNetworkFile)) {
-			saveNetworkFile.write(uploadedNetwork.getFileData());
-			saveNetworkFile.flush();
-		} catch (IOException e1) {
-			//e1.printStackTrace();
-			logger.error(userNameForLog() + "[end: Failed to write content to file " + fileFullPath + " on server when uploading " + 
-					uploadedNetwork.getFilename() + ". Exception caught:]", e1 );
-			throw new NdexException ("Failed to write content to file " + fileFullPath + " on server when uploading " + 
-					uploadedNetwork.getFilename() + ": " + e1.getMessage());
-		} 
+	/**
+	 * @return the most bytes an uploaded network file may have, or 0 for no limit.
+	 */
+	private static long getUploadLimit() throws NdexException {
+		return ConfigProperties.getLong(Configuration.getInstance(), networkUploadMaxBytes, defaultUploadMaxBytes);
+	}
 
+	private void createUploadTask(UUID taskId, String filename, String fileFullPath) throws NdexException {
 		final String userAccount = this.getLoggedInUser().getAccountName();
 
 		Task processNetworkTask = new Task();
 		processNetworkTask.setExternalId(taskId);
-		processNetworkTask.setDescription(uploadedNetwork.getFilename());
+		processNetworkTask.setDescription(filename);
 		processNetworkTask.setTaskType(TaskType.PROCESS_UPLOADED_NETWORK);
 		processNetworkTask.setPriority(Priority.LOW);
 		processNetworkTask.setProgress(0);
 		processNetworkTask.setResource(fileFullPath);
 		processNetworkTask.setStatus(Status.QUEUED);
 
-		try (TaskDAO dao = new TaskDAO(NdexDatabase.getInstance().getAConnection())){
+		ODatabaseDocumentTx db = null;
+		try {
+			db = RequestConnection.acquire();
+			TaskDAO dao = new TaskDAO(db);
 			dao.createTask(userAccount, processNetworkTask);
 			dao.commit();		
 			
@@ -1609,9 +2009,9 @@ public class NetworkAService extends NdexService {
 			//		+ uploadedNetwork.getFilename() + ". " + e.getMessage());
 			logger.error(userNameForLog() + "[end: Exception caught:]",  e);
 			throw new NdexException(e.getMessage());
+		} finally {
+			RequestConnection.release(db);
 		}
-
-		logger.info(userNameForLog() + "[end: Uploading network file. Task for uploading network is created.]");	
 	}
 
 
@@ -1630,20 +2030,26 @@ public class NetworkAService extends NdexService {
 		
 		    logger.info(userNameForLog() + "[start: Setting " + parameter + "=" + value + " for network " + networkId + "]");
 		
-			try (ODatabaseDocumentTx db = NdexDatabase.getInstance().getAConnection()){
-				if (Helper.isAdminOfNetwork(db, networkId, getLoggedInUser().getExternalId().toString())) {
+			ODatabaseDocumentTx db = RequestConnection.acquire();
+			try {
+				if (PermissionCache.isAdmin(db, networkId, getLoggedInUser().getExternalId().toString())) {
 				 
 				  if ( parameter.equals(readOnlyParameter)) {
 					  boolean bv = Boolean.parseBoolean(value);
 
-					  try (NetworkDAOTx daoNew = new NetworkDAOTx()) {
+					  // NetworkDAOTx takes its own connection from NdexDatabase
+					  try (ConnectionPoolMonitor.External counted = ConnectionPoolMonitor.countExternal();
+							  NetworkDAOTx daoNew = new NetworkDAOTx()) {
 						  long oldId = daoNew.setReadOnlyFlag(networkId, bv, getLoggedInUser().getAccountName());
+						  networkChanged(networkId);
 						  logger.info(userNameForLog() + "[end: setting " + parameter + "=" + value + " for network " + networkId + "]");
 						  return Long.toString(oldId);
 					  } 
 				  }
 				}
 				throw new UnauthorizedOperationException("Only an administrator can set a network flag.");
+			} finally {
+				RequestConnection.release(db);
 			}
 	}
 
@@ -40,13 +40,14 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
-import org.ndexbio.common.access.NdexDatabase;
 import org.ndexbio.common.models.dao.orientdb.RequestDAO;
 import org.ndexbio.model.exceptions.DuplicateObjectException;
 import org.ndexbio.model.exceptions.NdexException;
 import org.ndexbio.model.exceptions.ObjectNotFoundException;
 import org.ndexbio.model.object.Request;
 import org.ndexbio.rest.annotations.ApiDoc;
+import org.ndexbio.rest.cache.PermissionCache;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
 import org.slf4j.LoggerFactory;
 
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
@@ -186,6 +187,8 @@ public class RequestService extends NdexService
 		try {
 			dao.updateRequest(UUID.fromString(requestId), updatedRequest, this.getLoggedInUser());
 			dao.commit();
+			// an accepted request grants a network or group membership.
+			PermissionCache.invalidateAll();
 			//logInfo ( logger, "Request " + requestId + " updated.");
 			logger.info(userNameForLog() + "[end: Updated request " + requestId + "]");			
 		} finally {
@@ -197,7 +200,7 @@ public class RequestService extends NdexService
   
     
     private void openDatabase() throws NdexException {
-    	localConnection = NdexDatabase.getInstance().getAConnection();
+    	localConnection = ConnectionPoolMonitor.getAConnection();
 		dao = new RequestDAO(localConnection);
 	}
 	private void closeDatabase() {
@@ -35,21 +35,28 @@ import java.util.UUID;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 
-import org.ndexbio.common.access.NdexDatabase;
 import org.ndexbio.common.models.dao.orientdb.TaskDAO;
 import org.ndexbio.common.models.dao.orientdb.TaskDocDAO;
 import org.ndexbio.model.exceptions.NdexException;
 import org.ndexbio.model.exceptions.ObjectNotFoundException;
 import org.ndexbio.model.exceptions.UnauthorizedOperationException;
+import org.ndexbio.model.object.Status;
 import org.ndexbio.model.object.Task;
 import org.ndexbio.rest.annotations.ApiDoc;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
+import org.ndexbio.rest.task.TaskProgress;
+import org.ndexbio.rest.task.TaskProgressHub;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
@@ -61,6 +68,8 @@ import org.slf4j.Logger;
 public class TaskService extends NdexService
 {
 	static Logger logger = LoggerFactory.getLogger(TaskService.class);
+
+	private static final int maxProgressWait = 120;
     
     /**************************************************************************
     * Injects the HTTP request into the base class to be used by
@@ -101,7 +110,7 @@ public class TaskService extends NdexService
         Preconditions.checkArgument(null != newTask, 
     			" A task object is required");
         
-        try (TaskDAO dao = new TaskDAO(NdexDatabase.getInstance().getAConnection()))    {
+        try (TaskDAO dao = new TaskDAO(ConnectionPoolMonitor.getAConnection()))    {
         	
         	UUID taskId = dao.createTask(userAccount, newTask);
             
@@ -151,7 +160,7 @@ public class TaskService extends NdexService
     			"A task id is required");
   
     	
-    	try (TaskDocDAO tdao= new TaskDocDAO(NdexDatabase.getInstance().getAConnection())) {
+    	try (TaskDocDAO tdao= new TaskDocDAO(ConnectionPoolMonitor.getAConnection())) {
             
             final Task taskToDelete = tdao.getTaskByUUID(taskUUID);
             
@@ -171,6 +180,8 @@ public class TaskService extends NdexService
             	tdao.deleteTask(taskToDelete.getExternalId());
             
             	tdao.commit();
+            	// wakes up the watchers; a deleted task won't change any more
+            	TaskProgressHub.publish(taskToDelete, Status.FAILED, -1, "Task was deleted.");
             	logger.info(userNameForLog() + "[end: Task " + taskUUID + " is deleted by user " + 
             	   this.getLoggedInUser().getAccountName() + "]");
             }
@@ -214,7 +225,7 @@ public class TaskService extends NdexService
     	
     	Preconditions.checkArgument(!Strings.isNullOrEmpty(taskId), "A task id is required");
 
-    	try (TaskDocDAO tdao= new TaskDocDAO(NdexDatabase.getInstance().getAConnection())) {
+    	try (TaskDocDAO tdao= new TaskDocDAO(ConnectionPoolMonitor.getAConnection())) {
             
             final Task task = tdao.getTaskByUUID(taskId);
             
@@ -235,5 +246,61 @@ public class TaskService extends NdexService
         }
     }
 
-    
+    /**************************************************************************
+    * Waits for the next change of a task and returns its state. A client
+    * watches a task by calling this again with the version it got back, which
+    * costs one open request per watcher instead of a poll loop.
+    * 
+    * @param taskId
+    *            The task ID.
+    * @param since
+    *            The version of the state the client has seen; 0 for none.
+    * @param wait
+    *            How many seconds to wait for a change, at most 120. With 0 or
+    *            less the current state is returned right away.
+    * @throws NdexException
+    *            The task doesn't exist or the user doesn't own it.
+    **************************************************************************/
+    @GET
+    @Path("/{taskId}/progress")
+    @Produces("application/json")
+	@ApiDoc("Returns the status, progress and version of the task specified by taskId as soon as its version is " +
+			"higher than 'since', or after 'wait' seconds (default 30, at most 120) if nothing changes; a 'wait' of 0 " +
+			"returns the current state right away. Call it " +
+			"again with the version returned to keep watching. Errors if no task found or if authenticated user " +
+			"does not own task.")
+    public void waitForTaskProgress(@PathParam("taskId") final String taskId,
+    		@QueryParam("since") @DefaultValue("0") final long since,
+    		@QueryParam("wait") @DefaultValue("30") final int wait,
+    		@Suspended final AsyncResponse response) throws NdexException
+    {
+    	Preconditions.checkArgument(!Strings.isNullOrEmpty(taskId), "A task id is required");
+
+    	UUID taskUUID;
+    	try {
+    		taskUUID = UUID.fromString(taskId);
+    	} catch (IllegalArgumentException e) {
+    		throw new ObjectNotFoundException("Task", taskId);
+    	}
+
+    	UUID owner = TaskProgressHub.getOwner(taskUUID);
+    	if ( owner == null) {
+    		// not seen since the server started, or finished a while ago
+    		Task task = getTask(taskId);
+    		TaskProgressHub.seed(task);
+    		owner = task.getTaskOwnerId();
+    	}
+    	if ( !owner.equals(getLoggedInUser().getExternalId()))
+    		throw new UnauthorizedOperationException("Can't find task " + taskId + " for user " + getLoggedInUser().getAccountName());
+
+    	if ( !TaskProgressHub.watch(taskUUID, since, Math.min(wait, maxProgressWait), response)) {
+    		Task task = getTask(taskId);
+    		TaskProgress progress = new TaskProgress();
+    		progress.setTaskId(taskUUID);
+    		progress.setStatus(task.getStatus());
+    		progress.setProgress(task.getProgress());
+    		progress.setMessage(task.getMessage());
+    		response.resume(progress);
+    	}
+    }
 }
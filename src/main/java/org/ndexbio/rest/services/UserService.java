@@ -55,6 +55,7 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 
 import org.apache.commons.lang.RandomStringUtils;
@@ -69,15 +70,18 @@ import org.ndexbio.model.object.NewUser;
 import org.ndexbio.common.models.dao.orientdb.UserDAO;
 import org.ndexbio.common.models.dao.orientdb.UserDocDAO;
 import org.ndexbio.rest.filters.BasicAuthenticationFilter;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
 import org.ndexbio.rest.helpers.Email;
 import org.ndexbio.common.access.NdexAOrientDBConnectionPool;
-import org.ndexbio.common.access.NdexDatabase;
 
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 
 import org.ndexbio.model.object.SimpleUserQuery;
 import org.ndexbio.rest.annotations.ApiDoc;
+import org.ndexbio.rest.cache.CredentialCache;
+import org.ndexbio.rest.cache.PermissionCache;
 import org.ndexbio.security.LDAPAuthenticator;
+import org.ndexbio.security.SessionTokens;
 import org.ndexbio.task.Configuration;
 import org.slf4j.LoggerFactory;
 
@@ -148,7 +152,7 @@ public class UserService extends NdexService {
 			logger.info(userNameForLog() + "[User is a authenticated by AD." + "]");
 		}
 
-		try (UserDocDAO userdao = new UserDocDAO(NdexDatabase.getInstance().getAConnection())){
+		try (UserDocDAO userdao = new UserDocDAO(ConnectionPoolMonitor.getAConnection())){
 
 			newUser.setAccountName(newUser.getAccountName().toLowerCase());
 
@@ -178,18 +182,16 @@ public class UserService extends NdexService {
 			throws IllegalArgumentException, NdexException {
 		
 		logger.info(userNameForLog() + "[start: Getting user " + userId + "]");
-		UserDocDAO dao = new UserDocDAO(NdexDatabase.getInstance().getAConnection());
-		try {
-			final User user = dao.getUserByAccountName(userId.toLowerCase());
-			logger.info(userNameForLog() + "[end: User object returned for user account " + userId  + "]");
-			return user;
-		} catch (ObjectNotFoundException e) {
-			final User user = dao.getUserById(UUID.fromString(userId));
-			logger.info(userNameForLog() + "[end: User object returned for user id " + userId  + "]");
-			return user;	
-		} finally  {
-			if ( dao !=null)
-				dao.close();
+		try (UserDocDAO dao = new UserDocDAO(ConnectionPoolMonitor.getAConnection())) {
+			try {
+				final User user = dao.getUserByAccountName(userId.toLowerCase());
+				logger.info(userNameForLog() + "[end: User object returned for user account " + userId  + "]");
+				return user;
+			} catch (ObjectNotFoundException e) {
+				final User user = dao.getUserById(UUID.fromString(userId));
+				logger.info(userNameForLog() + "[end: User object returned for user id " + userId  + "]");
+				return user;	
+			}
 		}
 		
 	}
@@ -221,7 +223,7 @@ public class UserService extends NdexService {
 		
 		Permissions permission = Permissions.valueOf(permissions.toUpperCase());
 		
-		try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())) {
+		try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())) {
 			List<Membership> members= dao.getUserNetworkMemberships(UUID.fromString(userId), permission, skipBlocks, blockSize);
 			logger.info(userNameForLog() + "[end: Returned " + members.size() + " members for user " + userId + "]");
 			return members;
@@ -255,7 +257,7 @@ public class UserService extends NdexService {
 		
 		Permissions permission = Permissions.valueOf(permissions.toUpperCase());
 		
-		try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())) {
+		try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())) {
 			List<Membership> result =
 					dao.getUserGroupMemberships(UUID.fromString(userId), permission, skipBlocks, blockSize);
 			logger.info(userNameForLog() +  "[end: Got " + result.size() + " grp membership for user " + userId + "]");
@@ -300,13 +302,13 @@ public class UserService extends NdexService {
 			    logger.info(userNameForLog() + "[end: User "+ accountName + " not authenticated. "+ e.getMessage() + "]");
 				throw e;
 			}
-			try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())) {
+			try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())) {
 				logger.info(userNameForLog() + "[end: User " + accountName + " authenticated.]");
 				return dao.getUserByAccountName(accountName);
 			}	
 		}
 		
-		try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())) {
+		try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())) {
 			logger.info(userNameForLog() + "[end: User " + accountName + " authenticated.]");		
 			return dao.authenticateUser(accountName.toLowerCase(), password);
 		} catch ( ObjectNotFoundException e) {
@@ -333,8 +335,10 @@ public class UserService extends NdexService {
 	@NdexOpenFunction
 	@Path("/authenticate")
 	@Produces("application/json")
-	@ApiDoc("Authenticates the combination of accountName and password supplied in the Auth header, returns the authenticated user if successful.")
-	public User authenticateUserNoOp()
+	@ApiDoc("Authenticates the combination of accountName and password supplied in the Auth header, returns the authenticated user if successful. " +
+			"When session tokens are turned on, the response also carries a signed token in the NDEx-Auth-Token header which can be sent " +
+			"as 'Authorization: Bearer <token>' on later requests until it expires.")
+	public Response authenticateUserNoOp(@Context HttpHeaders headers)
 			throws UnauthorizedOperationException {
 		
 		logger.info( "[]\t[start: Authenticate user from Auth header]");
@@ -344,8 +348,18 @@ public class UserService extends NdexService {
 			throw new UnauthorizedOperationException("Un authorized user.");
 		}	
 		
+		Response.ResponseBuilder response = Response.ok(u);
+		// only a real credential check earns a token, so a stolen token can't be renewed.
+		String authorization = headers.getHeaderString("Authorization");
+		if ( authorization != null && !authorization.startsWith(SessionTokens.BEARER_PREFIX)) {
+			String token = SessionTokens.issue(u);
+			if ( token != null)
+				response.header(SessionTokens.TOKEN_HEADER, token)
+						.header("Cache-Control", "no-store");
+		}
+		
 		logger.info(userNameForLog() + "[end: user autenticated from Auth header]");
-		return this.getLoggedInUser();
+		return response.build();
 	}
 	
 	
@@ -380,9 +394,11 @@ public class UserService extends NdexService {
 		Preconditions.checkArgument(!Strings.isNullOrEmpty(password), 
 				"A password is required");
 		
-		try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())) {
+		try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())) {
 			dao.changePassword(password, getLoggedInUser().getExternalId());
 			dao.commit();
+			CredentialCache.invalidate(getLoggedInUser().getExternalId());
+			SessionTokens.bumpGeneration(getLoggedInUser().getExternalId());
 			logger.info(userNameForLog() + "[end: Password changed for user " + getLoggedInUser().getAccountName() + "]");
 		}
 	}
@@ -401,9 +417,12 @@ public class UserService extends NdexService {
 
 		logger.info(userNameForLog() + "[start: Deleting user (self)." + "]");
 		
-		try (UserDAO dao = new UserDAO(NdexDatabase.getInstance().getAConnection())) {
+		try (UserDAO dao = new UserDAO(ConnectionPoolMonitor.getAConnection())) {
 			dao.deleteUserById(getLoggedInUser().getExternalId());
 			dao.commit();
+			CredentialCache.invalidate(getLoggedInUser().getExternalId());
+			SessionTokens.bumpGeneration(getLoggedInUser().getExternalId());
+			PermissionCache.invalidateAll();
 			logger.info(userNameForLog() + "[end: User " + getLoggedInUser().getAccountName() + " deleted." + "]");
 		} 
 	}
@@ -445,12 +464,15 @@ public class UserService extends NdexService {
 		// password
 		
 	//	BufferedReader fileReader = null;
-		try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())){
+		try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())){
 
 			User authUser = dao.getUserByAccountName(accountName);
 			String newPasswd = dao.setNewPassword(accountName.toLowerCase());
 
 			dao.commit();
+			CredentialCache.invalidate(accountName);
+			if ( authUser != null)
+				SessionTokens.bumpGeneration(authUser.getExternalId());
 			
 		    // Get system properties
   	        Properties properties = System.getProperties();
@@ -511,7 +533,7 @@ public class UserService extends NdexService {
 		
 		logger.info(userNameForLog() + "[start: Searching user \"" + simpleUserQuery.getSearchString() + "\"]");
 		
-		try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())){
+		try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())){
 
 			if(simpleUserQuery.getAccountName() != null)
 				simpleUserQuery.setAccountName(simpleUserQuery.getAccountName().toLowerCase());
@@ -539,7 +561,8 @@ public class UserService extends NdexService {
 	@POST
 	@Path("/{userIdentifier}")
 	@Produces("application/json")
-	@ApiDoc("Updates the authenticated user based on the serialized user object in the POST data. Errors if the user object references a different user.")
+	@ApiDoc("Updates the authenticated user based on the serialized user object in the POST data. Errors if the user object references a different user. " +
+			"Session tokens issued to the user before the update stop working.")
 	public User updateUser(@PathParam("userIdentifier") final String userId, final User updatedUser)
 			throws IllegalArgumentException, ObjectNotFoundException, UnauthorizedOperationException, NdexException {
 		Preconditions.checkArgument(null != updatedUser, 
@@ -558,9 +581,11 @@ public class UserService extends NdexService {
 			}
 		}
 		
-		try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())){
+		try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())){
 			User user = dao.updateUser(updatedUser, getLoggedInUser().getExternalId());
 			dao.commit();
+			CredentialCache.invalidate(getLoggedInUser().getExternalId());
+			SessionTokens.bumpGeneration(getLoggedInUser().getExternalId());
 			logger.info(userNameForLog() + "[end: User " + user.getAccountName() + " updated.]");
 			return user;
 		} 
@@ -578,7 +603,7 @@ public class UserService extends NdexService {
 		
 		logger.info(userNameForLog() + "[start: Getting membership of account " + accountId  + "]");
 		
-		try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())){
+		try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())){
 			Membership m = dao.getMembership(UUID.fromString(accountId), UUID.fromString(resourceId), depth);
 			if ( m==null)
 				logger.info(userNameForLog() + "[end: No membership found for account " + accountId + 
@@ -603,7 +628,7 @@ public class UserService extends NdexService {
 		
 		logger.info(userNameForLog() + "[start: Getting requests sent by user " + userId + "]");
 		
-		try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())){
+		try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())){
 			List<Request> reqs= dao.getSentRequest(this.getLoggedInUser(),skipBlocks, blockSize);
 			logger.info(userNameForLog() + "[end: Returning " + reqs.size() + " requests sent by user " + userId  + "]");
 			return reqs;
@@ -620,7 +645,7 @@ public class UserService extends NdexService {
 		
 		logger.info(userNameForLog() + "[start: Getting pending request for user " + userId + "]");
 		
-		try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())){
+		try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())){
 			List<Request> reqs= dao.getPendingRequest(this.getLoggedInUser(),skipBlocks, blockSize);
 			logger.info(userNameForLog() + "[end: Returning " + reqs.size() + " pending request under user " + userId + "]");
 			return reqs;
@@ -653,7 +678,7 @@ public class UserService extends NdexService {
 			@PathParam("blockSize") int blockSize) throws NdexException {
 		
 		logger.info(userNameForLog() + "[start: Getting tasks for user " + getLoggedInUser().getAccountName() + "]");
-		try (UserDocDAO dao = new UserDocDAO (NdexDatabase.getInstance().getAConnection())){
+		try (UserDocDAO dao = new UserDocDAO (ConnectionPoolMonitor.getAConnection())){
 			Status taskStatus = Status.valueOf(status);
 			List<Task> tasks= dao.getTasks(this.getLoggedInUser(),taskStatus, skipBlocks, blockSize);
 			logger.info(userNameForLog() + "[end: Returned " + tasks.size() + " tasks under user " + getLoggedInUser().getAccountName()  + "]");
@@ -0,0 +1,548 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.task;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ndexbio.common.NdexClasses;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.object.Task;
+import org.ndexbio.model.object.TaskType;
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
+import org.ndexbio.rest.helpers.NetworkElementType;
+import org.ndexbio.task.Configuration;
+import org.ndexbio.task.NdexServerQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.db.record.ridbag.ORidBag;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientVertex;
+
+/**
+ * Physically removes networks that were marked deleted, in place of the
+ * SYSTEM_DELETE_NETWORK tasks that SystemTaskProcessor ran as one long
+ * operation. A network is removed NETWORK_DELETE_CHUNK_SIZE elements per
+ * transaction: edges first, then nodes, terms, supports, citations and
+ * namespaces, and the network vertex last.
+ * <p>
+ * Between chunks the deleter pauses for NETWORK_DELETE_PAUSE_MILLIS, and
+ * keeps backing off while NETWORK_DELETE_BUSY_PERCENT or more of the database
+ * connection pool is in use, so foreground requests go first.
+ * <p>
+ * After each chunk the element type being removed and the count so far are
+ * written to a checkpoint file. Networks still marked deleted are queued again
+ * at startup, and a network with a checkpoint carries on from the element
+ * type it had reached instead of scanning the ones already emptied.
+ * <p>
+ * A network whose removal fails is tried again later, after a wait that
+ * doubles with every failure in a row, so one broken network neither stalls
+ * the backlog nor waits for a restart to be retried.
+ * <p>
+ * Database backups are still run by SystemTaskProcessor.
+ */
+public class NetworkDeleter {
+
+	static Logger logger = LoggerFactory.getLogger(NetworkDeleter.class);
+
+	private static final String NETWORK_DELETER = "NETWORK_DELETER";
+	private static final String NETWORK_DELETE_CHUNK_SIZE = "NETWORK_DELETE_CHUNK_SIZE";
+	private static final String NETWORK_DELETE_PAUSE_MILLIS = "NETWORK_DELETE_PAUSE_MILLIS";
+	private static final String NETWORK_DELETE_BUSY_PERCENT = "NETWORK_DELETE_BUSY_PERCENT";
+	private static final long defaultChunkSize = 1000;
+	private static final long defaultPauseMillis = 20;
+	private static final long defaultBusyPercent = 50;
+	private static final long maxBackoffMillis = 5000;
+	private static final long firstRetryMillis = 30 * 1000;
+	private static final long maxRetryMillis = 60 * 60 * 1000;
+
+	private static final String checkpointDirName = "network-deletes";
+	private static final String checkpointSuffix = ".checkpoint";
+
+	// edges go first so that nodes and terms are no longer referenced when they are removed.
+	private static final NetworkElementType[] phases = {
+		NetworkElementType.EDGE,
+		NetworkElementType.NODE,
+		NetworkElementType.REIFIED_EDGE_TERM,
+		NetworkElementType.FUNCTION_TERM,
+		NetworkElementType.BASE_TERM,
+		NetworkElementType.SUPPORT,
+		NetworkElementType.CITATION,
+		NetworkElementType.NAMESPACE
+	};
+
+	private static NetworkDeleter INSTANCE = null;
+
+	private final File checkpointDir;
+	private final int chunkSize;
+	private final long pauseMillis;
+	private final double busyUtilization;
+
+	// guarded by this
+	private final LinkedHashSet<String> backlog = new LinkedHashSet<>();
+	private String current;
+	private long currentDeleted;
+	// networks whose last removal failed -> when they are due again
+	private final Map<String, Retry> retries = new HashMap<>();
+
+	private static final class Retry {
+		int failures;
+		long due;
+	}
+
+	private final Object sleeper = new Object();
+	private volatile boolean stopping = false;
+	private Thread worker;
+
+	private final AtomicLong networksDeleted = new AtomicLong();
+	private final AtomicLong elementsDeleted = new AtomicLong();
+	private final AtomicLong chunks = new AtomicLong();
+	private final AtomicLong activeMillis = new AtomicLong();
+	private final AtomicLong yields = new AtomicLong();
+	private final AtomicLong yieldMillis = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private volatile long lastChunkRate = 0;
+
+	private NetworkDeleter(File checkpointDir, int chunkSize, long pauseMillis, double busyUtilization) {
+		this.checkpointDir = checkpointDir;
+		this.chunkSize = chunkSize;
+		this.pauseMillis = pauseMillis;
+		this.busyUtilization = busyUtilization;
+	}
+
+	/**
+	 * Starts the deleter unless NETWORK_DELETER is set to false, in which case
+	 * deletions go to SystemTaskProcessor as before. Must be called before
+	 * deleted networks are queued at startup.
+	 */
+	public static synchronized void startUp(Configuration config) {
+		String enabled = config.getProperty(NETWORK_DELETER);
+		if (enabled != null && !Boolean.parseBoolean(enabled)) {
+			logger.info("Chunked network deletion is turned off.");
+			return;
+		}
+
+		File dir = new File(config.getNdexRoot() + "/" + checkpointDirName);
+		if (!dir.exists())
+			dir.mkdirs();
+
+		int chunkSize = (int) Math.max(1, ConfigProperties.getLong(config, NETWORK_DELETE_CHUNK_SIZE, defaultChunkSize));
+		long pause = Math.max(0, ConfigProperties.getLong(config, NETWORK_DELETE_PAUSE_MILLIS, defaultPauseMillis));
+		long busyPercent = ConfigProperties.getLong(config, NETWORK_DELETE_BUSY_PERCENT, defaultBusyPercent);
+
+		final NetworkDeleter deleter = new NetworkDeleter(dir, chunkSize, pause, busyPercent / 100.0);
+		deleter.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				deleter.work();
+			}
+		}, "NDEx network deleter");
+		deleter.worker.start();
+		INSTANCE = deleter;
+		logger.info("Network deleter started, removing " + chunkSize + " elements per transaction.");
+	}
+
+	/**
+	 * Stops after the chunk in progress. The network being removed keeps its
+	 * checkpoint and is carried on with after the next start.
+	 */
+	public static synchronized void shutdown() throws InterruptedException {
+		NetworkDeleter deleter = INSTANCE;
+		if (deleter == null)
+			return;
+		INSTANCE = null;
+		deleter.stopping = true;
+		synchronized (deleter) {
+			deleter.notifyAll();
+		}
+		synchronized (deleter.sleeper) {
+			deleter.sleeper.notifyAll();
+		}
+		deleter.worker.join();
+		logger.info("Network deleter stopped, " + (deleter.backlog.size() + deleter.retries.size())
+				+ " networks left to remove.");
+	}
+
+	/**
+	 * Queues a network that was marked deleted for physical removal. Queuing a
+	 * network that is already waiting has no effect.
+	 */
+	public static void submit(String networkId) {
+		NetworkDeleter deleter = INSTANCE;
+		if (deleter == null) {
+			Task task = new Task();
+			task.setTaskType(TaskType.SYSTEM_DELETE_NETWORK);
+			task.setResource(networkId);
+			NdexServerQueue.INSTANCE.addSystemTask(task);
+			return;
+		}
+		deleter.enqueue(networkId);
+	}
+
+	/**
+	 * @return the backlog and throughput of the deleter, or null if it is
+	 *         turned off.
+	 */
+	public static Map<String, Object> getStatus() {
+		NetworkDeleter deleter = INSTANCE;
+		if (deleter == null)
+			return null;
+		return deleter.status();
+	}
+
+	private synchronized void enqueue(String networkId) {
+		if (networkId.equals(current) || retries.containsKey(networkId) || !backlog.add(networkId))
+			return;
+		notifyAll();
+	}
+
+	private Map<String, Object> status() {
+		Map<String, Object> result = new LinkedHashMap<>();
+		synchronized (this) {
+			result.put("backlog", backlog.size() + retries.size() + (current == null ? 0 : 1));
+			result.put("retrying", retries.size());
+			result.put("current", current);
+			result.put("currentElementsDeleted", currentDeleted);
+		}
+		long active = activeMillis.get();
+		result.put("networksDeleted", networksDeleted.get());
+		result.put("elementsDeleted", elementsDeleted.get());
+		result.put("chunks", chunks.get());
+		result.put("elementsPerSecond", active == 0 ? 0 : elementsDeleted.get() * 1000 / active);
+		result.put("lastChunkElementsPerSecond", lastChunkRate);
+		result.put("yields", yields.get());
+		result.put("yieldSeconds", yieldMillis.get() / 1000);
+		result.put("failures", failures.get());
+		result.put("chunkSize", chunkSize);
+		return result;
+	}
+
+	private void work() {
+		while (true) {
+			String networkId;
+			synchronized (this) {
+				try {
+					while ((networkId = next()) == null && !stopping)
+						waitForWork();
+				} catch (InterruptedException e) {
+					break;
+				}
+				if (stopping)
+					break;
+				current = networkId;
+				currentDeleted = 0;
+			}
+
+			try {
+				delete(networkId);
+				synchronized (this) {
+					retries.remove(networkId);
+				}
+			} catch (NdexException | IOException | RuntimeException e) {
+				failures.incrementAndGet();
+				long wait = retryLater(networkId);
+				logger.error("Failed to remove deleted network " + networkId + ", trying again in "
+						+ wait / 1000 + "s.", e);
+			} finally {
+				synchronized (this) {
+					current = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the next network in the backlog, else a network whose retry is
+	 *         due, else null.
+	 */
+	private String next() {
+		if (!backlog.isEmpty()) {
+			Iterator<String> it = backlog.iterator();
+			String networkId = it.next();
+			it.remove();
+			return networkId;
+		}
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Retry> entry : retries.entrySet()) {
+			if (entry.getValue().due <= now)
+				return entry.getKey();
+		}
+		return null;
+	}
+
+	/**
+	 * Waits until something is queued or the earliest retry is due.
+	 */
+	private void waitForWork() throws InterruptedException {
+		long due = Long.MAX_VALUE;
+		for (Retry retry : retries.values())
+			due = Math.min(due, retry.due);
+		if (due == Long.MAX_VALUE)
+			wait();
+		else
+			wait(Math.max(1, due - System.currentTimeMillis()));
+	}
+
+	/**
+	 * Schedules another attempt at a network whose removal failed. The network
+	 * stays marked deleted, so a restart queues it again too.
+	 *
+	 * @return the milliseconds until the next attempt.
+	 */
+	private synchronized long retryLater(String networkId) {
+		Retry retry = retries.get(networkId);
+		if (retry == null) {
+			retry = new Retry();
+			retries.put(networkId, retry);
+		}
+		long wait = Math.min(maxRetryMillis, firstRetryMillis << Math.min(retry.failures, 20));
+		retry.failures++;
+		retry.due = System.currentTimeMillis() + wait;
+		return wait;
+	}
+
+	private void delete(String networkId) throws NdexException, IOException {
+		Properties checkpoint = readCheckpoint(networkId);
+		int phase = Integer.parseInt(checkpoint.getProperty("phase", "0"));
+		long deleted = Long.parseLong(checkpoint.getProperty("deleted", "0"));
+		if (phase > 0 || deleted > 0)
+			logger.info("Resuming removal of network " + networkId + " at " + phases[Math.min(phase, phases.length - 1)]
+					+ ", " + deleted + " elements already removed.");
+		else
+			logger.info("Start removing network " + networkId + ".");
+
+		for (; phase < phases.length; phase++) {
+			int removed;
+			do {
+				if (stopping)
+					return;
+				removed = deleteChunk(networkId, phases[phase]);
+				if (removed < 0) {
+					// the network vertex is already gone, nothing more to do.
+					deleteCheckpoint(networkId);
+					return;
+				}
+				deleted += removed;
+				synchronized (this) {
+					currentDeleted = deleted;
+				}
+				if (removed > 0) {
+					saveCheckpoint(networkId, phase, deleted);
+					yieldToForeground();
+				}
+			} while (removed == chunkSize);
+			saveCheckpoint(networkId, phase + 1, deleted);
+		}
+
+		if (stopping)
+			return;
+		deleteNetworkVertex(networkId);
+		deleteCheckpoint(networkId);
+		networksDeleted.incrementAndGet();
+		logger.info("Network " + networkId + " removed, " + deleted + " elements in total.");
+	}
+
+	/**
+	 * Removes up to one chunk of the elements of the given type in one
+	 * transaction. The chunk is taken from the network's own links to its
+	 * elements, so it never scans the elements of other networks; removing a
+	 * vertex also drops its link, so the next chunk starts at the front again.
+	 *
+	 * @return the number of links handled, or -1 if the network itself is
+	 *         gone.
+	 */
+	private int deleteChunk(String networkId, NetworkElementType type) throws NdexException {
+		long start = System.currentTimeMillis();
+		try (ODatabaseDocumentTx db = ConnectionPoolMonitor.getAConnection()) {
+			ODocument networkDoc = getNetworkDoc(db, networkId);
+			if (networkDoc == null)
+				return -1;
+
+			List<ORID> rids = new ArrayList<>(chunkSize);
+			Iterator<OIdentifiable> links = type.getLinks(networkDoc);
+			while (rids.size() < chunkSize && links.hasNext())
+				rids.add(links.next().getIdentity());
+			if (rids.isEmpty())
+				return 0;
+
+			OrientGraph graph = new OrientGraph(db, false);
+			graph.begin();
+			try {
+				List<ORID> dangling = new ArrayList<>();
+				for (ORID rid : rids) {
+					OrientVertex vertex = graph.getVertex(rid);
+					if (vertex == null)
+						dangling.add(rid);
+					else
+						vertex.remove();
+				}
+				// a link to a record that is already gone would be taken again by every chunk.
+				if (!dangling.isEmpty())
+					unlink(networkDoc, type, dangling);
+				graph.commit();
+			} catch (RuntimeException e) {
+				graph.rollback();
+				throw e;
+			}
+
+			long millis = Math.max(1, System.currentTimeMillis() - start);
+			elementsDeleted.addAndGet(rids.size());
+			chunks.incrementAndGet();
+			activeMillis.addAndGet(millis);
+			lastChunkRate = rids.size() * 1000L / millis;
+			return rids.size();
+		}
+	}
+
+	private static void unlink(ODocument networkDoc, NetworkElementType type, List<ORID> rids) {
+		Object links = networkDoc.field("out_" + type.getNetworkEdge());
+		if (links instanceof ORidBag) {
+			for (ORID rid : rids)
+				((ORidBag) links).remove(rid);
+		} else if (links instanceof Collection) {
+			((Collection<?>) links).removeAll(rids);
+		}
+		networkDoc.save();
+	}
+
+	private static void deleteNetworkVertex(String networkId) throws NdexException {
+		try (ODatabaseDocumentTx db = ConnectionPoolMonitor.getAConnection()) {
+			ODocument networkDoc = getNetworkDoc(db, networkId);
+			if (networkDoc == null)
+				return;
+			OrientGraph graph = new OrientGraph(db, false);
+			graph.begin();
+			try {
+				graph.getVertex(networkDoc).remove();
+				graph.commit();
+			} catch (RuntimeException e) {
+				graph.rollback();
+				throw e;
+			}
+		}
+	}
+
+	private static ODocument getNetworkDoc(ODatabaseDocumentTx db, String networkId) {
+		OSQLSynchQuery<ODocument> query = new OSQLSynchQuery<>(
+				"SELECT FROM " + NdexClasses.Network + " WHERE " + NdexClasses.ExternalObj_ID + " = ?");
+		List<ODocument> docs = db.command(query).execute(networkId);
+		return docs.isEmpty() ? null : docs.get(0);
+	}
+
+	/**
+	 * Pauses between chunks, and for longer while the connection pool is
+	 * busy with foreground requests.
+	 */
+	private void yieldToForeground() {
+		pause(pauseMillis);
+		long backoff = Math.max(pauseMillis, 10);
+		while (!stopping && ConnectionPoolMonitor.getUtilization() >= busyUtilization) {
+			yields.incrementAndGet();
+			pause(backoff);
+			yieldMillis.addAndGet(backoff);
+			backoff = Math.min(backoff * 2, maxBackoffMillis);
+		}
+	}
+
+	// not Thread.sleep: an interrupt can close the database's file channels.
+	private void pause(long millis) {
+		if (millis <= 0)
+			return;
+		synchronized (sleeper) {
+			if (stopping)
+				return;
+			try {
+				sleeper.wait(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private File checkpointFile(String networkId) {
+		return new File(checkpointDir, networkId + checkpointSuffix);
+	}
+
+	private Properties readCheckpoint(String networkId) {
+		Properties checkpoint = new Properties();
+		File file = checkpointFile(networkId);
+		if (file.exists()) {
+			try (InputStream in = new FileInputStream(file)) {
+				checkpoint.load(in);
+				Integer.parseInt(checkpoint.getProperty("phase", "0"));
+				Long.parseLong(checkpoint.getProperty("deleted", "0"));
+			} catch (IOException | IllegalArgumentException e) {
+				logger.error("Unreadable checkpoint for network " + networkId + ", starting over.", e);
+				checkpoint.clear();
+			}
+		}
+		return checkpoint;
+	}
+
+	private void saveCheckpoint(String networkId, int phase, long deleted) throws IOException {
+		Properties checkpoint = new Properties();
+		checkpoint.setProperty("phase", Integer.toString(phase));
+		checkpoint.setProperty("deleted", Long.toString(deleted));
+		File tmp = new File(checkpointDir, networkId + ".tmp");
+		try (OutputStream out = new FileOutputStream(tmp)) {
+			checkpoint.store(out, null);
+		}
+		Files.move(tmp.toPath(), checkpointFile(networkId).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void deleteCheckpoint(String networkId) {
+		checkpointFile(networkId).delete();
+	}
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.task;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FilenameUtils;
+import org.ndexbio.common.access.NdexDatabase;
+import org.ndexbio.common.models.dao.orientdb.Helper;
+import org.ndexbio.common.models.dao.orientdb.UserDocDAO;
+import org.ndexbio.common.persistence.orientdb.NdexPersistenceService;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.object.NdexProvenanceEventType;
+import org.ndexbio.model.object.ProvenanceEntity;
+import org.ndexbio.model.object.ProvenanceEvent;
+import org.ndexbio.model.object.SimplePropertyValuePair;
+import org.ndexbio.model.object.Task;
+import org.ndexbio.model.object.TaskType;
+import org.ndexbio.model.object.User;
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
+import org.ndexbio.task.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads an uploaded SIF file with parsing and database writes on separate
+ * threads. A parser thread reads the file into batches of rows and puts them
+ * in a bounded queue; the task's own thread takes the batches, creates their
+ * nodes and edges and commits once per batch. Reading the next batch overlaps
+ * with writing the last one, and no more than TASK_PIPELINE_QUEUE_BATCHES
+ * batches of TASK_PIPELINE_BATCH_ROWS rows are held at any time.
+ * <p>
+ * There is a single writer because NdexPersistenceService keeps the nodes and
+ * terms it has created in a per-network cache that is not thread safe.
+ * Extended SIF files, with a PARTICIPANT_A header, are left to the parser in
+ * FileUploadTask.
+ * <p>
+ * The loader is used only when TASK_PIPELINED_SIF is set to true in the
+ * server configuration.
+ */
+public class PipelinedSifLoader implements Callable<Void> {
+
+	static Logger logger = LoggerFactory.getLogger(PipelinedSifLoader.class);
+
+	private static final String TASK_PIPELINED_SIF = "TASK_PIPELINED_SIF";
+	private static final String TASK_PIPELINE_BATCH_ROWS = "TASK_PIPELINE_BATCH_ROWS";
+	private static final String TASK_PIPELINE_QUEUE_BATCHES = "TASK_PIPELINE_QUEUE_BATCHES";
+	private static final long defaultBatchRows = 5000;
+	private static final long defaultQueueBatches = 8;
+
+	// 0 when pipelined loading is turned off
+	private static int batchRows = 0;
+	private static int queueBatches = 0;
+
+	private static final class Batch {
+		final List<String[]> rows;
+		// how far into the file the batch ends, for the progress
+		final long endOffset;
+
+		Batch(List<String[]> rows, long endOffset) {
+			this.rows = rows;
+			this.endOffset = endOffset;
+		}
+	}
+
+	// put in the queue after the last batch, or after a parse error
+	private static final Batch endOfFile = new Batch(null, 0);
+
+	private final Task task;
+	private final int rowsPerBatch;
+	private final BlockingQueue<Batch> queue;
+	private volatile Exception parseError;
+
+	private PipelinedSifLoader(Task task, int rowsPerBatch, int capacity) {
+		this.task = task;
+		this.rowsPerBatch = rowsPerBatch;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+	}
+
+	public static synchronized void startUp(Configuration config) {
+		// off unless asked for: the parser has not yet been checked against the
+		// networks FileUploadTask builds from the same files.
+		if (!Boolean.parseBoolean(config.getProperty(TASK_PIPELINED_SIF))) {
+			logger.info("Pipelined SIF loading is turned off.");
+			return;
+		}
+		batchRows = (int) Math.max(1, ConfigProperties.getLong(config, TASK_PIPELINE_BATCH_ROWS, defaultBatchRows));
+		queueBatches = (int) Math.max(1, ConfigProperties.getLong(config, TASK_PIPELINE_QUEUE_BATCHES, defaultQueueBatches));
+		logger.info("SIF files are loaded in batches of " + batchRows + " rows, " + queueBatches + " batches ahead.");
+	}
+
+	public static synchronized void shutdown() {
+		batchRows = 0;
+		queueBatches = 0;
+	}
+
+	/**
+	 * @return a loader for the task, or null if it isn't a plain SIF upload or
+	 *         pipelined loading is turned off.
+	 */
+	public static synchronized PipelinedSifLoader forTask(Task task) {
+		if (batchRows == 0 || task.getTaskType() != TaskType.PROCESS_UPLOADED_NETWORK
+				|| task.getResource() == null || !task.getResource().toLowerCase().endsWith(".sif"))
+			return null;
+		if (isExtendedSif(new File(task.getResource())))
+			return null;
+		return new PipelinedSifLoader(task, batchRows, queueBatches);
+	}
+
+	@Override
+	public Void call() throws Exception {
+		final File file = new File(task.getResource());
+		Thread parser = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				parse(file);
+			}
+		}, "SIF parser for task " + task.getExternalId());
+		parser.start();
+
+		NdexPersistenceService persistence = null;
+		boolean created = false;
+		try {
+			User owner = getOwner();
+			persistence = new NdexPersistenceService(NdexDatabase.getInstance());
+			persistence.createNewNetwork(owner.getAccountName(), getTitle(), null);
+			created = true;
+
+			long rows = 0;
+			long start = System.currentTimeMillis();
+			long length = Math.max(1, file.length());
+			Batch batch;
+			while ((batch = queue.take()) != endOfFile) {
+				for (String[] row : batch.rows)
+					persistRow(persistence, row);
+				persistence.commit();
+				rows += batch.rows.size();
+				TaskProgressHub.progress(task, (int) Math.min(99, batch.endOffset * 100 / length));
+			}
+			if (parseError != null)
+				throw parseError;
+
+			setProvenance(persistence, owner);
+			persistence.persistNetwork();
+			logger.info("Loaded " + rows + " rows of " + file.getName() + " in "
+					+ (System.currentTimeMillis() - start) + " ms.");
+			return null;
+		} catch (Exception e) {
+			// earlier batches are already committed, so the partly loaded network has to go,
+			// like when one of the FileUploadTask parsers fails.
+			if (created)
+				abort(persistence);
+			throw e;
+		} finally {
+			// stops the parser if writing failed
+			parser.interrupt();
+			parser.join();
+			if (persistence != null)
+				persistence.close();
+		}
+	}
+
+	private void abort(NdexPersistenceService persistence) {
+		try {
+			persistence.abortTransaction();
+		} catch (Exception e) {
+			logger.error("Failed to remove the partly loaded network of task " + task.getExternalId() + ": "
+					+ e.getMessage(), e);
+		}
+	}
+
+	private void parse(File file) {
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			List<String[]> batch = new ArrayList<>(rowsPerBatch);
+			String line;
+			int lineNumber = 0;
+			long offset = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				// characters rather than bytes, close enough for a progress
+				offset += line.length() + 1;
+				if (line.trim().isEmpty())
+					continue;
+
+				String[] tokens = line.indexOf('\t') != -1 ? line.split("\t") : line.trim().split("\\s+");
+				for (int i = 0; i < tokens.length; i++)
+					tokens[i] = tokens[i].trim();
+				if (tokens.length == 2)
+					throw new NdexException("Line " + lineNumber + " of " + file.getName()
+							+ " has an interaction type but no target.");
+
+				if (tokens.length <= 3) {
+					batch.add(tokens);
+				} else {
+					// A pp B C D is short for three edges from A
+					for (int i = 2; i < tokens.length; i++)
+						batch.add(new String[] { tokens[0], tokens[1], tokens[i] });
+				}
+
+				if (batch.size() >= rowsPerBatch) {
+					queue.put(new Batch(batch, offset));
+					batch = new ArrayList<>(rowsPerBatch);
+				}
+			}
+			if (!batch.isEmpty())
+				queue.put(new Batch(batch, offset));
+		} catch (InterruptedException e) {
+			// the writer has given up
+			return;
+		} catch (Exception e) {
+			parseError = e;
+		}
+
+		try {
+			queue.put(endOfFile);
+		} catch (InterruptedException e) {
+			// the writer has given up
+		}
+	}
+
+	private static void persistRow(NdexPersistenceService persistence, String[] row) throws Exception {
+		Long source = getNodeId(persistence, row[0]);
+		if (row.length == 1)
+			return;
+		Long target = getNodeId(persistence, row[2]);
+		Long predicate = persistence.getBaseTermId(row[1]);
+		persistence.createEdge(source, target, predicate, null, null, null);
+	}
+
+	/**
+	 * Identifiers such as HGNC:TP53 become nodes for the term, anything else a
+	 * node with that name, like in the SIF parser of FileUploadTask.
+	 */
+	private static Long getNodeId(NdexPersistenceService persistence, String name) throws Exception {
+		int idx = name.indexOf(':');
+		if (idx > 0 && idx < name.length() - 1)
+			return persistence.getNodeIdByBaseTerm(name);
+		return persistence.getNodeIdByName(name);
+	}
+
+	private void setProvenance(NdexPersistenceService persistence, User owner) throws NdexException {
+		ProvenanceEntity entity = new ProvenanceEntity();
+		Helper.populateProvenanceEntity(entity, persistence.getCurrentNetwork());
+
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		ProvenanceEvent event = new ProvenanceEvent(NdexProvenanceEventType.FILE_UPLOAD, now);
+		List<SimplePropertyValuePair> eventProperties = new ArrayList<>();
+		Helper.addUserInfoToProvenanceEventProperties(eventProperties, owner);
+		eventProperties.add(new SimplePropertyValuePair("filename", task.getDescription()));
+		event.setProperties(eventProperties);
+		entity.setCreationEvent(event);
+		persistence.setNetworkProvenance(entity);
+	}
+
+	private User getOwner() throws NdexException {
+		try (UserDocDAO dao = new UserDocDAO(ConnectionPoolMonitor.getAConnection())) {
+			return dao.getUserById(task.getTaskOwnerId());
+		}
+	}
+
+	private String getTitle() {
+		String name = task.getDescription() != null ? task.getDescription() : task.getResource();
+		return FilenameUtils.getBaseName(name);
+	}
+
+	private static boolean isExtendedSif(File file) {
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String first = reader.readLine();
+			return first != null && first.trim().startsWith("PARTICIPANT_A");
+		} catch (IOException e) {
+			// let FileUploadTask report it
+			return true;
+		}
+	}
+}
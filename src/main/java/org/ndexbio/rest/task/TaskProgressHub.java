@@ -0,0 +1,290 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+
+import org.ndexbio.model.object.Status;
+import org.ndexbio.model.object.Task;
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.task.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Keeps the latest state of user tasks in memory and wakes up the clients
+ * waiting on them, so a client can watch a task through one long-poll
+ * request after another instead of fetching the task from the database in a
+ * loop. The scheduler and the task runner publish every status change, and
+ * tasks that can tell how far they are publish their progress too.
+ * <p>
+ * States are dropped TASK_PROGRESS_TTL_MINUTES after their last change; a
+ * watcher of a task that isn't known here is answered from the database.
+ * <p>
+ * Changes are often published while the publisher holds a lock, e.g. the
+ * scheduler's, so waiting clients are answered on a thread of the hub's own
+ * rather than on the publisher's.
+ */
+public class TaskProgressHub {
+
+	static Logger logger = LoggerFactory.getLogger(TaskProgressHub.class);
+
+	private static final String TASK_PROGRESS_TTL_MINUTES = "TASK_PROGRESS_TTL_MINUTES";
+	private static final String TASK_PROGRESS_MAX_WATCHERS = "TASK_PROGRESS_MAX_WATCHERS";
+	private static final long defaultTTLMinutes = 60;
+	private static final int defaultMaxWatchers = 5000;
+	private static final long maxTracked = 100000;
+	private static final int notifierThreads = 2;
+
+	private static TaskProgressHub INSTANCE = null;
+
+	private static final class Entry {
+		final UUID ownerId;
+		TaskProgress latest;
+		final List<AsyncResponse> watchers = new ArrayList<>(1);
+
+		Entry(UUID ownerId) {
+			this.ownerId = ownerId;
+		}
+	}
+
+	private final ConcurrentMap<UUID, Entry> entries;
+	private final AtomicLong versions = new AtomicLong();
+	private final AtomicInteger watching = new AtomicInteger();
+	private final int maxWatchers;
+	private final ExecutorService notifier;
+
+	private TaskProgressHub(long ttlMinutes, int maxWatchers) {
+		this.maxWatchers = maxWatchers;
+		this.entries = CacheBuilder.newBuilder()
+				.maximumSize(maxTracked)
+				.expireAfterWrite(ttlMinutes, TimeUnit.MINUTES)
+				.<UUID, Entry> build().asMap();
+		this.notifier = Executors.newFixedThreadPool(notifierThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "task-progress-notifier-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public static synchronized void startUp(Configuration config) {
+		long ttl = ConfigProperties.getLong(config, TASK_PROGRESS_TTL_MINUTES, defaultTTLMinutes);
+		int maxWatchers = ConfigProperties.getInt(config, TASK_PROGRESS_MAX_WATCHERS, defaultMaxWatchers);
+		startUp(ttl, maxWatchers);
+	}
+
+	static synchronized void startUp(long ttlMinutes, int maxWatchers) {
+		INSTANCE = new TaskProgressHub(ttlMinutes, maxWatchers);
+		logger.info("Task progress kept for " + ttlMinutes + " minutes, up to " + maxWatchers + " watchers.");
+	}
+
+	/**
+	 * Answers everybody still waiting with the state they have.
+	 */
+	public static synchronized void shutdown() {
+		TaskProgressHub hub = INSTANCE;
+		INSTANCE = null;
+		if (hub == null)
+			return;
+		hub.notifier.shutdown();
+		for (Entry entry : hub.entries.values()) {
+			synchronized (entry) {
+				for (AsyncResponse watcher : entry.watchers)
+					watcher.resume(entry.latest);
+				entry.watchers.clear();
+			}
+		}
+	}
+
+	/**
+	 * Records a change of the task and wakes up its watchers.
+	 * 
+	 * @param progress
+	 *            the percentage done, or -1 to keep the last one.
+	 */
+	public static void publish(Task task, Status status, int progress, String message) {
+		TaskProgressHub hub = INSTANCE;
+		if (hub == null || task.getExternalId() == null)
+			return;
+		hub.update(task.getExternalId(), task.getTaskOwnerId(), status, progress, message);
+	}
+
+	/**
+	 * Records how far a running task is.
+	 */
+	public static void progress(Task task, int progress) {
+		publish(task, Status.PROCESSING, progress, null);
+	}
+
+	/**
+	 * @return the owner of the task, or null if the task is not known here.
+	 */
+	public static UUID getOwner(UUID taskId) {
+		TaskProgressHub hub = INSTANCE;
+		Entry entry = hub == null ? null : hub.entries.get(taskId);
+		return entry == null ? null : entry.ownerId;
+	}
+
+	/**
+	 * Adds a task read from the database, unless the task is known already.
+	 */
+	public static void seed(Task task) {
+		TaskProgressHub hub = INSTANCE;
+		if (hub == null || hub.entries.containsKey(task.getExternalId()))
+			return;
+		Entry entry = new Entry(task.getTaskOwnerId());
+		entry.latest = new TaskProgress(task.getExternalId(), task.getStatus(), task.getProgress(),
+				task.getMessage(), hub.versions.incrementAndGet());
+		hub.entries.putIfAbsent(task.getExternalId(), entry);
+	}
+
+	/**
+	 * Answers the response with the state of the task as soon as its version is
+	 * past since, or with the unchanged state after timeoutSeconds. A timeout
+	 * of 0 or less answers with the current state right away.
+	 * 
+	 * @return false if the task is not known here.
+	 */
+	public static boolean watch(UUID taskId, long since, long timeoutSeconds, AsyncResponse response) {
+		TaskProgressHub hub = INSTANCE;
+		Entry entry = hub == null ? null : hub.entries.get(taskId);
+		if (entry == null)
+			return false;
+		hub.addWatcher(entry, since, timeoutSeconds, response);
+		return true;
+	}
+
+	public static int getWatcherCount() {
+		TaskProgressHub hub = INSTANCE;
+		return hub == null ? 0 : hub.watching.get();
+	}
+
+	private void update(UUID taskId, UUID ownerId, Status status, int progress, String message) {
+		Entry entry = entries.get(taskId);
+		if (entry == null) {
+			Entry created = new Entry(ownerId);
+			entry = entries.putIfAbsent(taskId, created);
+			if (entry == null)
+				entry = created;
+		}
+
+		List<AsyncResponse> waiting;
+		TaskProgress latest;
+		synchronized (entry) {
+			if (progress < 0)
+				progress = entry.latest == null ? 0 : entry.latest.getProgress();
+			if (status == Status.COMPLETED)
+				progress = 100;
+			latest = new TaskProgress(taskId, status, progress, message, versions.incrementAndGet());
+			entry.latest = latest;
+			waiting = new ArrayList<>(entry.watchers);
+			entry.watchers.clear();
+		}
+		// refreshes the expiry
+		entries.put(taskId, entry);
+
+		if (!waiting.isEmpty())
+			resume(waiting, latest);
+	}
+
+	private void resume(final List<AsyncResponse> waiting, final TaskProgress latest) {
+		watching.addAndGet(-waiting.size());
+		Runnable answer = new Runnable() {
+			@Override
+			public void run() {
+				for (AsyncResponse watcher : waiting)
+					watcher.resume(latest);
+			}
+		};
+		try {
+			notifier.execute(answer);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+			answer.run();
+		}
+	}
+
+	private void addWatcher(final Entry entry, long since, long timeoutSeconds, AsyncResponse response) {
+		TaskProgress current = null;
+		synchronized (entry) {
+			// AsyncResponse.setTimeout(0) would mean no timeout at all
+			if (entry.latest.getVersion() > since || isFinished(entry.latest.getStatus())
+					|| timeoutSeconds <= 0 || watching.get() >= maxWatchers) {
+				current = entry.latest;
+			} else {
+				// set up before the watcher is published, so a change can't resume the response
+				// first. A timeout firing meanwhile waits for the lock and then finds the watcher.
+				response.setTimeoutHandler(new TimeoutHandler() {
+					@Override
+					public void handleTimeout(AsyncResponse timedOut) {
+						TaskProgress latest;
+						synchronized (entry) {
+							if (!entry.watchers.remove(timedOut))
+								return;
+							latest = entry.latest;
+						}
+						watching.decrementAndGet();
+						timedOut.resume(latest);
+					}
+				});
+				response.setTimeout(timeoutSeconds, TimeUnit.SECONDS);
+				watching.incrementAndGet();
+				entry.watchers.add(response);
+			}
+		}
+		if (current != null)
+			response.resume(current);
+	}
+
+	private static boolean isFinished(Status status) {
+		return status == Status.COMPLETED || status == Status.FAILED;
+	}
+}
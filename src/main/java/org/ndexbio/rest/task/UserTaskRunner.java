@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.task;
+
+import java.util.concurrent.Callable;
+
+import org.ndexbio.common.access.NdexDatabase;
+import org.ndexbio.common.models.dao.orientdb.TaskDAO;
+import org.ndexbio.model.exceptions.NdexException;
+import org.ndexbio.model.object.Status;
+import org.ndexbio.model.object.Task;
+import org.ndexbio.model.object.network.FileFormat;
+import org.ndexbio.rest.cache.ExportCache;
+import org.ndexbio.rest.helpers.ConnectionPoolMonitor;
+import org.ndexbio.task.BioPAXExporterTask;
+import org.ndexbio.task.FileUploadTask;
+import org.ndexbio.task.SIFExporterTask;
+import org.ndexbio.task.XGMMLExporterTask;
+import org.ndexbio.task.XbelExporterTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs one user task to completion and records its status. This is the body
+ * of the loop in ClientTaskProcessor, taken out so that the scheduler's
+ * workers can run several tasks at once.
+ */
+public class UserTaskRunner {
+
+	static Logger logger = LoggerFactory.getLogger(UserTaskRunner.class);
+
+	// returned by a task body that handed its task back to the scheduler
+	private static final Object deferred = new Object();
+
+	private UserTaskRunner() {}
+
+	/**
+	 * Never throws; a failed task is marked FAILED with the error message.
+	 */
+	public static void run(Task task) {
+		String taskId = task.getExternalId().toString();
+		long start = System.currentTimeMillis();
+		logger.info("Start processing " + task.getTaskType() + " task " + taskId);
+		try {
+			Callable<?> body = getTaskBody(task);
+			saveTaskStatus(taskId, Status.PROCESSING, null);
+			TaskProgressHub.publish(task, Status.PROCESSING, 0, null);
+			if (body.call() == deferred) {
+				logger.info("Task " + taskId + " deferred.");
+				return;
+			}
+			saveTaskStatus(taskId, Status.COMPLETED, null);
+			TaskProgressHub.publish(task, Status.COMPLETED, 100, null);
+			logger.info("Task " + taskId + " completed in " + (System.currentTimeMillis() - start) + " ms.");
+		} catch (Exception e) {
+			logger.error("Error occured when executing task " + taskId, e);
+			TaskProgressHub.publish(task, Status.FAILED, -1, e.getMessage());
+			try {
+				saveTaskStatus(taskId, Status.FAILED, e.getMessage());
+			} catch (NdexException e1) {
+				logger.error("Failed to set status of task " + taskId + " to FAILED.", e1);
+			}
+		}
+	}
+
+	private static Callable<?> getTaskBody(final Task task) throws NdexException {
+		switch (task.getTaskType()) {
+		case PROCESS_UPLOADED_NETWORK:
+			PipelinedSifLoader loader = PipelinedSifLoader.forTask(task);
+			if (loader != null)
+				return loader;
+			return new FileUploadTask(task, NdexDatabase.getInstance());
+		case EXPORT_NETWORK_TO_FILE:
+			final Callable<?> exporter = getExporter(task);
+			return new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					return ExportCache.export(task, exporter, requeue(task)) ? null : deferred;
+				}
+			};
+		default:
+			throw new NdexException("Unknown user task type " + task.getTaskType() + " in task "
+					+ task.getExternalId());
+		}
+	}
+
+	/**
+	 * @return a callback that marks the task QUEUED again and gives it back to
+	 *         the scheduler. If the scheduler has stopped, the task is loaded
+	 *         again at the next start.
+	 */
+	private static Runnable requeue(final Task task) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					saveTaskStatus(task.getExternalId().toString(), Status.QUEUED, null);
+				} catch (NdexException e) {
+					logger.error("Failed to set status of task " + task.getExternalId() + " back to QUEUED.", e);
+				}
+				UserTaskScheduler.requeue(task);
+			}
+		};
+	}
+
+	private static Callable<?> getExporter(Task task) throws NdexException {
+		if (task.getFormat() == FileFormat.XBEL)
+			return new XbelExporterTask(task);
+		if (task.getFormat() == FileFormat.XGMML)
+			return new XGMMLExporterTask(task);
+		if (task.getFormat() == FileFormat.BIOPAX)
+			return new BioPAXExporterTask(task);
+		if (task.getFormat() == FileFormat.SIF)
+			return new SIFExporterTask(task);
+		throw new NdexException("Exporter for " + task.getFormat() + " format is not implemented.");
+	}
+
+	static void saveTaskStatus(String taskId, Status status, String message) throws NdexException {
+		try (TaskDAO dao = new TaskDAO(ConnectionPoolMonitor.getAConnection())) {
+			dao.updateTaskStatus(status, message, taskId);
+			dao.commit();
+		}
+	}
+}
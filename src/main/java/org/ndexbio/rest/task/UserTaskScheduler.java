@@ -0,0 +1,437 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.task;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ndexbio.model.object.Priority;
+import org.ndexbio.model.object.Status;
+import org.ndexbio.model.object.Task;
+import org.ndexbio.model.object.TaskType;
+import org.ndexbio.rest.cache.ExportCache;
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.task.Configuration;
+import org.ndexbio.task.NdexServerQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs user tasks (uploads and exports) on a pool of workers instead of the
+ * single ClientTaskProcessor thread. A feeder thread moves tasks from the user
+ * queue of NdexServerQueue into one queue per task owner, and the workers
+ * serve the owners round-robin, so a user with a long backlog gets one turn
+ * like everybody else. No user has more than TASK_MAX_RUNNING_PER_USER tasks
+ * running at once.
+ * <p>
+ * Uploaded files of up to TASK_SMALL_FILE_BYTES go into a separate lane with
+ * its own TASK_SMALL_WORKERS workers, so a small SIF file is never stuck
+ * behind hour-long XBEL loads. The TASK_WORKERS general workers take from the
+ * small lane too when the general lane is empty.
+ * <p>
+ * Within a lane the task with the best priority goes first, and owners whose
+ * next task has the same priority take turns. A task moves up one priority
+ * for every TASK_PRIORITY_AGING_SECONDS it has waited, so LOW tasks still get
+ * to run when higher ones keep coming in.
+ * <p>
+ * Exports that {@link ExportCache} seems to hold go into the small lane too,
+ * since completing them is only a file copy. The feeder never runs a task or
+ * touches the database itself; if the cached file turns out to be out of date
+ * the small worker runs the exporter. An export that another task is already
+ * producing is handed back through {@link #requeue(Task)} once that task is
+ * done, instead of holding a worker while it waits.
+ */
+public class UserTaskScheduler {
+
+	static Logger logger = LoggerFactory.getLogger(UserTaskScheduler.class);
+
+	private static final String TASK_WORKERS = "TASK_WORKERS";
+	private static final String TASK_SMALL_WORKERS = "TASK_SMALL_WORKERS";
+	private static final String TASK_SMALL_FILE_BYTES = "TASK_SMALL_FILE_BYTES";
+	private static final String TASK_MAX_RUNNING_PER_USER = "TASK_MAX_RUNNING_PER_USER";
+	private static final String TASK_PRIORITY_AGING_SECONDS = "TASK_PRIORITY_AGING_SECONDS";
+	private static final long defaultWorkers = 4;
+	private static final long defaultSmallWorkers = 2;
+	private static final long defaultSmallFileBytes = 10L * 1024 * 1024;
+	private static final long defaultMaxRunningPerUser = 2;
+	private static final long defaultAgingSeconds = 300;
+
+	// lower runs first; looked up by name so a task with an unknown priority
+	// is treated as MEDIUM
+	private static final Map<String, Integer> priorityRanks = new HashMap<>();
+	static {
+		priorityRanks.put("HIGHEST", 0);
+		priorityRanks.put("HIGH", 1);
+		priorityRanks.put("MEDIUM", 2);
+		priorityRanks.put("LOW", 3);
+		priorityRanks.put("LOWEST", 4);
+	}
+	private static final int defaultRank = 2;
+
+	private static UserTaskScheduler INSTANCE = null;
+
+	/**
+	 * A task waiting in a lane. Since all waiting tasks age at the same rate,
+	 * the order by rank * agingMillis + since never changes while they wait,
+	 * and an owner's queue can be kept sorted on it.
+	 */
+	private final class Queued implements Comparable<Queued> {
+		final Task task;
+		final long since;
+		final long seq;
+		int rank;
+
+		Queued(Task task, long since, long seq) {
+			this.task = task;
+			this.since = since;
+			this.seq = seq;
+			this.rank = getRank(task.getPriority());
+		}
+
+		/**
+		 * @return the rank after aging, never better than 0.
+		 */
+		long agedRank(long now) {
+			return Math.max(0, rank - (now - since) / agingMillis);
+		}
+
+		@Override
+		public int compareTo(Queued o) {
+			int c = Long.compare(rank * agingMillis + since, o.rank * agingMillis + o.since);
+			return c != 0 ? c : Long.compare(seq, o.seq);
+		}
+	}
+
+	/**
+	 * Queued tasks of one lane by owner. Among owners whose next task has the
+	 * same aged rank, the one nearest the front goes first; after a turn the
+	 * owner goes to the back.
+	 */
+	private static final class Lane {
+		final LinkedHashMap<String, PriorityQueue<Queued>> queues = new LinkedHashMap<>();
+		int size;
+	}
+
+	private final Lane smallLane = new Lane();
+	private final Lane generalLane = new Lane();
+	private final Map<String, Integer> running = new HashMap<>();
+	private final List<Thread> threads = new ArrayList<>();
+	private final long smallFileBytes;
+	private final int maxRunningPerUser;
+	private final long agingMillis;
+	private final AtomicLong completed = new AtomicLong();
+	private long submitted;
+	private Thread feeder;
+	private int runningCount;
+	private boolean stopping;
+
+	UserTaskScheduler(long smallFileBytes, int maxRunningPerUser, long agingSeconds) {
+		this.smallFileBytes = smallFileBytes;
+		this.maxRunningPerUser = maxRunningPerUser;
+		this.agingMillis = TimeUnit.SECONDS.toMillis(agingSeconds);
+	}
+
+	/**
+	 * Starts the feeder and the workers. Tasks already in NdexServerQueue are
+	 * picked up by the feeder like any other.
+	 */
+	public static synchronized void startUp(Configuration config) {
+		long workers = Math.max(1, ConfigProperties.getLong(config, TASK_WORKERS, defaultWorkers));
+		long smallWorkers = Math.max(0, ConfigProperties.getLong(config, TASK_SMALL_WORKERS, defaultSmallWorkers));
+		long smallFileBytes = ConfigProperties.getLong(config, TASK_SMALL_FILE_BYTES, defaultSmallFileBytes);
+		long perUser = Math.max(1, ConfigProperties.getLong(config, TASK_MAX_RUNNING_PER_USER, defaultMaxRunningPerUser));
+		long aging = Math.max(1, ConfigProperties.getLong(config, TASK_PRIORITY_AGING_SECONDS, defaultAgingSeconds));
+
+		INSTANCE = new UserTaskScheduler(smallFileBytes, (int) perUser, aging);
+		INSTANCE.start((int) workers, (int) smallWorkers);
+		logger.info("User task scheduler started with " + workers + " workers and " + smallWorkers
+				+ " workers for uploads up to " + smallFileBytes + " bytes, " + perUser + " running tasks per user,"
+				+ " priorities aging every " + aging + "s.");
+	}
+
+	/**
+	 * Lets running tasks finish and stops the workers. Tasks still queued stay
+	 * QUEUED in the database and are loaded again on the next start. Call it
+	 * after NdexServerQueue has been shut down, which stops the feeder.
+	 */
+	public static synchronized void shutdown() throws InterruptedException {
+		UserTaskScheduler scheduler = INSTANCE;
+		if (scheduler == null)
+			return;
+		INSTANCE = null;
+		scheduler.stop();
+	}
+
+	/**
+	 * @return the number of tasks waiting for a worker, or -1 if the scheduler
+	 *         is not running.
+	 */
+	public static int getQueuedCount() {
+		UserTaskScheduler scheduler = INSTANCE;
+		if (scheduler == null)
+			return -1;
+		synchronized (scheduler) {
+			return scheduler.smallLane.size + scheduler.generalLane.size;
+		}
+	}
+
+	public static int getRunningCount() {
+		UserTaskScheduler scheduler = INSTANCE;
+		if (scheduler == null)
+			return 0;
+		synchronized (scheduler) {
+			return scheduler.runningCount;
+		}
+	}
+
+	public static long getCompletedCount() {
+		UserTaskScheduler scheduler = INSTANCE;
+		return scheduler == null ? 0 : scheduler.completed.get();
+	}
+
+	/**
+	 * Changes the priority of a task that is waiting for a worker. The new
+	 * priority is not saved, so it is lost if the server restarts before the
+	 * task runs.
+	 * 
+	 * @return false if the task is not waiting in the queue.
+	 */
+	public static boolean setPriority(UUID taskId, Priority priority) {
+		UserTaskScheduler scheduler = INSTANCE;
+		return scheduler != null && scheduler.reprioritize(taskId, priority);
+	}
+
+	/**
+	 * Puts a task that a worker handed back in its lane again. It keeps the
+	 * time it has waited. Does nothing if the scheduler is not running.
+	 */
+	public static void requeue(Task task) {
+		UserTaskScheduler scheduler = INSTANCE;
+		if (scheduler != null)
+			scheduler.submit(task);
+	}
+
+	private void start(int workers, int smallWorkers) {
+		for (int i = 1; i <= workers; i++)
+			threads.add(newWorker("NDEx user task worker " + i, false));
+		for (int i = 1; i <= smallWorkers; i++)
+			threads.add(newWorker("NDEx small task worker " + i, true));
+
+		feeder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				feed();
+			}
+		}, "NDEx user task feeder");
+		feeder.start();
+		for (Thread t : threads)
+			t.start();
+	}
+
+	private Thread newWorker(String name, final boolean smallOnly) {
+		return new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work(smallOnly);
+			}
+		}, name);
+	}
+
+	private void stop() throws InterruptedException {
+		synchronized (this) {
+			stopping = true;
+			notifyAll();
+		}
+		// the feeder ends on the end of queue marker NdexServerQueue.shutdown()
+		// puts in; it is not interrupted, since it may be reading the database.
+		feeder.join();
+		for (Thread t : threads)
+			t.join();
+		logger.info("User task scheduler stopped, " + (smallLane.size + generalLane.size)
+				+ " tasks left in queue.");
+	}
+
+	private void feed() {
+		try {
+			while (true) {
+				Task task = NdexServerQueue.INSTANCE.takeNextUserTask();
+				if (task == NdexServerQueue.endOfQueue)
+					break;
+				submit(task);
+			}
+		} catch (InterruptedException e) {
+			// shutting down
+		}
+		logger.info("User task feeder stopped.");
+	}
+
+	synchronized void submit(Task task) {
+		Lane lane = isSmall(task) || isCachedExport(task) ? smallLane : generalLane;
+		String owner = getOwner(task);
+		PriorityQueue<Queued> queue = lane.queues.get(owner);
+		if (queue == null) {
+			queue = new PriorityQueue<>();
+			lane.queues.put(owner, queue);
+		}
+		// tasks loaded again after a restart keep the time they have waited
+		long since = task.getCreationTime() != null ? task.getCreationTime().getTime() : System.currentTimeMillis();
+		queue.add(new Queued(task, since, submitted++));
+		lane.size++;
+		TaskProgressHub.publish(task, Status.QUEUED, 0, null);
+		notifyAll();
+	}
+
+	private synchronized boolean reprioritize(UUID taskId, Priority priority) {
+		for (Lane lane : new Lane[] { generalLane, smallLane }) {
+			for (PriorityQueue<Queued> queue : lane.queues.values()) {
+				for (Queued queued : queue) {
+					if (taskId.equals(queued.task.getExternalId())) {
+						queue.remove(queued);
+						queued.task.setPriority(priority);
+						queued.rank = getRank(priority);
+						queue.add(queued);
+						logger.info("Priority of task " + taskId + " changed to " + priority + ".");
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private void work(boolean smallOnly) {
+		while (true) {
+			Task task;
+			synchronized (this) {
+				task = null;
+				while (!stopping && (task = next(smallOnly)) == null) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (task == null)
+					return;
+			}
+
+			try {
+				UserTaskRunner.run(task);
+			} finally {
+				completed.incrementAndGet();
+				finished(getOwner(task));
+			}
+		}
+	}
+
+	synchronized Task next(boolean smallOnly) {
+		Task task = smallOnly ? null : take(generalLane);
+		if (task == null)
+			task = take(smallLane);
+		if (task != null) {
+			String owner = getOwner(task);
+			Integer count = running.get(owner);
+			running.put(owner, count == null ? 1 : count + 1);
+			runningCount++;
+		}
+		return task;
+	}
+
+	/**
+	 * Takes the best task of the owners in the lane who are under the running
+	 * limit, the owner nearest the front winning ties, and sends that owner to
+	 * the back of the lane.
+	 */
+	private Task take(Lane lane) {
+		long now = System.currentTimeMillis();
+		String bestOwner = null;
+		long bestRank = Long.MAX_VALUE;
+		for (Map.Entry<String, PriorityQueue<Queued>> entry : lane.queues.entrySet()) {
+			Integer count = running.get(entry.getKey());
+			if (count != null && count >= maxRunningPerUser)
+				continue;
+			long rank = entry.getValue().peek().agedRank(now);
+			if (rank < bestRank) {
+				bestRank = rank;
+				bestOwner = entry.getKey();
+				if (rank == 0)
+					break;
+			}
+		}
+		if (bestOwner == null)
+			return null;
+
+		PriorityQueue<Queued> queue = lane.queues.remove(bestOwner);
+		Task task = queue.poll().task;
+		if (!queue.isEmpty())
+			lane.queues.put(bestOwner, queue);
+		lane.size--;
+		return task;
+	}
+
+	synchronized void finished(String owner) {
+		Integer count = running.get(owner);
+		if (count == null || count <= 1)
+			running.remove(owner);
+		else
+			running.put(owner, count - 1);
+		runningCount--;
+		notifyAll();
+	}
+
+	private boolean isSmall(Task task) {
+		if (task.getTaskType() != TaskType.PROCESS_UPLOADED_NETWORK || task.getResource() == null)
+			return false;
+		File file = new File(task.getResource());
+		return file.isFile() && file.length() <= smallFileBytes;
+	}
+
+	private static boolean isCachedExport(Task task) {
+		return task.getTaskType() == TaskType.EXPORT_NETWORK_TO_FILE && ExportCache.mayBeCached(task);
+	}
+
+	private static int getRank(Priority priority) {
+		Integer rank = priority == null ? null : priorityRanks.get(priority.name());
+		return rank == null ? defaultRank : rank;
+	}
+
+	private static String getOwner(Task task) {
+		return task.getTaskOwnerId() == null ? "" : task.getTaskOwnerId().toString();
+	}
+}
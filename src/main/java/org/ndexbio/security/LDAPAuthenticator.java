@@ -30,14 +30,19 @@
  */
 package org.ndexbio.security;
 
-import java.util.AbstractMap;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Hashtable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.naming.AuthenticationException;
 import javax.naming.Context;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
@@ -45,24 +50,23 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
-import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
 
 import org.ndexbio.model.exceptions.NdexException;
 import org.ndexbio.model.exceptions.UnauthorizedOperationException;
 import org.ndexbio.model.object.NewUser;
+import org.ndexbio.rest.helpers.ConfigProperties;
 import org.ndexbio.task.Configuration;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.CacheStats;
+import com.google.common.io.BaseEncoding;
 
 public class LDAPAuthenticator {
 	
 	static Logger logger = Logger.getLogger(LDAPAuthenticator.class.getName());
 	
-	private final static int CACHE_SIZE = 100;
-	
 	private final static String PROP_LDAP_URL = "PROP_LDAP_URL";
 	private final static String AD_SEARCH_BASE= "AD_SEARCH_BASE";
 	private final static String AD_NDEX_GROUP_NAME="AD_NDEX";
@@ -74,12 +78,26 @@ public class LDAPAuthenticator {
     private final static String AD_CTX_PRINCIPLE = "AD_CTX_PRINCIPLE"; 
     protected final static String AD_SEARCH_FILTER = "AD_SEARCH_FILTER";
     protected final static String userNamePattern = "%%USER_NAME%%";
+    private final static String AD_POOL_SIZE = "AD_POOL_SIZE";
+    private final static String AD_POOL_WAIT_SECONDS = "AD_POOL_WAIT_SECONDS";
+    private final static String AD_POOL_IDLE_TIMEOUT_SECONDS = "AD_POOL_IDLE_TIMEOUT_SECONDS";
+    private final static int defaultPoolSize = 20;
+    private final static int defaultPoolWaitSeconds = 10;
+    private final static int defaultPoolIdleTimeoutSeconds = 300;
+    private final static String AD_AUTH_CACHE_SIZE = "AD_AUTH_CACHE_SIZE";
+    private final static String AD_AUTH_CACHE_TTL_SECONDS = "AD_AUTH_CACHE_TTL_SECONDS";
+    private final static String AD_AUTH_NEGATIVE_CACHE_TTL_SECONDS = "AD_AUTH_NEGATIVE_CACHE_TTL_SECONDS";
+    private final static int defaultCacheSize = 1000;
+    private final static int defaultCacheTTLSeconds = 600;
+    private final static int defaultNegativeCacheTTLSeconds = 60;
+    private final static String digestAlgorithm = "HmacSHA256";
     
 	private String ldapAdServer;
 	protected String ldapSearchBase;
 	private String ldapNDExGroup;
 	protected Hashtable <String,Object> env ;
 	private Pattern pattern ;
+	private LDAPConnectionPool connectionPool;
 	private boolean useCache = false;
 	protected String ctxPrinciplePattern ;
 	protected String searchFilterPattern ;
@@ -93,8 +111,11 @@ public class LDAPAuthenticator {
 	private String delegatedUserPassword;
 
 	
-	//key is the combination of 
-	protected LoadingCache<java.util.Map.Entry<String,String>, Boolean>  userCredentials;
+	// keys are salted hashes of the user name and password, so no password is kept in memory.
+	protected Cache<String, Boolean>  userCredentials;
+	// credentials AD rejected recently, so a client retrying a stale password doesn't reach AD every time.
+	protected Cache<String, Boolean>  failedCredentials;
+	private SecretKeySpec salt;
 	
 	public LDAPAuthenticator (Configuration config) throws NdexException {
 		
@@ -139,22 +160,23 @@ public class LDAPAuthenticator {
        if (useCacheStr != null && Boolean.parseBoolean(useCacheStr)) {
        	 useCache = true;
        	 logger.info("Server AD Authentication cache turned on.");
+       	 int cacheSize = ConfigProperties.getInt(config, AD_AUTH_CACHE_SIZE, defaultCacheSize);
+       	 int ttl = ConfigProperties.getInt(config, AD_AUTH_CACHE_TTL_SECONDS, defaultCacheTTLSeconds);
+       	 int negativeTTL = ConfigProperties.getInt(config, AD_AUTH_NEGATIVE_CACHE_TTL_SECONDS, defaultNegativeCacheTTLSeconds);
        	 userCredentials = CacheBuilder
-				.newBuilder().maximumSize(CACHE_SIZE)
-				.expireAfterAccess(10L, TimeUnit.MINUTES)
-				.build(new CacheLoader<java.util.Map.Entry<String,String>, Boolean>() {
-				   @Override
-				   public Boolean load(java.util.Map.Entry<String,String> entry) throws NdexException, ExecutionException {
-					   String userName = entry.getKey();
-					   String pswd = entry.getValue();
-					   Boolean userIsInGrp = userIsInNdexGroup(userName, pswd);
-                   	   if ( userIsInGrp.booleanValue() ) {
-                   		   userCredentials.put(new AbstractMap.SimpleImmutableEntry<>(userName, pswd), Boolean.TRUE);	
-                   		   return Boolean.TRUE;
-                   	   }
-                   	   throw new UnauthorizedOperationException("User " + userName + " is not in the required group." );
-				   }
-			    });
+				.newBuilder().maximumSize(cacheSize)
+				.expireAfterWrite(ttl, TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+       	 failedCredentials = CacheBuilder
+				.newBuilder().maximumSize(cacheSize)
+				.expireAfterWrite(negativeTTL, TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+       	 byte[] key = new byte[32];
+       	 new SecureRandom().nextBytes(key);
+       	 salt = new SecretKeySpec(key, digestAlgorithm);
+       	 logger.info("Server AD Authentication cache size is " + cacheSize + ", ttl " + ttl + "s, negative ttl " + negativeTTL + "s.");
        } else {
     	   useCache = false;
        }
@@ -177,105 +199,123 @@ public class LDAPAuthenticator {
            logger.info("Server AD authentication using ssl with keystore "+ keystore);
        }
 
+       // only the delegated account's contexts are kept for reuse, see LDAPConnectionPool.
+       int poolSize = ConfigProperties.getInt(config, AD_POOL_SIZE, defaultPoolSize);
+       connectionPool = new LDAPConnectionPool(env, poolSize, 
+    		   TimeUnit.SECONDS.toMillis(ConfigProperties.getInt(config, AD_POOL_WAIT_SECONDS, defaultPoolWaitSeconds)),
+    		   TimeUnit.SECONDS.toMillis(ConfigProperties.getInt(config, AD_POOL_IDLE_TIMEOUT_SECONDS, defaultPoolIdleTimeoutSeconds)));
+       logger.info("Server AD connection pool size is " + poolSize + ".");
+
 	}
 
-	
-	protected Boolean userIsInNdexGroup (String username, String password) throws UnauthorizedOperationException  {
+
+	protected Boolean userIsInNdexGroup (final String username, String password) throws UnauthorizedOperationException  {
+      try {
+    	  return checkNdexGroup(username, password);
+      } catch (NamingException e) {
+    	  throw new UnauthorizedOperationException(e.getMessage());
+      }
+	}
+
+	private Boolean checkNdexGroup (final String username, String password) throws NamingException  {
       
  	  //env.put(Context.SECURITY_PRINCIPAL, "NA\\" +username);
 	
-	  if ( delegatedUserName != null) {
-		  env.put(Context.SECURITY_PRINCIPAL,username);
-	  } else {
-		  env.put(Context.SECURITY_PRINCIPAL, ctxPrinciplePattern.replaceAll(userNamePattern, username));	
-	  }
+	  String principal = delegatedUserName != null ? username : 
+		  ctxPrinciplePattern.replaceAll(userNamePattern, username);	
 	  
-	  env.put(Context.SECURITY_CREDENTIALS, password);
-      try {
-    	  LdapContext ctx = new InitialLdapContext(env,null);
-      
+    	  return connectionPool.execute(principal, password, new LDAPConnectionPool.Operation<Boolean>() {
+    		  @Override
+    		  public Boolean run(LdapContext ctx) throws NamingException {
+    			  // String searchFilter = "(&(SAMAccountName="+ username + ")(objectClass=user)(objectCategory=person))";
+    			  String searchFilter = searchFilterPattern.replaceAll(userNamePattern, username);
 
-	 // String searchFilter = "(&(SAMAccountName="+ username + ")(objectClass=user)(objectCategory=person))";
-	  String searchFilter = searchFilterPattern.replaceAll(userNamePattern, username);
-	  
-	  SearchControls searchControls = new SearchControls();
-	  searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-	  NamingEnumeration<SearchResult> results = ctx.search(ldapSearchBase, searchFilter, searchControls);
-	  
-	  SearchResult searchResult = null;
-		if ( results.hasMoreElements()) {
-			searchResult = results.nextElement();
-			Attributes attrs = searchResult.getAttributes();
-//			Attribute uWWID = attrs.get("employeeID");
-			if ( ldapNDExGroup != null ) {
-				Attribute grp = attrs.get("memberOf");
-				NamingEnumeration enu = grp.getAll();
-				while ( enu.hasMore()) {
-					String obj = (String)enu.next();
-					//	        	System.out.println(obj);
-					Matcher matcher = pattern.matcher(obj);
-					if (matcher.find())
-					{
-						if ( matcher.group(1).equals(ldapNDExGroup) ) 
-							return Boolean.TRUE;
-					}
-				}
-				return Boolean.FALSE;
-			}	
-			return Boolean.TRUE;
-		}
-		return Boolean.FALSE;
-      } catch (NamingException e) {
-    	  throw new UnauthorizedOperationException(e.getMessage());
-      }
+    			  SearchControls searchControls = new SearchControls();
+    			  searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+    			  NamingEnumeration<SearchResult> results = ctx.search(ldapSearchBase, searchFilter, searchControls);
+    			  try {
+    				  if ( results.hasMoreElements()) {
+    					  SearchResult searchResult = results.nextElement();
+    					  Attributes attrs = searchResult.getAttributes();
+//    					  Attribute uWWID = attrs.get("employeeID");
+    					  if ( ldapNDExGroup != null ) {
+    						  Attribute grp = attrs.get("memberOf");
+    						  if ( grp == null)
+    							  return Boolean.FALSE;
+    						  NamingEnumeration<?> enu = grp.getAll();
+    						  try {
+    							  while ( enu.hasMore()) {
+    								  String obj = (String)enu.next();
+    								  Matcher matcher = pattern.matcher(obj);
+    								  if (matcher.find())
+    								  {
+    									  if ( matcher.group(1).equals(ldapNDExGroup) ) 
+    										  return Boolean.TRUE;
+    								  }
+    							  }
+    						  } finally {
+    							  enu.close();
+    						  }
+    						  return Boolean.FALSE;
+    					  }	
+    					  return Boolean.TRUE;
+    				  }
+    				  return Boolean.FALSE;
+    			  } finally {
+    				  results.close();
+    			  }
+    		  }
+    	  });
 	}
 
 	
-	public NewUser getNewUser (String username, String password) throws UnauthorizedOperationException  {
+	public NewUser getNewUser (final String username, final String password) throws UnauthorizedOperationException  {
 	      
 	 	  //env.put(Context.SECURITY_PRINCIPAL, "NA\\" +username);
 		
-		  env.put(Context.SECURITY_PRINCIPAL, ctxPrinciplePattern.replaceAll(userNamePattern, username));	
-	      env.put(Context.SECURITY_CREDENTIALS, password);
 	      try {
-	    	  LdapContext ctx = new InitialLdapContext(env,null);
-	      
-	    	  // String searchFilter = "(&(SAMAccountName="+ username + ")(objectClass=user)(objectCategory=person))";
-	    	  String searchFilter = searchFilterPattern.replaceAll(userNamePattern, username);
-		  
-	    	  SearchControls searchControls = new SearchControls();
-	    	  searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-	    	  NamingEnumeration<SearchResult> results = ctx.search(ldapSearchBase, searchFilter, searchControls);
-		  
-	    	  SearchResult searchResult = null;
-	    	  if ( results.hasMoreElements()) {
-				searchResult = results.nextElement();
-				Attributes attrs = searchResult.getAttributes();
-//				Attribute uWWID = attrs.get("employeeID");
-                NewUser newUser = new NewUser();
-				
-                newUser.setAccountName(username);
-                newUser.setPassword(password);
-                
-                Attribute attr =attrs.get("givenName");
-                if ( attr.size()>0) {
-                	newUser.setFirstName(attr.get(0).toString());
-                }
-                
-                attr =attrs.get("sn");
-                if ( attr.size()>0) {
-                	newUser.setLastName(attr.get(0).toString());
-                }
-                
-                attr =attrs.get("mail");
-                if ( attr.size()>0) {
-                	newUser.setEmailAddress(attr.get(0).toString());
-                }
-				
-                return newUser;
-				
-	    	  }
-	    	  return null;
+	    	  return connectionPool.execute(ctxPrinciplePattern.replaceAll(userNamePattern, username), password, 
+	    			  new LDAPConnectionPool.Operation<NewUser>() {
+	    		  @Override
+	    		  public NewUser run(LdapContext ctx) throws NamingException {
+	    			  // String searchFilter = "(&(SAMAccountName="+ username + ")(objectClass=user)(objectCategory=person))";
+	    			  String searchFilter = searchFilterPattern.replaceAll(userNamePattern, username);
+
+	    			  SearchControls searchControls = new SearchControls();
+	    			  searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+	    			  NamingEnumeration<SearchResult> results = ctx.search(ldapSearchBase, searchFilter, searchControls);
+	    			  try {
+	    				  if ( results.hasMoreElements()) {
+	    					  SearchResult searchResult = results.nextElement();
+	    					  Attributes attrs = searchResult.getAttributes();
+	    					  NewUser newUser = new NewUser();
+
+	    					  newUser.setAccountName(username);
+	    					  newUser.setPassword(password);
+
+	    					  Attribute attr =attrs.get("givenName");
+	    					  if ( attr != null && attr.size()>0) {
+	    						  newUser.setFirstName(attr.get(0).toString());
+	    					  }
+
+	    					  attr =attrs.get("sn");
+	    					  if ( attr != null && attr.size()>0) {
+	    						  newUser.setLastName(attr.get(0).toString());
+	    					  }
+
+	    					  attr =attrs.get("mail");
+	    					  if ( attr != null && attr.size()>0) {
+	    						  newUser.setEmailAddress(attr.get(0).toString());
+	    					  }
+
+	    					  return newUser;
+	    				  }
+	    				  return null;
+	    			  } finally {
+	    				  results.close();
+	    			  }
+	    		  }
+	    	  });
 	      } catch (NamingException e) {
 	    	  throw new UnauthorizedOperationException(e.getMessage());
 	      }
@@ -285,47 +325,105 @@ public class LDAPAuthenticator {
 	
 	public boolean authenticateUser(String username, String password) throws UnauthorizedOperationException {
 		if ( !useCache) {
-			if ( delegatedUserName !=null) {  
-				return userIsInNdexGroup(getFullyQualifiedNameByUserId(username),password).booleanValue();
+			try {
+				return verifyCredentials(username, password);
+			} catch (NamingException e) {
+				throw new UnauthorizedOperationException(e.getMessage());
 			}
-			return userIsInNdexGroup(username,password).booleanValue();
 		}
 		
-		Boolean result;
+		String key = digest(username, password);
+		if ( userCredentials.getIfPresent(key) != null)
+			return true;
+		if ( failedCredentials.getIfPresent(key) != null)
+			throw new UnauthorizedOperationException("Credentials of user " + username + " were rejected recently.");
+
 		try {
-			result = userCredentials.get(new AbstractMap.SimpleImmutableEntry<>(username, password));
-		} catch (ExecutionException e) {
+			if ( verifyCredentials(username, password)) {
+				userCredentials.put(key, Boolean.TRUE);
+				return true;
+			}
+		} catch (AuthenticationException e) {
+			failedCredentials.put(key, Boolean.TRUE);
+			throw new UnauthorizedOperationException(e.getMessage());
+		} catch (NamingException e) {
+			// the directory is unreachable or busy; that says nothing about the credentials.
 			throw new UnauthorizedOperationException(e.getMessage());
 		}
-		return result.booleanValue() ;
+		failedCredentials.put(key, Boolean.TRUE);
+		throw new UnauthorizedOperationException("User " + username + " is not in the required group." );
 	}
 	
+	private boolean verifyCredentials(String username, String password) throws NamingException, UnauthorizedOperationException {
+		if ( delegatedUserName !=null) {  
+			String fullName = getFullyQualifiedNameByUserId(username);
+			return fullName != null && checkNdexGroup(fullName, password).booleanValue();
+		}
+		return checkNdexGroup(username, password).booleanValue();
+	}
 	
-	private String getFullyQualifiedNameByUserId(String userId) throws UnauthorizedOperationException {
+	private String digest(String username, String password) {
+		try {
+			Mac mac = Mac.getInstance(digestAlgorithm);
+			mac.init(salt);
+			mac.update(username.getBytes(StandardCharsets.UTF_8));
+			mac.update((byte) 0);
+			return BaseEncoding.base16().encode(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			// HmacSHA256 is required on every Java platform.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @return hit/miss/eviction counts of the credential cache, or null if it is turned off.
+	 */
+	public CacheStats getCacheStats() {
+		return useCache ? userCredentials.stats() : null;
+	}
+
+	/**
+	 * @return hit/miss counts of the recently failed credential cache, or null if it is turned off.
+	 */
+	public CacheStats getNegativeCacheStats() {
+		return useCache ? failedCredentials.stats() : null;
+	}
+	
+	
+	private String getFullyQualifiedNameByUserId(final String userId) throws UnauthorizedOperationException {
 		
-		  env.put(Context.SECURITY_PRINCIPAL, ctxPrinciplePattern.replaceAll(userNamePattern, delegatedUserName));	
-	      env.put(Context.SECURITY_CREDENTIALS, delegatedUserPassword);
 	      try {
-	    	  LdapContext ctx = new InitialLdapContext(env,null);
-		
-	    	  String searchFilter = searchFilterPattern.replaceAll(userNamePattern, userId);
+	    	  return connectionPool.executeShared(ctxPrinciplePattern.replaceAll(userNamePattern, delegatedUserName), 
+	    			  delegatedUserPassword, new LDAPConnectionPool.Operation<String>() {
+	    		  @Override
+	    		  public String run(LdapContext ctx) throws NamingException {
+	    			  String searchFilter = searchFilterPattern.replaceAll(userNamePattern, userId);
 
-	    	  SearchControls searchControls = new SearchControls();
-	    	  searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-	    	  NamingEnumeration<SearchResult> results = ctx.search(ldapSearchBase,
-	    			  searchFilter, searchControls);
-
-	    	  SearchResult searchResult = null;
-	    	  if (results.hasMoreElements()) {
-	    		  searchResult = results.nextElement();
-	    		  return searchResult.getNameInNamespace();
-	    	  }
-	    	  return null;
+	    			  SearchControls searchControls = new SearchControls();
+	    			  searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+	    			  NamingEnumeration<SearchResult> results = ctx.search(ldapSearchBase,
+	    					  searchFilter, searchControls);
+	    			  try {
+	    				  if (results.hasMoreElements()) {
+	    					  return results.nextElement().getNameInNamespace();
+	    				  }
+	    				  return null;
+	    			  } finally {
+	    				  results.close();
+	    			  }
+	    		  }
+	    	  });
 	      } catch (NamingException e) {
 	    	  throw new UnauthorizedOperationException(e.getMessage());
 	      }
 	}
 	
+	/**
+	 * @return the pool all directory calls go through, for monitoring.
+	 */
+	public LDAPConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
 	
 }
  
\ No newline at end of file
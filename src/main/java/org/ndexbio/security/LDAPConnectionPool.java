@@ -0,0 +1,335 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.security;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Limits how many LDAP contexts are open against the directory at once, and
+ * keeps the contexts of the fixed service account open for reuse. Despite
+ * the name, this is mostly a concurrency limiter: a semaphore caps the
+ * contexts in use, and a caller that can't get a slot in time gives up.
+ * <p>
+ * A bind as a user always gets a context of its own, with its own copy of the
+ * environment, so concurrent logins never see each other's credentials, and
+ * the context is closed afterwards. Reusing such binds would hardly ever
+ * help, as every user has a connection of their own, and would keep their
+ * passwords in memory.
+ * <p>
+ * Contexts bound as the service account with {@link #executeShared} are put
+ * back after use, up to one per slot, and closed once idle for longer than
+ * the idle timeout. This is done here rather than by the JDK's LDAP pool,
+ * whose size, timeout and protocols can only be set as JVM-wide system
+ * properties.
+ */
+public class LDAPConnectionPool {
+
+	static Logger logger = Logger.getLogger(LDAPConnectionPool.class.getName());
+
+	private static final long defaultIdleMillis = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * Work done with a bound context. The context is closed when it returns.
+	 */
+	public interface Operation<T> {
+		T run(LdapContext ctx) throws NamingException;
+	}
+
+	private static final class Idle {
+		final LdapContext ctx;
+		final String principal;
+		final String credentials;
+		final long since = System.currentTimeMillis();
+
+		Idle(LdapContext ctx, String principal, String credentials) {
+			this.ctx = ctx;
+			this.principal = principal;
+			this.credentials = credentials;
+		}
+	}
+
+	private final Hashtable<String, Object> baseEnv;
+	private final Semaphore permits;
+	private final int size;
+	private final long waitMillis;
+	private final long idleMillis;
+	// most recently used last
+	private final Deque<Idle> idle = new ArrayDeque<>();
+
+	private final AtomicLong binds = new AtomicLong();
+	private final AtomicLong bindFailures = new AtomicLong();
+	private final AtomicLong bindNanos = new AtomicLong();
+	private final AtomicLong maxBindNanos = new AtomicLong();
+	private final AtomicLong exhausted = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+
+	public LDAPConnectionPool(Hashtable<String, ?> env, int size, long waitMillis) {
+		this(env, size, waitMillis, defaultIdleMillis);
+	}
+
+	/**
+	 * @param env
+	 *            settings shared by every context, e.g. provider URL and
+	 *            security protocol. Principal and credentials are ignored.
+	 * @param size
+	 *            the most contexts in use at once.
+	 * @param waitMillis
+	 *            how long a caller waits for a free slot before giving up.
+	 * @param idleMillis
+	 *            how long a service account context is kept unused.
+	 */
+	public LDAPConnectionPool(Hashtable<String, ?> env, int size, long waitMillis, long idleMillis) {
+		this.baseEnv = new Hashtable<>(env);
+		this.baseEnv.remove(Context.SECURITY_PRINCIPAL);
+		this.baseEnv.remove(Context.SECURITY_CREDENTIALS);
+		this.baseEnv.remove("com.sun.jndi.ldap.connect.pool");
+		this.size = size;
+		this.permits = new Semaphore(size, true);
+		this.waitMillis = waitMillis;
+		this.idleMillis = idleMillis;
+	}
+
+	/**
+	 * Binds as the principal on a connection of its own, runs the operation and
+	 * closes the context. Use this to check a user's own credentials.
+	 * 
+	 * @throws NamingException
+	 *             the bind or the operation failed, or no slot became free in
+	 *             time.
+	 */
+	public <T> T execute(String principal, String credentials, Operation<T> operation) throws NamingException {
+		acquire();
+		try {
+			LdapContext ctx = bind(principal, credentials);
+			try {
+				return operation.run(ctx);
+			} finally {
+				close(ctx);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Same as {@link #execute}, but runs the operation on a context kept from
+	 * an earlier call with the same principal if there is one, and keeps the
+	 * context afterwards. Only use this for the fixed service account. A kept
+	 * context that has lost its connection is replaced by a new one.
+	 */
+	public <T> T executeShared(String principal, String credentials, Operation<T> operation) throws NamingException {
+		acquire();
+		try {
+			Idle kept = takeIdle(principal, credentials);
+			if (kept != null) {
+				reused.incrementAndGet();
+				try {
+					T result = operation.run(kept.ctx);
+					putIdle(kept.ctx, principal, credentials);
+					return result;
+				} catch (CommunicationException | ServiceUnavailableException e) {
+					// the directory closed the connection while it was idle
+					close(kept.ctx);
+				} catch (NamingException | RuntimeException e) {
+					close(kept.ctx);
+					throw e;
+				}
+			}
+
+			LdapContext ctx = bind(principal, credentials);
+			boolean keep = false;
+			try {
+				T result = operation.run(ctx);
+				keep = true;
+				return result;
+			} finally {
+				if (keep)
+					putIdle(ctx, principal, credentials);
+				else
+					close(ctx);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	private void acquire() throws ServiceUnavailableException {
+		try {
+			if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+				exhausted.incrementAndGet();
+				throw new ServiceUnavailableException("Timed out waiting for an LDAP connection.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceUnavailableException("Interrupted while waiting for an LDAP connection.");
+		}
+	}
+
+	private LdapContext bind(String principal, String credentials) throws NamingException {
+		Hashtable<String, Object> env = new Hashtable<>(baseEnv);
+		env.put(Context.SECURITY_PRINCIPAL, principal);
+		env.put(Context.SECURITY_CREDENTIALS, credentials);
+
+		long start = System.nanoTime();
+		try {
+			return new InitialLdapContext(env, null);
+		} catch (NamingException e) {
+			bindFailures.incrementAndGet();
+			throw e;
+		} finally {
+			recordBind(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @return the most recently used context bound as the principal, or null.
+	 *         Contexts idle for too long are closed on the way.
+	 */
+	private Idle takeIdle(String principal, String credentials) {
+		long cutoff = System.currentTimeMillis() - idleMillis;
+		Deque<Idle> expired = new ArrayDeque<>();
+		Idle found = null;
+		synchronized (idle) {
+			while (!idle.isEmpty() && idle.peekFirst().since < cutoff)
+				expired.add(idle.pollFirst());
+			for (Iterator<Idle> it = idle.descendingIterator(); it.hasNext();) {
+				Idle candidate = it.next();
+				if (candidate.principal.equals(principal) && candidate.credentials.equals(credentials)) {
+					it.remove();
+					found = candidate;
+					break;
+				}
+			}
+		}
+		for (Idle old : expired)
+			close(old.ctx);
+		return found;
+	}
+
+	private void putIdle(LdapContext ctx, String principal, String credentials) {
+		try {
+			// undo what the last operation may have set
+			ctx.setRequestControls(null);
+		} catch (NamingException e) {
+			close(ctx);
+			return;
+		}
+		Idle evicted = null;
+		synchronized (idle) {
+			idle.addLast(new Idle(ctx, principal, credentials));
+			if (idle.size() > size)
+				evicted = idle.pollFirst();
+		}
+		if (evicted != null)
+			close(evicted.ctx);
+	}
+
+	private static void close(LdapContext ctx) {
+		try {
+			ctx.close();
+		} catch (NamingException e) {
+			logger.log(Level.WARNING, "Failed to close LDAP context.", e);
+		}
+	}
+
+	private void recordBind(long nanos) {
+		binds.incrementAndGet();
+		bindNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxBindNanos.get())) {
+			if (maxBindNanos.compareAndSet(max, nanos))
+				break;
+		}
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/** @return contexts currently in use. */
+	public int getActive() {
+		return size - permits.availablePermits();
+	}
+
+	/** @return service account contexts kept for reuse. */
+	public int getIdle() {
+		synchronized (idle) {
+			return idle.size();
+		}
+	}
+
+	/** @return how many calls ran on a kept service account context. */
+	public long getReuseCount() {
+		return reused.get();
+	}
+
+	/** @return callers currently waiting for a free slot. */
+	public int getWaiting() {
+		return permits.getQueueLength();
+	}
+
+	public long getBindCount() {
+		return binds.get();
+	}
+
+	public long getBindFailureCount() {
+		return bindFailures.get();
+	}
+
+	/** @return how many callers gave up waiting for a free slot. */
+	public long getExhaustedCount() {
+		return exhausted.get();
+	}
+
+	public long getAverageBindMillis() {
+		long count = binds.get();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(bindNanos.get() / count);
+	}
+
+	public long getMaxBindMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxBindNanos.get());
+	}
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.security;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.task.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Counts failed logins per account and per client address and backs off
+ * exponentially once either goes over its limit, so a client retrying a bad
+ * password is turned away before it reaches the database or AD. Failures are
+ * counted until an account or address has gone a whole window without one.
+ * <p>
+ * Only failures are tracked: a client that has never failed is looked up in
+ * a concurrent map and finds nothing, and the counters themselves are atomics.
+ */
+public class LoginThrottle {
+
+	static Logger logger = LoggerFactory.getLogger(LoginThrottle.class);
+
+	private static final String LOGIN_THROTTLE_ENABLED = "LOGIN_THROTTLE";
+	private static final String LOGIN_THROTTLE_ACCOUNT_FAILURES = "LOGIN_THROTTLE_ACCOUNT_FAILURES";
+	private static final String LOGIN_THROTTLE_ADDRESS_FAILURES = "LOGIN_THROTTLE_ADDRESS_FAILURES";
+	private static final String LOGIN_THROTTLE_WINDOW_SECONDS = "LOGIN_THROTTLE_WINDOW_SECONDS";
+	private static final String LOGIN_THROTTLE_MAX_BACKOFF_SECONDS = "LOGIN_THROTTLE_MAX_BACKOFF_SECONDS";
+	private static final String LOGIN_THROTTLE_TRUST_FORWARDED_FOR = "LOGIN_THROTTLE_TRUST_FORWARDED_FOR";
+	private static final long defaultAccountFailures = 5;
+	private static final long defaultAddressFailures = 50;
+	private static final long defaultWindowSeconds = 300;
+	private static final long defaultMaxBackoffSeconds = 900;
+	private static final long maxTracked = 100000;
+	private static final long firstBackoffMillis = 1000;
+
+	private static LoginThrottle INSTANCE = null;
+
+	private static final class Failures {
+		final AtomicInteger count = new AtomicInteger();
+		volatile long lastFailure;
+		volatile long blockedUntil;
+	}
+
+	private final ConcurrentMap<String, Failures> failures;
+	private final int accountLimit;
+	private final int addressLimit;
+	private final long windowMillis;
+	private final long maxBackoffMillis;
+	private final boolean trustForwardedFor;
+	private final AtomicLong rejected = new AtomicLong();
+
+	LoginThrottle(int accountLimit, int addressLimit, long windowSeconds, long maxBackoffSeconds,
+			boolean trustForwardedFor) {
+		this.accountLimit = accountLimit;
+		this.addressLimit = addressLimit;
+		this.windowMillis = TimeUnit.SECONDS.toMillis(windowSeconds);
+		this.maxBackoffMillis = TimeUnit.SECONDS.toMillis(maxBackoffSeconds);
+		this.trustForwardedFor = trustForwardedFor;
+		this.failures = CacheBuilder.newBuilder()
+				.maximumSize(maxTracked)
+				.expireAfterAccess(Math.max(windowSeconds, maxBackoffSeconds), TimeUnit.SECONDS)
+				.<String, Failures> build().asMap();
+	}
+
+	/**
+	 * Turns throttling on unless LOGIN_THROTTLE is set to false in the server
+	 * configuration.
+	 */
+	public static synchronized void startUp(Configuration config) {
+		String enabled = config.getProperty(LOGIN_THROTTLE_ENABLED);
+		if (enabled != null && !Boolean.parseBoolean(enabled)) {
+			logger.info("Login throttling is turned off.");
+			return;
+		}
+
+		long accountLimit = ConfigProperties.getLong(config, LOGIN_THROTTLE_ACCOUNT_FAILURES, defaultAccountFailures);
+		long addressLimit = ConfigProperties.getLong(config, LOGIN_THROTTLE_ADDRESS_FAILURES, defaultAddressFailures);
+		long window = ConfigProperties.getLong(config, LOGIN_THROTTLE_WINDOW_SECONDS, defaultWindowSeconds);
+		long maxBackoff = ConfigProperties.getLong(config, LOGIN_THROTTLE_MAX_BACKOFF_SECONDS, defaultMaxBackoffSeconds);
+		String trust = config.getProperty(LOGIN_THROTTLE_TRUST_FORWARDED_FOR);
+
+		startUp(new LoginThrottle((int) accountLimit, (int) addressLimit, window, maxBackoff,
+				trust != null && Boolean.parseBoolean(trust)));
+		logger.info("Login throttling allows " + accountLimit + " failures per account and " + addressLimit
+				+ " per address within " + window + "s, backing off up to " + maxBackoff + "s.");
+	}
+
+	static synchronized void startUp(LoginThrottle throttle) {
+		INSTANCE = throttle;
+	}
+
+	public static synchronized void shutdown() {
+		INSTANCE = null;
+	}
+
+	/**
+	 * @return the client address to count failures against. X-Forwarded-For is
+	 *         only used when LOGIN_THROTTLE_TRUST_FORWARDED_FOR is set, since
+	 *         clients can put anything in it.
+	 */
+	public static String getClientAddress(String remoteAddress, String forwardedFor) {
+		LoginThrottle throttle = INSTANCE;
+		if (throttle != null && throttle.trustForwardedFor && forwardedFor != null) {
+			int idx = forwardedFor.indexOf(',');
+			String first = (idx == -1 ? forwardedFor : forwardedFor.substring(0, idx)).trim();
+			if (first.length() > 0)
+				return first;
+		}
+		return remoteAddress;
+	}
+
+	/**
+	 * Called before a login is checked; a refusal is counted in the stats.
+	 * 
+	 * @return how many seconds the client has to wait before trying to log in
+	 *         as the account again, or 0 if it may try now.
+	 */
+	public static long check(String accountName, String address) {
+		LoginThrottle throttle = INSTANCE;
+		if (throttle == null)
+			return 0;
+
+		long now = System.currentTimeMillis();
+		long until = Math.max(throttle.blockedUntil(accountKey(accountName)), throttle.blockedUntil(addressKey(address)));
+		if (until <= now)
+			return 0;
+		throttle.rejected.incrementAndGet();
+		return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(until - now + 999));
+	}
+
+	public static void loginFailed(String accountName, String address) {
+		LoginThrottle throttle = INSTANCE;
+		if (throttle == null)
+			return;
+		if (accountName != null)
+			throttle.record(accountKey(accountName), throttle.accountLimit);
+		if (address != null)
+			throttle.record(addressKey(address), throttle.addressLimit);
+	}
+
+	/**
+	 * Forgets the account's failures. The address keeps its count, so one good
+	 * password doesn't clear a client that is guessing at other accounts.
+	 */
+	public static void loginSucceeded(String accountName) {
+		LoginThrottle throttle = INSTANCE;
+		if (throttle != null && accountName != null)
+			throttle.failures.remove(accountKey(accountName));
+	}
+
+	/**
+	 * @return how many logins were turned away, or -1 if throttling is turned off.
+	 */
+	public static long getRejectedCount() {
+		LoginThrottle throttle = INSTANCE;
+		return throttle == null ? -1 : throttle.rejected.get();
+	}
+
+	/**
+	 * @return how many accounts and addresses currently have failures on record.
+	 */
+	public static long getTrackedCount() {
+		LoginThrottle throttle = INSTANCE;
+		return throttle == null ? 0 : throttle.failures.size();
+	}
+
+	private long blockedUntil(String key) {
+		if (key == null)
+			return 0;
+		Failures f = failures.get(key);
+		return f == null ? 0 : f.blockedUntil;
+	}
+
+	private void record(String key, int limit) {
+		Failures f = failures.get(key);
+		if (f == null) {
+			Failures created = new Failures();
+			f = failures.putIfAbsent(key, created);
+			if (f == null)
+				f = created;
+		}
+
+		long now = System.currentTimeMillis();
+		if (now - f.lastFailure > windowMillis)
+			f.count.set(0);
+		f.lastFailure = now;
+
+		int count = f.count.incrementAndGet();
+		if (count >= limit) {
+			int doublings = Math.min(count - limit, 30);
+			long backoff = Math.min(maxBackoffMillis, firstBackoffMillis << doublings);
+			f.blockedUntil = now + backoff;
+			if (count == limit)
+				logger.warn("Too many failed logins for " + key + ", backing off.");
+		}
+	}
+
+	private static String accountKey(String accountName) {
+		return accountName == null ? null : "account:" + accountName.toLowerCase();
+	}
+
+	private static String addressKey(String address) {
+		return address == null ? null : "address:" + address;
+	}
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.security;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.ndexbio.model.exceptions.UnauthorizedOperationException;
+import org.ndexbio.model.object.User;
+import org.ndexbio.rest.helpers.ConfigProperties;
+import org.ndexbio.task.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Issues and verifies signed session tokens. A token is the base64url encoded
+ * claims (issue time, expiry, the authenticated user and the user's token
+ * generation) followed by '.' and an HMAC-SHA256 of the claims, so it can be
+ * checked without a trip to the database or AD.
+ * <p>
+ * Every user has a token generation, which {@link #bumpGeneration(UUID)}
+ * raises when the account is updated, its password changes or it is deleted.
+ * A token is only accepted while its generation is the current one, so it
+ * never carries a stale copy of the user.
+ * <p>
+ * The signing key comes from AUTH_TOKEN_SECRET. If it isn't set a random key
+ * is used, and tokens stop working when the server restarts. Generations are
+ * only kept in memory on the server that bumped them.
+ */
+public class SessionTokens {
+
+	static Logger logger = LoggerFactory.getLogger(SessionTokens.class);
+
+	public static final String TOKEN_HEADER = "NDEx-Auth-Token";
+	public static final String BEARER_PREFIX = "Bearer ";
+
+	private static final String AUTH_TOKEN_ENABLED = "AUTH_TOKEN";
+	private static final String AUTH_TOKEN_SECRET = "AUTH_TOKEN_SECRET";
+	private static final String AUTH_TOKEN_TTL_SECONDS = "AUTH_TOKEN_TTL_SECONDS";
+	private static final long defaultTTLSeconds = 3600;
+	private static final String signatureAlgorithm = "HmacSHA256";
+	private static final BaseEncoding encoding = BaseEncoding.base64Url().omitPadding();
+
+	private static SessionTokens INSTANCE = null;
+
+	private final SecretKeySpec key;
+	private final long ttlMillis;
+	private final ObjectMapper mapper = new ObjectMapper();
+	// user id -> current token generation. Issuing and verifying both touch
+	// the entry, so it outlives every token that carries it.
+	private final Cache<UUID, AtomicLong> generations;
+
+	private SessionTokens(byte[] secret, long ttlSeconds) {
+		key = new SecretKeySpec(secret, signatureAlgorithm);
+		ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+		generations = CacheBuilder.newBuilder()
+				.expireAfterAccess(ttlSeconds, TimeUnit.SECONDS)
+				.build();
+	}
+
+	/**
+	 * Turns session tokens on unless AUTH_TOKEN is set to false in the server
+	 * configuration.
+	 */
+	public static synchronized void startUp(Configuration config) {
+		String enabled = config.getProperty(AUTH_TOKEN_ENABLED);
+		if (enabled != null && !Boolean.parseBoolean(enabled)) {
+			logger.info("Session tokens are turned off.");
+			return;
+		}
+
+		byte[] secret;
+		String value = config.getProperty(AUTH_TOKEN_SECRET);
+		if (value != null && value.trim().length() > 0) {
+			secret = value.trim().getBytes(StandardCharsets.UTF_8);
+		} else {
+			logger.warn(AUTH_TOKEN_SECRET + " is not set. Session tokens will not survive a server restart.");
+			secret = new byte[32];
+			new SecureRandom().nextBytes(secret);
+		}
+
+		long ttl = ConfigProperties.getLong(config, AUTH_TOKEN_TTL_SECONDS, defaultTTLSeconds);
+
+		INSTANCE = new SessionTokens(secret, ttl);
+		logger.info("Session tokens turned on with ttl " + ttl + "s.");
+	}
+
+	public static synchronized void shutdown() {
+		INSTANCE = null;
+	}
+
+	public static boolean isEnabled() {
+		return INSTANCE != null;
+	}
+
+	/**
+	 * @return a new token for the user, or null if session tokens are turned off.
+	 */
+	public static String issue(User user) {
+		SessionTokens tokens = INSTANCE;
+		if (tokens == null)
+			return null;
+
+		long now = System.currentTimeMillis();
+		ObjectNode claims = tokens.mapper.createObjectNode();
+		claims.put("iat", now);
+		claims.put("exp", now + tokens.ttlMillis);
+		claims.put("gen", tokens.generationOf(user.getExternalId()).get());
+		claims.set("user", tokens.mapper.valueToTree(user));
+
+		try {
+			String payload = encoding.encode(tokens.mapper.writeValueAsBytes(claims));
+			return payload + "." + encoding.encode(tokens.sign(payload));
+		} catch (IOException e) {
+			logger.error("Failed to create session token for " + user.getAccountName(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the number of seconds a newly issued token is valid for.
+	 */
+	public static long getTTLSeconds() {
+		SessionTokens tokens = INSTANCE;
+		return tokens == null ? 0 : TimeUnit.MILLISECONDS.toSeconds(tokens.ttlMillis);
+	}
+
+	/**
+	 * Checks the signature, expiry and generation of a token.
+	 * 
+	 * @return the user the token was issued to.
+	 * @throws UnauthorizedOperationException
+	 *             the token is malformed, expired, from an older generation,
+	 *             or session tokens are turned off.
+	 */
+	public static User verify(String token) throws UnauthorizedOperationException {
+		SessionTokens tokens = INSTANCE;
+		if (tokens == null)
+			throw new UnauthorizedOperationException("Session tokens are not supported by this server.");
+
+		int idx = token.indexOf('.');
+		if (idx <= 0)
+			throw new UnauthorizedOperationException("Malformed session token.");
+
+		String payload = token.substring(0, idx);
+		if (!MessageDigest.isEqual(tokens.sign(payload), decode(token.substring(idx + 1))))
+			throw new UnauthorizedOperationException("Invalid session token.");
+
+		JsonNode claims;
+		User user;
+		try {
+			claims = tokens.mapper.readTree(decode(payload));
+			if (claims == null || !claims.isObject() || !claims.path("user").isObject())
+				throw new UnauthorizedOperationException("Malformed session token.");
+			user = tokens.mapper.treeToValue(claims.get("user"), User.class);
+		} catch (IOException e) {
+			throw new UnauthorizedOperationException("Malformed session token.");
+		}
+		if (!claims.path("exp").isIntegralNumber() || !claims.path("gen").isIntegralNumber()
+				|| user.getExternalId() == null || user.getAccountName() == null)
+			throw new UnauthorizedOperationException("Malformed session token.");
+
+		if (claims.get("exp").asLong() < System.currentTimeMillis())
+			throw new UnauthorizedOperationException("Session token expired.");
+		if (claims.get("gen").asLong() != tokens.generationOf(user.getExternalId()).get())
+			throw new UnauthorizedOperationException("Session token revoked.");
+		return user;
+	}
+
+	/**
+	 * Rejects every token issued to the user so far. Called after the account
+	 * is updated, its password is changed or reset, and when it is deleted.
+	 */
+	public static void bumpGeneration(UUID userId) {
+		SessionTokens tokens = INSTANCE;
+		if (tokens != null && userId != null)
+			tokens.generationOf(userId).incrementAndGet();
+	}
+
+	private AtomicLong generationOf(UUID userId) {
+		try {
+			return generations.get(userId, new Callable<AtomicLong>() {
+				@Override
+				public AtomicLong call() {
+					return new AtomicLong();
+				}
+			});
+		} catch (ExecutionException e) {
+			// the loader can't fail.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the decoded bytes, or an empty array if the text isn't base64url.
+	 */
+	private static byte[] decode(String text) {
+		try {
+			return encoding.decode(text);
+		} catch (IllegalArgumentException e) {
+			return new byte[0];
+		}
+	}
+
+	private byte[] sign(String payload) {
+		try {
+			Mac mac = Mac.getInstance(signatureAlgorithm);
+			mac.init(key);
+			return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			// HmacSHA256 is required on every Java platform.
+			throw new IllegalStateException(e);
+		}
+	}
+}
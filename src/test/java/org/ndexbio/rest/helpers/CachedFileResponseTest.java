@@ -0,0 +1,222 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.List;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Variant;
+
+import org.junit.Test;
+import org.ndexbio.model.exceptions.ObjectNotFoundException;
+
+public class CachedFileResponseTest {
+
+	@Test
+	public void closedRange() {
+		assertArrayEquals(new long[] {0, 99}, CachedFileResponse.parseRange("bytes=0-99", 1000));
+		assertArrayEquals(new long[] {500, 999}, CachedFileResponse.parseRange("bytes=500-5000", 1000));
+	}
+
+	@Test
+	public void openRange() {
+		assertArrayEquals(new long[] {900, 999}, CachedFileResponse.parseRange("bytes=900-", 1000));
+	}
+
+	@Test
+	public void suffixRange() {
+		assertArrayEquals(new long[] {800, 999}, CachedFileResponse.parseRange("bytes=-200", 1000));
+		assertArrayEquals(new long[] {0, 999}, CachedFileResponse.parseRange("bytes=-5000", 1000));
+	}
+
+	@Test
+	public void unsatisfiableRange() {
+		assertEquals(0, CachedFileResponse.parseRange("bytes=1000-", 1000).length);
+		assertEquals(0, CachedFileResponse.parseRange("bytes=-0", 1000).length);
+	}
+
+	@Test
+	public void ignoredRange() {
+		assertNull(CachedFileResponse.parseRange("items=0-10", 1000));
+		assertNull(CachedFileResponse.parseRange("bytes=0-10,20-30", 1000));
+		assertNull(CachedFileResponse.parseRange("bytes=10-5", 1000));
+		assertNull(CachedFileResponse.parseRange("bytes=abc-", 1000));
+	}
+
+	private static final EntityTag etag = new EntityTag("net-1");
+
+	private static File tenBytes() throws IOException {
+		File file = File.createTempFile("cached", ".json");
+		file.deleteOnExit();
+		try (OutputStream out = new FileOutputStream(file)) {
+			for (int i = 0; i < 10; i++)
+				out.write(i);
+		}
+		return file;
+	}
+
+	private static byte[] body(Response response) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		((StreamingOutput) response.getEntity()).write(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Answers If-None-Match the way the container does for a GET.
+	 */
+	private static Request request(final String ifNoneMatch) {
+		return new Request() {
+			@Override
+			public String getMethod() {
+				return "GET";
+			}
+
+			@Override
+			public Variant selectVariant(List<Variant> variants) {
+				return null;
+			}
+
+			@Override
+			public ResponseBuilder evaluatePreconditions(EntityTag tag) {
+				return tag.toString().equals(ifNoneMatch) ? Response.notModified() : null;
+			}
+
+			@Override
+			public ResponseBuilder evaluatePreconditions(Date lastModified) {
+				return null;
+			}
+
+			@Override
+			public ResponseBuilder evaluatePreconditions(Date lastModified, EntityTag tag) {
+				return evaluatePreconditions(tag);
+			}
+
+			@Override
+			public ResponseBuilder evaluatePreconditions() {
+				return null;
+			}
+		};
+	}
+
+	@Test
+	public void wholeFile() throws Exception {
+		Response response = CachedFileResponse.build(tenBytes(), MediaType.APPLICATION_JSON_TYPE, etag,
+				request(null), null, null);
+		assertEquals(200, response.getStatus());
+		assertEquals(etag, response.getEntityTag());
+		assertEquals("bytes", response.getHeaderString("Accept-Ranges"));
+		assertEquals("10", response.getHeaderString("Content-Length"));
+		assertArrayEquals(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, body(response));
+	}
+
+	@Test
+	public void notModified() throws Exception {
+		Response response = CachedFileResponse.build(tenBytes(), MediaType.APPLICATION_JSON_TYPE, etag,
+				request(etag.toString()), "bytes=0-3", null);
+		assertEquals(304, response.getStatus());
+		assertEquals(etag, response.getEntityTag());
+		assertNull(response.getEntity());
+	}
+
+	@Test
+	public void partialContent() throws Exception {
+		Response response = CachedFileResponse.build(tenBytes(), MediaType.APPLICATION_JSON_TYPE, etag,
+				request(null), "bytes=2-5", null);
+		assertEquals(206, response.getStatus());
+		assertEquals("bytes 2-5/10", response.getHeaderString("Content-Range"));
+		assertEquals("4", response.getHeaderString("Content-Length"));
+		assertArrayEquals(new byte[] {2, 3, 4, 5}, body(response));
+	}
+
+	@Test
+	public void suffixContent() throws Exception {
+		Response response = CachedFileResponse.build(tenBytes(), MediaType.APPLICATION_JSON_TYPE, etag,
+				request(null), "bytes=-3", null);
+		assertEquals(206, response.getStatus());
+		assertEquals("bytes 7-9/10", response.getHeaderString("Content-Range"));
+		assertArrayEquals(new byte[] {7, 8, 9}, body(response));
+	}
+
+	@Test
+	public void rangeNotSatisfiable() throws Exception {
+		Response response = CachedFileResponse.build(tenBytes(), MediaType.APPLICATION_JSON_TYPE, etag,
+				request(null), "bytes=10-", null);
+		assertEquals(416, response.getStatus());
+		assertEquals("bytes */10", response.getHeaderString("Content-Range"));
+		assertNull(response.getEntity());
+	}
+
+	@Test
+	public void ifRangeMatchesETag() throws Exception {
+		Response response = CachedFileResponse.build(tenBytes(), MediaType.APPLICATION_JSON_TYPE, etag,
+				request(null), "bytes=8-", etag.toString());
+		assertEquals(206, response.getStatus());
+		assertArrayEquals(new byte[] {8, 9}, body(response));
+	}
+
+	@Test
+	public void staleIfRangeReturnsWholeFile() throws Exception {
+		Response response = CachedFileResponse.build(tenBytes(), MediaType.APPLICATION_JSON_TYPE, etag,
+				request(null), "bytes=8-", new EntityTag("net-0").toString());
+		assertEquals(200, response.getStatus());
+		assertNull(response.getHeaderString("Content-Range"));
+		assertEquals(10, body(response).length);
+	}
+
+	@Test
+	public void fileDeletedAfterTheResponseIsBuilt() throws Exception {
+		File file = tenBytes();
+		Response response = CachedFileResponse.build(file, MediaType.APPLICATION_JSON_TYPE, etag,
+				request(null), null, null);
+		assertTrue(file.delete());
+		assertArrayEquals(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, body(response));
+	}
+
+	@Test(expected = ObjectNotFoundException.class)
+	public void missingFile() throws Exception {
+		File file = tenBytes();
+		file.delete();
+		CachedFileResponse.build(file, MediaType.APPLICATION_JSON_TYPE, etag, request(null), null, null);
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.ndexbio.model.exceptions.NdexException;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.id.ORecordId;
+
+public class ElementBlockQueryTest {
+
+	private static List<OIdentifiable> links(int count) {
+		List<OIdentifiable> links = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+			links.add(new ORecordId(12, i));
+		return links;
+	}
+
+	@Test
+	public void firstBlock() {
+		List<ORID> rids = ElementBlockQuery.page(links(10).iterator(), 0, 4);
+		assertEquals(4, rids.size());
+		assertEquals(new ORecordId(12, 0), rids.get(0));
+		assertEquals(new ORecordId(12, 3), rids.get(3));
+	}
+
+	@Test
+	public void lastBlockIsShort() {
+		List<ORID> rids = ElementBlockQuery.page(links(10).iterator(), 8, 4);
+		assertEquals(2, rids.size());
+		assertEquals(new ORecordId(12, 8), rids.get(0));
+		assertEquals(new ORecordId(12, 9), rids.get(1));
+	}
+
+	@Test
+	public void pastTheEndIsEmpty() {
+		assertTrue(ElementBlockQuery.page(links(10).iterator(), 10, 4).isEmpty());
+		assertTrue(ElementBlockQuery.page(links(10).iterator(), 25, 4).isEmpty());
+		assertTrue(ElementBlockQuery.page(links(0).iterator(), 0, 4).isEmpty());
+	}
+
+	@Test
+	public void rangeOfLinks() {
+		List<OIdentifiable> links = links(10);
+		Collections.reverse(links);
+		ORID[] range = ElementBlockQuery.range(links.iterator());
+		assertEquals(new ORecordId(12, 0), range[0]);
+		assertEquals(new ORecordId(12, 9), range[1]);
+		assertNull(ElementBlockQuery.range(links(0).iterator()));
+	}
+
+	/**
+	 * Does what the range query does on the element cluster: the elements after
+	 * the cursor, up to its max, in record id order.
+	 */
+	private static List<ORID> seek(List<OIdentifiable> links, ORID after, boolean inclusive,
+			ORID max, int blockSize) {
+		List<ORID> sorted = new ArrayList<>();
+		for (OIdentifiable link : links)
+			sorted.add(link.getIdentity());
+		Collections.sort(sorted);
+		List<ORID> block = new ArrayList<>();
+		for (ORID rid : sorted) {
+			int c = rid.compareTo(after);
+			if ((c > 0 || (inclusive && c == 0)) && rid.compareTo(max) <= 0 && block.size() < blockSize)
+				block.add(rid);
+		}
+		return block;
+	}
+
+	private static List<ORID> readAll(List<OIdentifiable> links, int blockSize, List<ORID> removeAfterFirst)
+			throws NdexException {
+		List<ORID> seen = new ArrayList<>();
+		ORID[] range = ElementBlockQuery.range(links.iterator());
+		List<ORID> rids = seek(links, range[0], true, range[1], blockSize);
+		String cursor = ElementBlockQuery.nextCursor(rids, blockSize, range[1]);
+		seen.addAll(rids);
+		links.removeAll(removeAfterFirst);
+		while (cursor != null) {
+			ElementCursor position = ElementCursor.decode(cursor);
+			rids = seek(links, position.getLast(), false, position.getMax(), blockSize);
+			seen.addAll(rids);
+			cursor = ElementBlockQuery.nextCursor(rids, blockSize, position.getMax());
+		}
+		return seen;
+	}
+
+	@Test
+	public void cursorsVisitEveryLinkOnce() throws NdexException {
+		List<OIdentifiable> links = links(23);
+		Collections.shuffle(links, new Random(7));
+		List<ORID> seen = readAll(links, 5, new ArrayList<ORID>());
+		assertEquals(23, seen.size());
+		for (int i = 0; i < 23; i++)
+			assertEquals(new ORecordId(12, i), seen.get(i));
+	}
+
+	@Test
+	public void fullLastBlockEndsThePaging() throws NdexException {
+		assertEquals(20, readAll(links(20), 5, new ArrayList<ORID>()).size());
+		assertNull(ElementBlockQuery.nextCursor(
+				Arrays.<ORID>asList(new ORecordId(12, 3), new ORecordId(12, 4)), 2, new ORecordId(12, 4)));
+	}
+
+	@Test
+	public void removedLinksDoNotShiftLaterBlocks() throws NdexException {
+		List<ORID> removed = Arrays.<ORID>asList(new ORecordId(12, 1), new ORecordId(12, 7));
+		List<ORID> seen = readAll(links(12), 5, removed);
+		assertEquals(11, seen.size());
+		assertEquals(new ORecordId(12, 1), seen.get(1));
+		assertFalse(seen.contains(new ORecordId(12, 7)));
+		assertEquals(new ORecordId(12, 11), seen.get(10));
+	}
+
+	@Test
+	public void newerElementsAreNotPaged() throws NdexException {
+		List<OIdentifiable> links = links(8);
+		ORID[] range = ElementBlockQuery.range(links.iterator());
+		links.add(new ORecordId(12, 100));
+		assertTrue(seek(links, new ORecordId(12, 7), false, range[1], 5).isEmpty());
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.ndexbio.model.exceptions.NdexException;
+
+import com.orientechnologies.orient.core.id.ORecordId;
+
+public class ElementCursorTest {
+
+	@Test
+	public void roundTrip() throws NdexException {
+		ElementCursor cursor = ElementCursor.decode(
+				new ElementCursor(new ORecordId(12, 123456789L), new ORecordId(40, Long.MAX_VALUE)).encode());
+		assertEquals(new ORecordId(12, 123456789L), cursor.getLast());
+		assertEquals(new ORecordId(40, Long.MAX_VALUE), cursor.getMax());
+	}
+
+	@Test
+	public void startReadsFromTheBeginning() throws NdexException {
+		assertNull(ElementCursor.decode(ElementCursor.START));
+		assertNull(ElementCursor.decode(null));
+	}
+
+	@Test(expected = NdexException.class)
+	public void rejectsNegativePosition() throws NdexException {
+		ElementCursor.decode(new ElementCursor(new ORecordId(12, -5), new ORecordId(12, 9)).encode());
+	}
+
+	@Test(expected = NdexException.class)
+	public void rejectsForeignToken() throws NdexException {
+		ElementCursor.decode("12345");
+	}
+
+	@Test(expected = NdexException.class)
+	public void rejectsMalformedToken() throws NdexException {
+		ElementCursor.decode("e!!");
+	}
+
+	@Test(expected = NdexException.class)
+	public void rejectsOffsetToken() throws NdexException {
+		ElementCursor.decode("e3k");
+	}
+}
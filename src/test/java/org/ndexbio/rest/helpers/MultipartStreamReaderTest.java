@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.helpers;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class MultipartStreamReaderTest {
+
+	private static final String contentType = "multipart/form-data; boundary=----XyZ123";
+
+	@Test
+	public void readsFieldsAndFile() throws IOException {
+		byte[] file = new byte[300 * 1024];
+		new Random(1).nextBytes(file);
+		byte[] body = body(file, "a.sif");
+
+		MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(body), contentType);
+		assertTrue(reader.nextPart());
+		assertEquals("filename", reader.getFieldName());
+		assertEquals("a.sif", reader.getPartAsString(100));
+
+		assertTrue(reader.nextPart());
+		assertEquals("fileUpload", reader.getFieldName());
+		assertEquals("C:\\tmp\\a.sif", reader.getFileName());
+		assertArrayEquals(file, readAll(reader.getPartStream()));
+
+		assertFalse(reader.nextPart());
+	}
+
+	@Test
+	public void readsBodyArrivingInSmallPieces() throws IOException {
+		// boundary-like bytes in the file must not end the part
+		byte[] file = "line 1\r\n------XyZ12\r\n--not the boundary\r\n".getBytes(StandardCharsets.UTF_8);
+		InputStream trickle = new FilterInputStream(new ByteArrayInputStream(body(file, "b.xbel"))) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 3));
+			}
+		};
+
+		MultipartStreamReader reader = new MultipartStreamReader(trickle, contentType);
+		assertTrue(reader.nextPart());
+		// leave the field unread; it is skipped
+		assertTrue(reader.nextPart());
+		assertArrayEquals(file, readAll(reader.getPartStream()));
+		assertFalse(reader.nextPart());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsTruncatedBody() throws IOException {
+		byte[] body = body(new byte[1000], "c.sif");
+		byte[] truncated = new byte[body.length - 30];
+		System.arraycopy(body, 0, truncated, 0, truncated.length);
+
+		MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(truncated), contentType);
+		while (reader.nextPart())
+			readAll(reader.getPartStream());
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsMissingBoundary() throws IOException {
+		new MultipartStreamReader(new ByteArrayInputStream(new byte[0]), "multipart/form-data");
+	}
+
+	@Test
+	public void parsesQuotedParameters() {
+		assertEquals("x y", MultipartStreamReader.getParameter("form-data; name=\"x y\"", "name"));
+		assertEquals("f.sif", MultipartStreamReader.getParameter("form-data; name=a; filename=\"f.sif\"", "filename"));
+		assertEquals("a", MultipartStreamReader.getParameter("form-data; filename=\"f.sif\"; name=a", "name"));
+		assertNull(MultipartStreamReader.getParameter("form-data; name=a", "filename"));
+	}
+
+	private static byte[] body(byte[] file, String filename) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(("preamble\r\n------XyZ123\r\n"
+				+ "Content-Disposition: form-data; name=\"filename\"\r\n\r\n"
+				+ filename + "\r\n------XyZ123\r\n"
+				+ "Content-Disposition: form-data; name=\"fileUpload\"; filename=\"C:\\tmp\\a.sif\"\r\n"
+				+ "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+		out.write(file);
+		out.write("\r\n------XyZ123--\r\n".getBytes(StandardCharsets.UTF_8));
+		return out.toByteArray();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[777];
+		int n;
+		while ((n = in.read(b)) != -1)
+			out.write(b, 0, n);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.task;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Application;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.jboss.resteasy.plugins.server.servlet.HttpServlet30Dispatcher;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.ndexbio.model.object.Status;
+import org.ndexbio.model.object.Task;
+
+import com.google.common.io.ByteStreams;
+
+/*
+ * Watches tasks through a real servlet container, so the requests are
+ * actually suspended and later resumed from another thread.
+ */
+public class TaskProgressHubTest {
+
+	private static final Pattern versionPattern = Pattern.compile("\"version\":(\\d+)");
+
+	private static Server server;
+	private static String base;
+
+	@Path("/watch")
+	public static class WatchResource {
+		@GET
+		@Path("/{taskId}")
+		@Produces("application/json")
+		public void watch(@PathParam("taskId") String taskId, @QueryParam("since") @DefaultValue("0") long since,
+				@QueryParam("wait") @DefaultValue("30") int wait, @Suspended AsyncResponse response) {
+			if (!TaskProgressHub.watch(UUID.fromString(taskId), since, wait, response))
+				response.resume(Response.status(Response.Status.NOT_FOUND).build());
+		}
+	}
+
+	public static class WatchApplication extends Application {
+		@Override
+		public Set<Class<?>> getClasses() {
+			return Collections.<Class<?>> singleton(WatchResource.class);
+		}
+	}
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		TaskProgressHub.startUp(60, 100);
+
+		ServletHolder holder = new ServletHolder(new HttpServlet30Dispatcher());
+		holder.setInitParameter("javax.ws.rs.Application", WatchApplication.class.getName());
+		holder.setAsyncSupported(true);
+		ServletContextHandler context = new ServletContextHandler();
+		context.addServlet(holder, "/*");
+
+		server = new Server(0);
+		server.setHandler(context);
+		server.start();
+		base = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort() + "/watch/";
+	}
+
+	@AfterClass
+	public static void stopServer() throws Exception {
+		server.stop();
+		TaskProgressHub.shutdown();
+	}
+
+	private static Task newTask() {
+		Task task = new Task();
+		task.setExternalId(UUID.randomUUID());
+		task.setTaskOwnerId(UUID.randomUUID());
+		TaskProgressHub.publish(task, Status.QUEUED, 0, null);
+		return task;
+	}
+
+	private static HttpURLConnection open(String path) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(base + path).openConnection();
+		conn.setReadTimeout(20000);
+		return conn;
+	}
+
+	private static String get(String path) throws IOException {
+		try (InputStream in = open(path).getInputStream()) {
+			return new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static long version(String body) {
+		Matcher matcher = versionPattern.matcher(body);
+		assertTrue(body, matcher.find());
+		return Long.parseLong(matcher.group(1));
+	}
+
+	private static void awaitWatchers(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (TaskProgressHub.getWatcherCount() != count) {
+			assertTrue("expected " + count + " watchers", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void answersAtOnceWhenThereIsNews() throws IOException {
+		Task task = newTask();
+		String body = get(task.getExternalId() + "?since=0");
+		assertTrue(body, body.contains("\"status\":\"QUEUED\""));
+	}
+
+	@Test
+	public void suspendsUntilTheTaskChanges() throws Exception {
+		final Task task = newTask();
+		final long since = version(get(task.getExternalId() + "?since=0"));
+
+		ExecutorService client = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> watching = client.submit(new Callable<String>() {
+				@Override
+				public String call() throws IOException {
+					return get(task.getExternalId() + "?since=" + since);
+				}
+			});
+			awaitWatchers(1);
+			Thread.sleep(200);
+			assertFalse(watching.isDone());
+
+			// the scheduler publishes while holding its own lock
+			Object schedulerLock = new Object();
+			synchronized (schedulerLock) {
+				TaskProgressHub.publish(task, Status.PROCESSING, 50, null);
+			}
+
+			String body = watching.get(10, TimeUnit.SECONDS);
+			assertTrue(body, body.contains("\"progress\":50"));
+			assertTrue(version(body) > since);
+			assertEquals(0, TaskProgressHub.getWatcherCount());
+		} finally {
+			client.shutdownNow();
+		}
+	}
+
+	@Test
+	public void answersWithTheSameStateOnTimeout() throws IOException {
+		Task task = newTask();
+		long since = version(get(task.getExternalId() + "?since=0"));
+
+		long start = System.currentTimeMillis();
+		String body = get(task.getExternalId() + "?since=" + since + "&wait=1");
+		assertTrue(System.currentTimeMillis() - start >= 900);
+		assertEquals(since, version(body));
+		assertEquals(0, TaskProgressHub.getWatcherCount());
+	}
+
+	@Test
+	public void zeroWaitAnswersAtOnce() throws IOException {
+		Task task = newTask();
+		long since = version(get(task.getExternalId() + "?since=0"));
+
+		long start = System.currentTimeMillis();
+		String body = get(task.getExternalId() + "?since=" + since + "&wait=0");
+		assertTrue(System.currentTimeMillis() - start < 900);
+		assertEquals(since, version(body));
+		assertEquals(0, TaskProgressHub.getWatcherCount());
+	}
+
+	@Test
+	public void unknownTaskIsNotFound() throws IOException {
+		assertEquals(404, open(UUID.randomUUID().toString()).getResponseCode());
+	}
+}
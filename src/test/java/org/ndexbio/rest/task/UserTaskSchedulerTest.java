@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.rest.task;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.ndexbio.model.object.Priority;
+import org.ndexbio.model.object.Task;
+import org.ndexbio.model.object.TaskType;
+
+/*
+ * Drives the scheduler's lanes directly, without the feeder or any workers,
+ * by submitting tasks and taking them the way a worker would.
+ */
+public class UserTaskSchedulerTest {
+
+	private static final long agingSeconds = 300;
+
+	private final UUID alice = UUID.randomUUID();
+	private final UUID bob = UUID.randomUUID();
+
+	@Test
+	public void ownersTakeTurns() {
+		UserTaskScheduler scheduler = new UserTaskScheduler(0, 10, agingSeconds);
+		Task a1 = task(alice, Priority.MEDIUM, 0);
+		Task a2 = task(alice, Priority.MEDIUM, 0);
+		Task a3 = task(alice, Priority.MEDIUM, 0);
+		Task b1 = task(bob, Priority.MEDIUM, 0);
+		scheduler.submit(a1);
+		scheduler.submit(a2);
+		scheduler.submit(a3);
+		scheduler.submit(b1);
+
+		assertSame(a1, scheduler.next(false));
+		assertSame(b1, scheduler.next(false));
+		assertSame(a2, scheduler.next(false));
+		assertSame(a3, scheduler.next(false));
+		assertNull(scheduler.next(false));
+	}
+
+	@Test
+	public void higherPriorityGoesFirst() {
+		UserTaskScheduler scheduler = new UserTaskScheduler(0, 10, agingSeconds);
+		Task low = task(alice, Priority.LOW, 0);
+		Task high = task(bob, Priority.HIGH, 0);
+		scheduler.submit(low);
+		scheduler.submit(high);
+
+		assertSame(high, scheduler.next(false));
+		assertSame(low, scheduler.next(false));
+	}
+
+	@Test
+	public void waitingLowTaskAgesPastHigh() {
+		UserTaskScheduler scheduler = new UserTaskScheduler(0, 10, agingSeconds);
+		// LOW is two ranks below HIGH, so three aging periods put it ahead.
+		Task low = task(alice, Priority.LOW, 3 * agingSeconds);
+		Task high = task(bob, Priority.HIGH, 0);
+		scheduler.submit(high);
+		scheduler.submit(low);
+
+		assertSame(low, scheduler.next(false));
+		assertSame(high, scheduler.next(false));
+	}
+
+	@Test
+	public void ownerIsHeldAtRunningLimit() {
+		UserTaskScheduler scheduler = new UserTaskScheduler(0, 1, agingSeconds);
+		Task a1 = task(alice, Priority.MEDIUM, 0);
+		Task a2 = task(alice, Priority.MEDIUM, 0);
+		scheduler.submit(a1);
+		scheduler.submit(a2);
+
+		assertSame(a1, scheduler.next(false));
+		assertNull(scheduler.next(false));
+		scheduler.finished(alice.toString());
+		assertSame(a2, scheduler.next(false));
+	}
+
+	@Test
+	public void smallUploadsHaveTheirOwnLane() throws IOException {
+		UserTaskScheduler scheduler = new UserTaskScheduler(100, 10, agingSeconds);
+		Task big = upload(alice, 1000);
+		Task small = upload(bob, 10);
+		scheduler.submit(big);
+		scheduler.submit(small);
+
+		// a small worker skips the big upload queued ahead of the small one,
+		assertSame(small, scheduler.next(true));
+		assertNull(scheduler.next(true));
+		// and leaves it to the general workers.
+		assertSame(big, scheduler.next(false));
+	}
+
+	@Test
+	public void generalWorkersTakeSmallTasksWhenIdle() throws IOException {
+		UserTaskScheduler scheduler = new UserTaskScheduler(100, 10, agingSeconds);
+		Task small = upload(alice, 10);
+		scheduler.submit(small);
+
+		assertSame(small, scheduler.next(false));
+	}
+
+	private static Task task(UUID owner, Priority priority, long waitedSeconds) {
+		Task task = new Task();
+		task.setExternalId(UUID.randomUUID());
+		task.setTaskOwnerId(owner);
+		task.setTaskType(TaskType.EXPORT_NETWORK_TO_FILE);
+		task.setPriority(priority);
+		task.setCreationTime(new Timestamp(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(waitedSeconds)));
+		return task;
+	}
+
+	private static Task upload(UUID owner, int bytes) throws IOException {
+		File file = File.createTempFile("upload", ".sif");
+		file.deleteOnExit();
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(new byte[bytes]);
+		}
+		Task task = task(owner, Priority.LOW, 0);
+		task.setTaskType(TaskType.PROCESS_UPLOADED_NETWORK);
+		task.setResource(file.getAbsolutePath());
+		return task;
+	}
+}
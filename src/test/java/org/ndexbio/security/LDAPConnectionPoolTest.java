@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.security;
+
+import static org.junit.Assert.*;
+
+import java.util.Hashtable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.AuthenticationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+
+public class LDAPConnectionPoolTest {
+
+	private static final String base = "dc=example,dc=com";
+
+	private InMemoryDirectoryServer server;
+	private Hashtable<String, Object> env;
+
+	@Before
+	public void startServer() throws Exception {
+		InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(base);
+		server = new InMemoryDirectoryServer(config);
+		server.add("dn: " + base, "objectClass: top", "objectClass: domain", "dc: example");
+		server.add("dn: ou=people," + base, "objectClass: organizationalUnit", "ou: people");
+		for (String name : new String[] { "alice", "bob" }) {
+			server.add("dn: uid=" + name + ",ou=people," + base, "objectClass: inetOrgPerson", "uid: " + name,
+					"cn: " + name, "sn: " + name, "userPassword: " + name + "-secret");
+		}
+		server.startListening();
+
+		env = new Hashtable<>();
+		env.put(Context.SECURITY_AUTHENTICATION, "simple");
+		env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+		env.put(Context.PROVIDER_URL, "ldap://localhost:" + server.getListenPort());
+	}
+
+	@After
+	public void stopServer() {
+		server.shutDown(true);
+	}
+
+	private static String dn(String name) {
+		return "uid=" + name + ",ou=people," + base;
+	}
+
+	private static final LDAPConnectionPool.Operation<String> whoAmI = new LDAPConnectionPool.Operation<String>() {
+		@Override
+		public String run(LdapContext ctx) throws NamingException {
+			return (String) ctx.getEnvironment().get(Context.SECURITY_PRINCIPAL);
+		}
+	};
+
+	@Test
+	public void bindsAsEachCaller() throws NamingException {
+		LDAPConnectionPool pool = new LDAPConnectionPool(env, 2, 1000);
+		assertEquals(dn("alice"), pool.execute(dn("alice"), "alice-secret", whoAmI));
+		assertEquals(dn("bob"), pool.execute(dn("bob"), "bob-secret", whoAmI));
+		assertEquals(2, pool.getBindCount());
+		assertEquals(0, pool.getBindFailureCount());
+		assertEquals(0, pool.getActive());
+	}
+
+	private static final LDAPConnectionPool.Operation<Object> pooling = new LDAPConnectionPool.Operation<Object>() {
+		@Override
+		public Object run(LdapContext ctx) throws NamingException {
+			return ctx.getEnvironment().get("com.sun.jndi.ldap.connect.pool");
+		}
+	};
+
+	@Test
+	public void userBindsAreNotPooled() throws NamingException {
+		env.put("com.sun.jndi.ldap.connect.pool", "true");
+		LDAPConnectionPool pool = new LDAPConnectionPool(env, 2, 1000);
+		assertNull(pool.execute(dn("alice"), "alice-secret", pooling));
+	}
+
+	@Test
+	public void serviceBindsAreReused() throws NamingException {
+		LDAPConnectionPool pool = new LDAPConnectionPool(env, 2, 1000);
+		assertNull(pool.executeShared(dn("bob"), "bob-secret", pooling));
+		assertEquals(dn("bob"), pool.executeShared(dn("bob"), "bob-secret", whoAmI));
+		assertEquals(1, pool.getBindCount());
+		assertEquals(1, pool.getReuseCount());
+		assertEquals(1, pool.getIdle());
+		assertEquals(0, pool.getActive());
+	}
+
+	@Test
+	public void idleServiceBindsExpire() throws Exception {
+		LDAPConnectionPool pool = new LDAPConnectionPool(env, 2, 1000, 50);
+		pool.executeShared(dn("bob"), "bob-secret", whoAmI);
+		Thread.sleep(100);
+		assertEquals(dn("bob"), pool.executeShared(dn("bob"), "bob-secret", whoAmI));
+		assertEquals(2, pool.getBindCount());
+		assertEquals(0, pool.getReuseCount());
+		assertEquals(1, pool.getIdle());
+	}
+
+	@Test
+	public void serviceBindsAreKeptPerPrincipal() throws NamingException {
+		LDAPConnectionPool pool = new LDAPConnectionPool(env, 2, 1000);
+		pool.executeShared(dn("bob"), "bob-secret", whoAmI);
+		assertEquals(dn("alice"), pool.executeShared(dn("alice"), "alice-secret", whoAmI));
+		assertEquals(2, pool.getBindCount());
+		assertEquals(0, pool.getReuseCount());
+	}
+
+	@Test
+	public void lostServiceConnectionIsReplaced() throws NamingException {
+		LDAPConnectionPool pool = new LDAPConnectionPool(env, 2, 1000);
+		pool.executeShared(dn("bob"), "bob-secret", whoAmI);
+		server.closeAllClientConnections(false);
+		assertEquals(1, pool.executeShared(dn("bob"), "bob-secret", new LDAPConnectionPool.Operation<Integer>() {
+			@Override
+			public Integer run(LdapContext ctx) throws NamingException {
+				return ctx.getAttributes(dn("bob")).size() > 0 ? 1 : 0;
+			}
+		}).intValue());
+		assertEquals(2, pool.getBindCount());
+	}
+
+	@Test
+	public void wrongPasswordReleasesTheSlot() throws NamingException {
+		LDAPConnectionPool pool = new LDAPConnectionPool(env, 1, 1000);
+		try {
+			pool.execute(dn("alice"), "wrong", whoAmI);
+			fail("bind should have failed");
+		} catch (AuthenticationException e) {
+			// expected
+		}
+		assertEquals(1, pool.getBindFailureCount());
+		assertEquals(0, pool.getActive());
+		assertEquals(dn("alice"), pool.execute(dn("alice"), "alice-secret", whoAmI));
+	}
+
+	@Test
+	public void concurrentCallersKeepTheirOwnCredentials() throws Exception {
+		final LDAPConnectionPool pool = new LDAPConnectionPool(env, 4, 5000);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			Future<?>[] results = new Future<?>[64];
+			for (int i = 0; i < results.length; i++) {
+				final String name = i % 2 == 0 ? "alice" : "bob";
+				results[i] = executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws NamingException {
+						return pool.execute(dn(name), name + "-secret", whoAmI);
+					}
+				});
+			}
+			for (int i = 0; i < results.length; i++)
+				assertEquals(dn(i % 2 == 0 ? "alice" : "bob"), results[i].get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(0, pool.getBindFailureCount());
+		assertEquals(0, pool.getActive());
+	}
+
+	@Test
+	public void givesUpWhenThePoolIsExhausted() throws Exception {
+		final LDAPConnectionPool pool = new LDAPConnectionPool(env, 1, 100);
+		final CountDownLatch holding = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws NamingException {
+					return pool.execute(dn("alice"), "alice-secret", new LDAPConnectionPool.Operation<Void>() {
+						@Override
+						public Void run(LdapContext ctx) {
+							holding.countDown();
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+							return null;
+						}
+					});
+				}
+			});
+			assertTrue(holding.await(5, TimeUnit.SECONDS));
+			try {
+				pool.execute(dn("bob"), "bob-secret", whoAmI);
+				fail("pool should have been exhausted");
+			} catch (ServiceUnavailableException e) {
+				// expected
+			}
+			assertEquals(1, pool.getExhaustedCount());
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2013, 2015, The Regents of the University of California, The Cytoscape Consortium
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software
+ *    without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ */
+package org.ndexbio.security;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoginThrottleTest {
+
+	private static final String address = "10.0.0.1";
+
+	@Before
+	public void startThrottle() {
+		// 3 failures per account, 5 per address, 300s window, backoff capped at 4s
+		LoginThrottle.startUp(new LoginThrottle(3, 5, 300, 4, false));
+	}
+
+	@After
+	public void stopThrottle() {
+		LoginThrottle.shutdown();
+	}
+
+	@Test
+	public void accountIsLockedOutAtTheLimit() {
+		LoginThrottle.loginFailed("Alice", address);
+		LoginThrottle.loginFailed("alice", address);
+		assertEquals(0, LoginThrottle.check("alice", "10.0.0.2"));
+
+		LoginThrottle.loginFailed("alice", address);
+		assertEquals(1, LoginThrottle.check("ALICE", "10.0.0.2"));
+		assertEquals(1, LoginThrottle.getRejectedCount());
+		// other accounts from other addresses are not affected.
+		assertEquals(0, LoginThrottle.check("bob", "10.0.0.2"));
+	}
+
+	@Test
+	public void backoffDoublesUpToTheCap() {
+		for (int i = 0; i < 3; i++)
+			LoginThrottle.loginFailed("alice", null);
+		assertEquals(1, LoginThrottle.check("alice", null));
+		LoginThrottle.loginFailed("alice", null);
+		assertEquals(2, LoginThrottle.check("alice", null));
+		LoginThrottle.loginFailed("alice", null);
+		assertEquals(4, LoginThrottle.check("alice", null));
+		LoginThrottle.loginFailed("alice", null);
+		assertEquals(4, LoginThrottle.check("alice", null));
+	}
+
+	@Test
+	public void successResetsTheAccountOnly() {
+		for (int i = 0; i < 3; i++)
+			LoginThrottle.loginFailed("alice", address);
+		assertTrue(LoginThrottle.check("alice", null) > 0);
+
+		LoginThrottle.loginSucceeded("alice");
+		assertEquals(0, LoginThrottle.check("alice", null));
+		// the address keeps its failures: two more lock it out for every account.
+		LoginThrottle.loginFailed("bob", address);
+		LoginThrottle.loginFailed("carol", address);
+		assertEquals(0, LoginThrottle.check("dave", "10.0.0.2"));
+		assertEquals(1, LoginThrottle.check("dave", address));
+	}
+
+	@Test
+	public void turnedOffThrottleNeverRejects() {
+		LoginThrottle.shutdown();
+		LoginThrottle.loginFailed("alice", address);
+		assertEquals(0, LoginThrottle.check("alice", address));
+		assertEquals(-1, LoginThrottle.getRejectedCount());
+	}
+}